@@ -1,17 +1,12 @@
 package common.agent.agent;
 
-import com.google.common.base.Preconditions;
 import com.google.common.io.Files;
-import com.sun.tools.attach.AttachNotSupportedException;
-import com.sun.tools.attach.spi.AttachProvider;
 import common.ServerAgent;
+import common.agent.fleet.PatchListener;
+import common.agent.script.CompileResult;
 import common.agent.script.ScriptManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import sun.tools.attach.LinuxAttachProvider;
-import sun.tools.attach.LinuxVirtualMachine;
-import sun.tools.attach.WindowsAttachProvider;
-import sun.tools.attach.WindowsVirtualMachine;
 
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -22,8 +17,15 @@ import java.lang.management.ManagementFactory;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by YongQianCheng on 2017/9/22.
@@ -38,8 +40,6 @@ public class Agent
     private static final String FileSeparatorWindows = "\\";
     private static final String FileSeparatorLinux   = "/";
 
-    private static WindowsVirtualMachine winVirtualMachine;       // 当前运行jvm windows
-    private static LinuxVirtualMachine   LinVirtualMachine;       // 当前运行jvm linux
     private static String                pid;                     // pid
     private static Instrumentation       instrumentation;
     private static String                agentPath;               // 代理路径
@@ -47,6 +47,10 @@ public class Agent
     private static String                classPath;               // class文件路径
     private static boolean               isWindows;               // 是否是windows
     private static ScriptManager        scriptManager;           // java编译器
+    private static PatchWatcher         watcher;                 // 目录监听
+    private static PatchListener        listener;                // 热更监听
+    private static volatile PatchQueue  patchQueue;              // 热更请求队列, 唯一的热更线程执行
+    private static PatchScheduler       scheduler;               // 等待安静窗口再替换的热更调度
 
     static
     {
@@ -75,13 +79,35 @@ public class Agent
     {
         try
         {
+            AgentMetrics.register();
             init();
 
             scriptManager = new ScriptManager();
-            scriptManager.Initialize(javaPath, classPath);
+            scriptManager.SetMemoryOutput(AgentConfig.isMemoryCompile(), AgentConfig.isAuditClassOutput());
+            scriptManager.SetCompileProfile(AgentConfig.getCompileProfile());
+            scriptManager.SetCompileProfiling(AgentConfig.isCompileProfiling());
+            scriptManager.SetChangeIndex(AgentConfig.isChangeIndex());
+            scriptManager.SetCompileParallelism(AgentConfig.getCompileParallelism());
+            scriptManager.SetCompileCache(AgentConfig.getCompileCacheSize());
+            scriptManager.SetRuntimeClassPath(AgentConfig.isRuntimeClassPath() ? instrumentation : null);
+            CompileResult result = scriptManager.Initialize(javaPath, classPath);
+            AgentMetrics.recordCompile(result);
 
             // 初始化加载class
-            reloadClass(classPath, true);
+            RedefineResult redefineResult;
+            if (scriptManager.IsMemoryOutput())
+                redefineResult = reloadClass(result.getClassBytes());
+            else
+                redefineResult = reloadClass(classPath, true);
+
+            if (redefineResult.isSuccess())
+                scriptManager.CommitIndex(result);
+
+            if (AgentConfig.isWatch())
+                startWatch();
+
+            if (AgentConfig.getListenPort() >= 0)
+                startListener();
         }
         catch (Exception e)
         {
@@ -89,59 +115,81 @@ public class Agent
         }
     }
 
-    private static void init() throws Exception
+    /**
+     * 开启agentJava/agentClass目录监听, 文件变化在防抖窗口结束后合并成一批自动热更
+     * @throws IllegalStateException 脚本编译器没有初始化(init失败或者还没有调用)
+     */
+    public static synchronized void startWatch() throws IOException
     {
-        try
-        {
-            List var1 = AttachProvider.providers();
-            if (var1.size() == 0)
-            {
-                throw new AttachNotSupportedException("no providers installed");
-            }
-            else
-            {
-                AttachNotSupportedException var2 = null;
-                Iterator var3 = var1.iterator();
+        if (watcher != null && watcher.isRunning())
+            return;
 
-                // 根据系统加载不同的jvm
-                while (var3.hasNext())
-                {
-                    AttachProvider var4 = (AttachProvider) var3.next();
-                    if (isWindows && var4 instanceof LinuxAttachProvider)
-                        continue;
-                    else if (!isWindows && var4 instanceof WindowsAttachProvider)
-                        continue;
-
-                    try
-                    {
-                        if (isWindows)
-                        {
-                            winVirtualMachine = (WindowsVirtualMachine) var4.attachVirtualMachine(pid);
-                            winVirtualMachine.loadAgent(agentPath);
-                        }
-                        else
-                        {
-                            LinVirtualMachine = (LinuxVirtualMachine) var4.attachVirtualMachine(pid);
-                            LinVirtualMachine.loadAgent(agentPath);
-                        }
-
-                        instrumentation = ServerAgent.getInstrumentation();
-                        Preconditions.checkNotNull(instrumentation, "instrumentation must not be null.");
-                        return;
-                    }
-                    catch (AttachNotSupportedException var6)
-                    {
-                        var2 = var6;
-                    }
-                }
+        if (scriptManager == null)
+            throw new IllegalStateException("script manager not initialized, call init before startWatch");
 
-                throw var2;
-            }
-        }
-        catch (Exception e)
+        watcher = new PatchWatcher(javaPath, classPath, AgentConfig.getWatchDebounceMillis(), AgentConfig.getWatchMaxDelayMillis(), AgentConfig.getWatchQueueSize());
+        watcher.start();
+    }
+
+    /**
+     * 开启热更监听, 接收FleetCoordinator推送的热更包
+     * @return 实际监听的端口
+     */
+    public static synchronized int startListener() throws IOException
+    {
+        if (listener == null || !listener.isRunning())
         {
-            throw new Exception("init agent error:" + e.getMessage());
+            listener = new PatchListener(AgentConfig.getListenHost(), Math.max(0, AgentConfig.getListenPort()), AgentConfig.getListenToken());
+            listener.start();
         }
+        return listener.getLocalPort();
+    }
+
+    /**
+     * 停止热更监听
+     */
+    public static synchronized void stopListener()
+    {
+        if (listener != null)
+            listener.stop();
+        listener = null;
+    }
+
+    /**
+     * 停止目录监听
+     */
+    public static synchronized void stopWatch()
+    {
+        if (watcher != null)
+            watcher.stop();
+        watcher = null;
+    }
+
+    /**
+     * 暂停自动热更(例如高峰期), 文件变化继续收集, 恢复后合并处理
+     */
+    public static synchronized void pauseWatch()
+    {
+        if (watcher != null)
+            watcher.pause();
+    }
+
+    /**
+     * 恢复自动热更
+     */
+    public static synchronized void resumeWatch()
+    {
+        if (watcher != null)
+            watcher.resume();
+    }
+
+    /**
+     * 获取Instrumentation, 只在第一次或者Instrumentation丢失时attach
+     */
+    private static void init() throws Exception
+    {
+        instrumentation = AgentAttacher.getInstrumentation(pid, agentPath, isWindows);
+        LoadedClassIndex.install(instrumentation);
     }
 
     /**
@@ -174,20 +222,25 @@ public class Agent
 
     /**
      * 销毁
-     * 断开与虚拟机的连接
+     * 释放缓存的Instrumentation和常驻编译器, 下次热更时重新attach
      */
     public static void destroy()
     {
         try
         {
-            if (winVirtualMachine != null)
-                winVirtualMachine.detach();
-
-            if (LinVirtualMachine != null)
-                LinVirtualMachine.detach();
+            stopWatch();
+            stopListener();
+            AgentMetrics.unregister();
+            AgentAttacher.reset();
+            LoadedClassIndex.uninstall();
+            _shutdownScheduler();
+            _shutdownPatchQueue();
 
             if (instrumentation != null)
                 instrumentation = null;
+
+            if (scriptManager != null)
+                scriptManager.Close();
         }
         catch (Exception e)
         {
@@ -202,6 +255,195 @@ public class Agent
      */
     public static void agent(String fileName, boolean isDirectory)
     {
+        try
+        {
+            await(agentAsync(fileName, isDirectory));
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("agent error.", e);
+        }
+    }
+
+    /**
+     * 异步重载java文件, 编译和替换在热更线程中执行, 不阻塞调用线程
+     * 同一批次中相同路径或者被目录包含的请求只编译和替换一次
+     * @param fileName java文件路径 只能填写agentJava后面的路径/ 如果是单个文件 不需要带文件后缀名
+     * @param isDirectory 是否是文件夹
+     * @return 热更结果, 热更队列已满时立即以RejectedExecutionException失败
+     */
+    public static CompletableFuture<PatchResult> agentAsync(String fileName, boolean isDirectory)
+    {
+        return submit(new PatchQueue.Request("agent", _requestPath(fileName, isDirectory), isDirectory, () -> _agent(fileName, isDirectory)));
+    }
+
+    /**
+     * 合并请求使用的路径: 单个文件的logic.team.CTeam和logic/team/CTeam是同一个文件, 统一成'/'分隔
+     */
+    private static String _requestPath(String fileName, boolean isDirectory)
+    {
+        return isDirectory ? fileName : fileName.replace(SeparatorPoint, FileSeparatorLinux);
+    }
+
+    /**
+     * 异步替换class文件, 参数同reloadClass(String, boolean)
+     */
+    public static CompletableFuture<PatchResult> reloadClassAsync(String fileName, boolean isDirectory)
+    {
+        return submit(new PatchQueue.Request("class", _requestPath(fileName, isDirectory), isDirectory,
+                () -> patchResult(fileName, _reloadClass(fileName, isDirectory))));
+    }
+
+    /**
+     * 异步替换热更包, 参数同reloadBundle(String)
+     */
+    public static CompletableFuture<PatchResult> reloadBundleAsync(String fileName)
+    {
+        return submit(new PatchQueue.Request("bundle", fileName, false, () -> patchResult(fileName, _reloadBundle(fileName))));
+    }
+
+    /**
+     * 异步替换已经读取并校验过的热更包, 参数同reloadBundle(PatchBundle)
+     */
+    public static CompletableFuture<PatchResult> reloadBundleAsync(PatchBundle bundle)
+    {
+        return submit("bundle " + bundle.getPatchId(), () -> patchResult("bundle " + bundle.getPatchId(), _reloadBundle(bundle)));
+    }
+
+    /**
+     * 异步回滚一次热更, 参数同rollback(long)
+     */
+    public static CompletableFuture<PatchResult> rollbackAsync(long patchId)
+    {
+        return submit("rollback " + patchId, () -> patchResult("rollback patch " + patchId, _rollback(patchId)));
+    }
+
+    /**
+     * 在热更线程中执行一个不合并的任务, 例如目录监听的一批修改
+     * @param desc 描述
+     * @param task 任务, 可以返回null
+     */
+    static CompletableFuture<PatchResult> submit(String desc, Callable<PatchResult> task)
+    {
+        return submit(new PatchQueue.Request(null, desc, false, task));
+    }
+
+    /**
+     * 写入热更队列, 已经在热更线程中时直接执行
+     */
+    private static CompletableFuture<PatchResult> submit(PatchQueue.Request request)
+    {
+        PatchQueue queue = _patchQueue();
+        if (!queue.isWorkerThread())
+            return queue.submit(request);
+
+        try
+        {
+            request.getFuture().complete(request.call());
+        }
+        catch (Exception e)
+        {
+            request.getFuture().completeExceptionally(e);
+        }
+        return request.getFuture();
+    }
+
+    /**
+     * 等待热更结果, 任务本身的异常原样抛出
+     */
+    public static PatchResult await(CompletableFuture<PatchResult> future) throws Exception
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * 同步热更接口等待热更线程的结果, 提交失败(例如队列已满)时返回失败结果
+     */
+    private static RedefineResult _awaitRedefine(CompletableFuture<PatchResult> future)
+    {
+        try
+        {
+            return await(future).getRedefineResult();
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("patch error.", e);
+            return _errorResult(e);
+        }
+    }
+
+    /**
+     * 热更调度, 已经编译好的热更等到安静窗口(负载探针、允许的时间段)再替换
+     * 应用通过getScheduler().setLoadProbe()提供负载信息
+     */
+    public static synchronized PatchScheduler getScheduler()
+    {
+        if (scheduler == null)
+        {
+            scheduler = new PatchScheduler(AgentConfig.getScheduleMaxWaitMillis(), AgentConfig.getScheduleCheckMillis());
+            scheduler.setQuietHours(AgentConfig.getQuietHours());
+        }
+        return scheduler;
+    }
+
+    private static synchronized void _shutdownScheduler()
+    {
+        if (scheduler != null)
+        {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+    }
+
+    private static PatchQueue _patchQueue()
+    {
+        // 提交热更不加锁, 只有第一次创建时加锁
+        PatchQueue queue = patchQueue;
+        if (queue != null)
+            return queue;
+
+        synchronized (Agent.class)
+        {
+            if (patchQueue == null)
+                patchQueue = new PatchQueue(AgentConfig.getPatchQueueSize());
+            return patchQueue;
+        }
+    }
+
+    /**
+     * 已经提交的热更继续执行完, 之后再提交时重新创建热更线程
+     */
+    private static synchronized void _shutdownPatchQueue()
+    {
+        if (patchQueue != null)
+        {
+            patchQueue.shutdown();
+            patchQueue = null;
+        }
+    }
+
+    static PatchResult patchResult(String desc, RedefineResult redefineResult)
+    {
+        PatchResult patch = new PatchResult(desc);
+        patch.setRedefine(redefineResult);
+        patch.setTotalNanos(redefineResult.getReadNanos() + redefineResult.getVerifyNanos() + redefineResult.getPauseNanos());
+        return patch;
+    }
+
+    private static PatchResult _agent(String fileName, boolean isDirectory)
+    {
+        PatchResult patch = new PatchResult(fileName);
+        long start = System.nanoTime();
         try
         {
             if (isWindows)
@@ -212,39 +454,141 @@ public class Agent
             if (fileName.endsWith(File.separator))
                 fileName = fileName.substring(0, fileName.length() - 1);
 
+            List<String> names;
             if (isDirectory)
             {
-                // 删除旧的class文件
-                String classFullName = classPath + fileName;
-                deleteFile(classFullName);
-
                 ArrayList<String> list = getAllJavaFiles(javaPath + File.separator + fileName);
                 if (list == null)
-                    return;
+                {
+                    patch.setFailed("no java file found: " + fileName, null);
+                    return patch;
+                }
 
                 int index = fileName.lastIndexOf(File.separator);
                 String rootName = index > -1 ? fileName.substring(0, index) + SeparatorPoint : "";
                 rootName = rootName.replace(File.separator, SeparatorPoint);
+                names = new ArrayList<>(list.size());
                 for (int i = 0; i < list.size(); i++)
                 {
-                    scriptManager.LoadScript(rootName +list.get(i));
+                    names.add(rootName + list.get(i));
+                }
+            }
+            else
+            {
+                names = Collections.singletonList(fileName.replace(File.separator, SeparatorPoint));
+            }
+
+            if (scriptManager.IsChangeIndex())
+            {
+                // 只编译和替换发生变化的部分
+                _agentScripts(fileName, names, patch);
+            }
+            else if (isDirectory)
+            {
+                // 整个目录在一个编译任务中编译, 任意一个失败则不替换, 输出路径中上一次的class保持不变
+                CompileResult result = scriptManager.LoadScripts(names);
+                AgentMetrics.recordCompile(result);
+                patch.setCompile(result);
+                if (!result.isSuccess())
+                {
+                    LOGGER.error("agent compile error, directory: " + fileName + "\n" + result.getDiagnosticString());
+                    AgentMetrics.recordFailure(fileName, "compile error: " + result.getDiagnostics().keySet());
+                    return patch;
                 }
 
-                reloadClass(classPath + fileName, true);
+                if (scriptManager.IsMemoryOutput())
+                {
+                    patch.setRedefine(_reloadClass(result.getClassBytes(), null));
+                }
+                else
+                {
+                    // 编译成功后才删除目录下已经不属于任何脚本的旧class
+                    scriptManager.PruneOutputDirectory(fileName, result);
+                    patch.setRedefine(_reloadClass(classPath + fileName, true));
+                }
+            }
+            else if (scriptManager.IsMemoryOutput())
+            {
+                CompileResult result = scriptManager.LoadScripts(names);
+                AgentMetrics.recordCompile(result);
+                patch.setCompile(result);
+                if (!result.isSuccess())
+                {
+                    LOGGER.error("agent compile error, file: " + fileName + "\n" + result.getDiagnosticString());
+                    AgentMetrics.recordFailure(fileName, "compile error: " + result.getDiagnostics().keySet());
+                    return patch;
+                }
+
+                patch.setRedefine(_reloadClass(result.getClassBytes(), null));
             }
             else
             {
                 int index = fileName.lastIndexOf(File.separator);
                 String rootName = index > -1 ? fileName.substring(0, index) : "";
                 _deleteClassFile(classPath + rootName, fileName);
-                scriptManager.LoadScript(fileName.replace(File.separator, "."));
-                reloadClass(classPath + rootName, true);
+                scriptManager.LoadScript(names.get(0));
+                patch.setRedefine(_reloadClass(classPath + rootName, true));
             }
         }
         catch (Exception e)
         {
             LOGGER.error("agent error.", e);
+            AgentMetrics.recordFailure(fileName, String.valueOf(e));
+            patch.setFailed(String.valueOf(e), e);
+        }
+        finally
+        {
+            patch.setTotalNanos(System.nanoTime() - start);
+        }
+        return patch;
+    }
+
+    /**
+     * 一批脚本在一个编译任务中编译并一次替换
+     * 使用变化索引时只编译内容发生变化的脚本, 只替换字节码发生变化的class
+     * @param fileName 热更的文件/文件夹, 用于日志
+     * @param names 脚本类全名, 可以来自不同的目录
+     * @return 是否编译并替换成功(没有变化也算成功)
+     */
+    static boolean agentScripts(String fileName, List<String> names) throws Exception
+    {
+        if (scriptManager == null)
+        {
+            LOGGER.error("agent scripts error, script manager not initialized: " + fileName);
+            return false;
+        }
+
+        PatchResult patch = new PatchResult(fileName);
+        _agentScripts(fileName, names, patch);
+        return patch.isSuccess();
+    }
+
+    private static void _agentScripts(String fileName, List<String> names, PatchResult patch) throws Exception
+    {
+        CompileResult result = scriptManager.LoadChangedScripts(names);
+        AgentMetrics.recordCompile(result);
+        patch.setCompile(result);
+        if (!result.isSuccess())
+        {
+            LOGGER.error("agent compile error: " + fileName + "\n" + result.getDiagnosticString());
+            AgentMetrics.recordFailure(fileName, "compile error: " + result.getDiagnostics().keySet());
+            return;
+        }
+
+        Map<String, byte[]> changed = scriptManager.GetChangedClasses(result);
+        if (changed.isEmpty())
+        {
+            LOGGER.info("agent no change: " + fileName);
+            AgentMetrics.clearCompile();
+            scriptManager.CommitIndex(result);
+            patch.setUnchanged();
+            return;
         }
+
+        RedefineResult redefineResult = _reloadClass(changed, null);
+        patch.setRedefine(redefineResult);
+        if (redefineResult.isSuccess())
+            scriptManager.CommitIndex(result);
     }
 
     /**
@@ -258,8 +602,17 @@ public class Agent
      *     同时替换CTeam、CTeamManager, 将CTeam.class、CTeamManager放在agent/agentClass/logic/team/ 路径下,路径不存在需要新建。
      *                    fileName:logic/team, isDirectory: true。
      *
+     * @return 替换结果
+     */
+    public static RedefineResult reloadClass(String fileName, boolean isDirectory)
+    {
+        return _awaitRedefine(reloadClassAsync(fileName, isDirectory));
+    }
+
+    /**
+     * reloadClass(String, boolean)的实现, 只在热更线程中调用
      */
-    public static void reloadClass(String fileName, boolean isDirectory)
+    static RedefineResult _reloadClass(String fileName, boolean isDirectory)
     {
         try
         {
@@ -274,13 +627,15 @@ public class Agent
                 else
                     fileName = fileName.replace(FileSeparatorWindows, File.separator);
 
+                if (AgentConfig.getPauseBudgetMillis() > 0)
+                    return _reloadDirectoryBudgeted(fileName);
+
+                long start = System.nanoTime();
                 List<ClassDefinition> classDefinition = getDirectoryClassDefinition(fileName);
-                for (int i = 0; i < classDefinition.size(); i++)
-                {
-                    ClassDefinition definition = classDefinition.get(i);
-                    instrumentation.redefineClasses(definition);
-                    LOGGER.info("reload class -->> " + definition.getDefinitionClass().getName());
-                }
+                long readNanos = System.nanoTime() - start;
+                RedefineResult result = _redefineClasses(classDefinition, fileName);
+                result.setReadNanos(readNanos);
+                return result;
             }
             else
             {
@@ -291,17 +646,21 @@ public class Agent
                 fileName = fileName.replace(FileSeparatorLinux, SeparatorPoint);
                 fileName = fileName.replace(FileSeparatorWindows, SeparatorPoint);
 
-                Class<?> clazzName = Class.forName(fileName);
+                long start = System.nanoTime();
                 String className = classPath + fileName.replace(SeparatorPoint, File.separator) + FileSufFix;
                 byte[] bytesFromFile = Files.toByteArray(new File(className));
-                ClassDefinition classDefinition = new ClassDefinition(clazzName, bytesFromFile);
-                instrumentation.redefineClasses(classDefinition);
-                LOGGER.info("reload class -->> " + fileName);
+                List<ClassDefinition> classDefinition = new ArrayList<>(1);
+                _addDefinitions(classDefinition, fileName, bytesFromFile, null);
+                long readNanos = System.nanoTime() - start;
+                RedefineResult result = _redefineClasses(classDefinition, fileName);
+                result.setReadNanos(readNanos);
+                return result;
             }
         }
         catch (Exception e)
         {
             LOGGER.error("reloadClass error.", e);
+            return _errorResult(e);
         }
         finally
         {
@@ -309,6 +668,453 @@ public class Agent
         }
     }
 
+    /**
+     * 直接使用内存中的字节码替换class, 不经过磁盘
+     * @param classBytes 类全名(内部类为Outer$Inner) -> 字节码
+     * @return 替换结果
+     */
+    public static RedefineResult reloadClass(Map<String, byte[]> classBytes)
+    {
+        return reloadClass(classBytes, null);
+    }
+
+    /**
+     * 异步替换内存中的字节码, 参数同reloadClass(Map, ClassLoader)
+     */
+    public static CompletableFuture<PatchResult> reloadClassAsync(Map<String, byte[]> classBytes, ClassLoader loader)
+    {
+        Map<String, byte[]> copy = new LinkedHashMap<>(classBytes);
+        return submit("classes", () -> patchResult("classes", _reloadClass(copy, loader)));
+    }
+
+    /**
+     * 直接使用内存中的字节码替换指定加载器中的class
+     * @param classBytes 类全名(内部类为Outer$Inner) -> 字节码
+     * @param loader     只替换这个加载器定义的class, null表示替换所有加载器中已加载的同名class
+     * @return 替换结果
+     */
+    public static RedefineResult reloadClass(Map<String, byte[]> classBytes, ClassLoader loader)
+    {
+        return _awaitRedefine(reloadClassAsync(classBytes, loader));
+    }
+
+    /**
+     * reloadClass(Map, ClassLoader)的实现, 只在热更线程中调用
+     */
+    static RedefineResult _reloadClass(Map<String, byte[]> classBytes, ClassLoader loader)
+    {
+        try
+        {
+            if (classBytes.isEmpty())
+                return ClassRedefiner.redefine(instrumentation, Collections.<ClassDefinition>emptyList());
+
+            init();
+
+            List<ClassDefinition> classDefinition = new ArrayList<>(classBytes.size());
+            for (Map.Entry<String, byte[]> entry : classBytes.entrySet())
+            {
+                _addDefinitions(classDefinition, entry.getKey(), entry.getValue(), loader);
+            }
+            return _redefineClasses(classDefinition, "classes");
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("reloadClass error.", e);
+            return _errorResult(e);
+        }
+    }
+
+    /**
+     * 替换热更包中的所有class, 读取时校验清单中的摘要, 任意一个不一致则不替换
+     * 一个包只读一次文件, 适合大量服务器分发
+     * @param fileName 热更包(jar/zip), 相对路径相对于agent/agentClass/
+     * @return 替换结果, 热更描述为包的Patch-Id
+     */
+    public static RedefineResult reloadBundle(String fileName)
+    {
+        return _awaitRedefine(reloadBundleAsync(fileName));
+    }
+
+    /**
+     * reloadBundle(String)的实现, 只在热更线程中调用
+     */
+    static RedefineResult _reloadBundle(String fileName)
+    {
+        PatchBundle bundle;
+        long start = System.nanoTime();
+        try
+        {
+            File file = new File(fileName);
+            if (!file.isAbsolute())
+                file = new File(classPath + fileName);
+
+            bundle = PatchBundle.read(file);
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("reloadBundle error: " + fileName, e);
+            AgentMetrics.recordFailure(fileName, String.valueOf(e));
+            return _errorResult(e);
+        }
+        long readNanos = System.nanoTime() - start;
+        RedefineResult result = _reloadBundle(bundle);
+        result.setReadNanos(readNanos);
+        return result;
+    }
+
+    /**
+     * 替换已经读取并校验过的热更包
+     * @param bundle 热更包
+     * @return 替换结果, 热更描述为包的Patch-Id
+     */
+    public static RedefineResult reloadBundle(PatchBundle bundle)
+    {
+        return _awaitRedefine(reloadBundleAsync(bundle));
+    }
+
+    /**
+     * reloadBundle(PatchBundle)的实现, 只在热更线程中调用
+     */
+    static RedefineResult _reloadBundle(PatchBundle bundle)
+    {
+        try
+        {
+            if (bundle.getClasses().isEmpty())
+                return ClassRedefiner.redefine(instrumentation, Collections.<ClassDefinition>emptyList());
+
+            init();
+
+            List<ClassDefinition> classDefinition = new ArrayList<>(bundle.getClasses().size());
+            for (Map.Entry<String, byte[]> entry : bundle.getClasses().entrySet())
+            {
+                _addDefinitions(classDefinition, entry.getKey(), entry.getValue(), null);
+            }
+            LOGGER.info("reload bundle " + bundle.getPatchId() + ", classes: " + classDefinition.size());
+            return _redefineClasses(classDefinition, "bundle " + bundle.getPatchId());
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("reloadBundle error: " + bundle.getPatchId(), e);
+            AgentMetrics.recordFailure("bundle " + bundle.getPatchId(), String.valueOf(e));
+            return _errorResult(e);
+        }
+    }
+
+    /**
+     * 回滚一次热更, 把该次热更替换的class恢复到热更前的字节码, 一次批量替换, 不需要编译
+     * 如果之后的热更也修改了这些class, 之后的修改也会被回滚
+     * @param patchId 热更id, 见RedefineResult.getPatchId()/PatchHistory.getPatches()
+     * @return 替换结果, 回滚本身也会记录为一次热更
+     */
+    public static RedefineResult rollback(long patchId)
+    {
+        return _awaitRedefine(rollbackAsync(patchId));
+    }
+
+    /**
+     * rollback(long)的实现, 只在热更线程中调用
+     */
+    private static RedefineResult _rollback(long patchId)
+    {
+        try
+        {
+            init();
+
+            List<ClassDefinition> classDefinition = PatchHistory.getRollback(patchId);
+            if (classDefinition == null)
+                throw new IllegalArgumentException("patch not found: " + patchId);
+
+            return _redefineClasses(classDefinition, "rollback patch " + patchId);
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("rollback error.", e);
+            return _errorResult(e);
+        }
+    }
+
+    /**
+     * 回滚单个class到指定版本, 不需要编译
+     * @param className 类全名
+     * @param version 版本, 0为第一次热更前的字节码, 见PatchHistory.getCurrentVersion(className)
+     * @return 替换结果, 回滚本身也会记录为一次热更
+     */
+    public static RedefineResult rollback(String className, int version)
+    {
+        return _awaitRedefine(rollbackAsync(className, version));
+    }
+
+    /**
+     * 异步回滚单个class, 参数同rollback(String, int)
+     */
+    public static CompletableFuture<PatchResult> rollbackAsync(String className, int version)
+    {
+        String desc = "rollback " + className + " to version " + version;
+        return submit(desc, () -> patchResult(desc, _rollback(className, version)));
+    }
+
+    /**
+     * rollback(String, int)的实现, 只在热更线程中调用
+     */
+    private static RedefineResult _rollback(String className, int version)
+    {
+        try
+        {
+            init();
+
+            List<ClassDefinition> classDefinition = PatchHistory.getRollback(className, version);
+            if (classDefinition.isEmpty())
+                throw new IllegalArgumentException("class version not found: " + className + " version " + version);
+
+            return _redefineClasses(classDefinition, "rollback " + className + " to version " + version);
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("rollback error.", e);
+            return _errorResult(e);
+        }
+    }
+
+    /**
+     * 替换class
+     * 批量模式下整批class一次redefineClasses调用: 一次停顿, 全部成功或者全部失败
+     * 字节码指纹(忽略调试信息)与当前生效的class相同的不替换
+     * 开启回滚时先记录替换前的字节码, 成功后记录为一次热更
+     * @param classDefinition 待替换的class
+     * @param desc 描述, 记录在热更历史中
+     * @return 替换结果
+     */
+    private static RedefineResult _redefineClasses(List<ClassDefinition> classDefinition, String desc)
+    {
+        // 过滤掉字节码没有变化的class
+        long verifyStart = System.nanoTime();
+        List<String> skipped = Collections.emptyList();
+        Map<Class<?>, String> fingerprints = null;
+        if (AgentConfig.isSkipUnchanged())
+        {
+            fingerprints = new HashMap<>();
+            List<ClassDefinition> changed = AppliedClasses.filterChanged(classDefinition, fingerprints);
+            if (changed.size() < classDefinition.size())
+            {
+                skipped = new ArrayList<>(ClassRedefiner.getClassNames(classDefinition));
+                skipped.removeAll(ClassRedefiner.getClassNames(changed));
+                LOGGER.info("skip " + skipped.size() + " unchanged classes: " + skipped);
+            }
+            classDefinition = changed;
+        }
+
+        // 结构不兼容的修改在进入安全点之前拒绝
+        if (AgentConfig.isPreflightCheck() && !classDefinition.isEmpty())
+        {
+            Map<String, List<String>> incompatible = PreflightCheck.check(classDefinition);
+            if (!incompatible.isEmpty())
+            {
+                RedefineResult result = new RedefineResult(ClassRedefiner.getClassNames(classDefinition));
+                result.setSkippedClasses(skipped);
+                result.setIncompatible(incompatible, PreflightCheck.report(incompatible));
+                result.setVerifyNanos(System.nanoTime() - verifyStart);
+                LOGGER.error("reload class rejected. " + result.getError().getMessage());
+                AgentMetrics.recordRedefine(desc, result, classDefinition);
+                return result;
+            }
+        }
+
+        long verifyNanos = System.nanoTime() - verifyStart;
+
+        PatchHistory.Capture capture = null;
+        if (AgentConfig.isRollback() && !classDefinition.isEmpty())
+        {
+            try
+            {
+                capture = PatchHistory.capture(instrumentation, classDefinition, AgentConfig.isRetransformCapture());
+            }
+            catch (Exception e)
+            {
+                // 记录失败不影响热更, 只是这次热更不能回滚
+                LOGGER.error("capture class bytes error, patch can not be rolled back.", e);
+            }
+        }
+
+        RedefineResult result = AgentConfig.isBatchRedefine()
+                ? ClassRedefiner.redefine(instrumentation, classDefinition)
+                : ClassRedefiner.redefineEach(instrumentation, classDefinition);
+
+        // retransform也是一次安全点停顿, 计入这次热更的停顿
+        if (capture != null && capture.getPauseNanos() > 0)
+            result.setPauseNanos(result.getPauseNanos() + capture.getPauseNanos());
+        result.setSkippedClasses(skipped);
+        result.setVerifyNanos(verifyNanos);
+        if (result.isSuccess())
+        {
+            if (result.isBatch())
+                PauseBudget.record(classDefinition, result.getPauseNanos());
+            if (fingerprints != null)
+                AppliedClasses.record(fingerprints);
+            if (capture != null)
+                result.setPatchId(PatchHistory.record(desc, capture.getBefore(), classDefinition, AgentConfig.getRollbackVersions()));
+
+            for (String name : result.getClassNames())
+            {
+                LOGGER.info("reload class -->> " + name);
+            }
+            LOGGER.info("reload class finish. " + result);
+        }
+        else
+        {
+            if (!result.isBatch())
+                AppliedClasses.invalidate(classDefinition);
+            LOGGER.error("reload class error. " + result, result.getError());
+        }
+        AgentMetrics.recordRedefine(desc, result, classDefinition);
+        return result;
+    }
+
+    private static RedefineResult _errorResult(Exception e)
+    {
+        RedefineResult result = new RedefineResult(Collections.<String>emptyList());
+        result.setFailed(null, e);
+        return result;
+    }
+
+    /**
+     * 查找已加载的同名class, 每个class生成一个替换定义
+     * 还没有加载过的类通过Agent的加载器加载但不初始化, 第一次初始化时已经是新的字节码
+     * @param definitions 输出
+     * @param className   类全名
+     * @param bytes       新的字节码
+     * @param loader      只替换这个加载器定义的class, null表示所有加载器
+     */
+    private static void _addDefinitions(List<ClassDefinition> definitions, String className, byte[] bytes, ClassLoader loader) throws ClassNotFoundException
+    {
+        // 索引增量记录新加载的类, 查找不到时会重新扫描; 仍然找不到说明还没有被任何加载器加载
+        if (loader != null)
+        {
+            Class<?> clazz = LoadedClassIndex.find(className, loader);
+            if (clazz == null)
+            {
+                // 通过指定的加载器加载, 委托给父加载器得到的不是要替换的class
+                clazz = Class.forName(className, false, loader);
+                if (clazz.getClassLoader() != loader)
+                    throw new ClassNotFoundException(className + " is not defined by " + loader);
+            }
+            definitions.add(new ClassDefinition(clazz, bytes));
+            return;
+        }
+
+        List<Class<?>> classes = LoadedClassIndex.find(className);
+        if (classes.isEmpty())
+        {
+            // 没有被任何加载器加载过, 通过Agent的加载器加载后替换, 避免之后加载到旧的字节码
+            LOGGER.warn("class not loaded yet, load by agent class loader: " + className);
+            definitions.add(new ClassDefinition(Class.forName(className, false, Agent.class.getClassLoader()), bytes));
+            return;
+        }
+
+        for (Class<?> clazz : classes)
+        {
+            definitions.add(new ClassDefinition(clazz, bytes));
+        }
+    }
+
+    /**
+     * @param className 类全名(内部类为Outer$Inner)
+     * @return 所有加载器中已加载的同名class, 不会触发加载和初始化
+     */
+    public static List<Class<?>> getLoadedClasses(String className) throws Exception
+    {
+        init();
+        return LoadedClassIndex.find(className);
+    }
+
+    /**
+     * 按停顿预算分批替换目录下的class
+     * 先只列出class文件和大小, 按外部类分组后拆分成估算停顿不超过预算的批次, 每批替换前才读取这一批的字节码
+     * 不是整批原子替换: 前面的批次生效后、后面的批次替换前, JVM中同时运行新旧两个版本的代码, 跨批次的调用可能看到不一致的版本
+     * 某一批失败时停止, 开启回滚时按相反顺序回滚之前已经替换的批次
+     * @param fileName 文件夹
+     * @return 合并的替换结果, 停顿为所有批次之和, 最长一次停顿见getMaxPauseNanos()
+     */
+    private static RedefineResult _reloadDirectoryBudgeted(String fileName) throws Exception
+    {
+        String path = fileName.endsWith(File.separator) ? fileName : fileName + File.separator;
+        if (!path.startsWith(classPath))
+            path = classPath + path;
+        String pkg = path.substring(classPath.length()).replace(File.separator, SeparatorPoint);
+
+        List<PauseBudget.ClassFileEntry> files = new ArrayList<>();
+        _listClassFiles(new File(path), pkg, files);
+
+        long budgetNanos = TimeUnit.MILLISECONDS.toNanos(AgentConfig.getPauseBudgetMillis());
+        List<List<PauseBudget.ClassFileEntry>> batches = PauseBudget.plan(files, budgetNanos);
+        LOGGER.info(String.format("reload %d classes in %d batches, pause budget %dms, estimated %.1fus/KB", files.size(), batches.size(),
+                AgentConfig.getPauseBudgetMillis(), PauseBudget.getNanosPerKb() / 1000.0));
+
+        List<String> classNames = new ArrayList<>(files.size());
+        for (PauseBudget.ClassFileEntry file : files)
+        {
+            classNames.add(file.className);
+        }
+        RedefineResult total = new RedefineResult(classNames);
+        total.setSuccess(true);
+        for (int i = 0; i < batches.size(); i++)
+        {
+            long start = System.nanoTime();
+            List<PauseBudget.ClassFileEntry> batch = batches.get(i);
+            List<ClassDefinition> classDefinition = new ArrayList<>(batch.size());
+            for (PauseBudget.ClassFileEntry file : batch)
+            {
+                _addDefinitions(classDefinition, file.className, Files.toByteArray(file.file), null);
+            }
+            long readNanos = System.nanoTime() - start;
+
+            RedefineResult result = _redefineClasses(classDefinition, fileName + " [" + (i + 1) + "/" + batches.size() + "]");
+            total.addBatch(result, readNanos);
+            if (!result.isSuccess())
+            {
+                _rollbackBatches(total.getBatchPatchIds());
+                break;
+            }
+        }
+        LOGGER.info("reload directory finish. " + total);
+        return total;
+    }
+
+    /**
+     * 回滚分批替换中已经成功的批次
+     */
+    private static void _rollbackBatches(List<Long> patchIds)
+    {
+        if (patchIds.isEmpty())
+            return;
+
+        LOGGER.warn("reload batch failed, roll back " + patchIds.size() + " applied batches.");
+        for (int i = patchIds.size() - 1; i >= 0; i--)
+        {
+            RedefineResult result = _rollback(patchIds.get(i));
+            if (!result.isSuccess())
+                LOGGER.error("roll back batch patch " + patchIds.get(i) + " error. " + result);
+        }
+    }
+
+    /**
+     * 递归列出目录下的class文件, 不读取内容
+     */
+    private static void _listClassFiles(File dir, String pkg, List<PauseBudget.ClassFileEntry> files)
+    {
+        File[] children = dir.listFiles();
+        if (children == null)
+            return;
+
+        for (File child : children)
+        {
+            String name = child.getName();
+            if (child.isDirectory())
+                _listClassFiles(child, pkg + name + SeparatorPoint, files);
+            else if (name.endsWith(FileSufFix))
+                files.add(new PauseBudget.ClassFileEntry(pkg + name.substring(0, name.length() - FileSufFix.length()), child));
+        }
+    }
+
     /**
      * 递归处理文件夹下面所有待替换的class
      * @param fileName 文件夹
@@ -365,12 +1171,9 @@ public class Agent
                 while (clazzName.startsWith(SeparatorPoint))
                     clazzName = clazzName.substring(1, clazzName.length());
 
-                Class<?> clazz = Class.forName(clazzName);
-
                 // 新的class路径
                 byte[] bytesFromFile = Files.toByteArray(new File(childFileName));
-                ClassDefinition classDefinition = new ClassDefinition(clazz, bytesFromFile);
-                classDefList.add(classDefinition);
+                _addDefinitions(classDefList, clazzName, bytesFromFile, null);
             }
         }
         else
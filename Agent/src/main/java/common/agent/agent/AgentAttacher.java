@@ -0,0 +1,190 @@
+package common.agent.agent;
+
+import com.google.common.base.Preconditions;
+import com.sun.tools.attach.AttachNotSupportedException;
+import com.sun.tools.attach.VirtualMachine;
+import com.sun.tools.attach.spi.AttachProvider;
+import common.ServerAgent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sun.tools.attach.LinuxAttachProvider;
+import sun.tools.attach.WindowsAttachProvider;
+
+import java.lang.instrument.Instrumentation;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AgentAttacher
+ * <p>
+ * attach生命周期管理
+ * 只attach一次并缓存Instrumentation, 只有在Instrumentation丢失时才重新attach
+ * loadAgent完成后立即detach, 不持有VirtualMachine连接
+ */
+public class AgentAttacher
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgentAttacher.class);
+
+    private static volatile Instrumentation instrumentation;                    // 缓存的Instrumentation
+    private static final    AtomicLong      attachCount      = new AtomicLong(); // attach次数
+    private static final    AtomicLong      totalAttachNanos = new AtomicLong(); // attach总耗时
+    private static volatile long            lastAttachNanos;                    // 最近一次attach耗时
+
+    private AgentAttacher()
+    {
+    }
+
+    /**
+     * 获取Instrumentation, 已经attach过则直接返回缓存
+     *
+     * @param pid       当前进程id
+     * @param agentPath ServerAgent jar包路径
+     * @param isWindows 是否是windows
+     * @return Instrumentation
+     * @throws Exception attach失败
+     */
+    public static Instrumentation getInstrumentation(String pid, String agentPath, boolean isWindows) throws Exception
+    {
+        Instrumentation ins = instrumentation;
+        if (ins != null)
+            return ins;
+
+        synchronized (AgentAttacher.class)
+        {
+            if (instrumentation != null)
+                return instrumentation;
+
+            // ServerAgent已经被加载过(之前attach过或者通过启动参数加载), 不需要再attach
+            ins = ServerAgent.getInstrumentation();
+            if (ins == null)
+            {
+                ins = _attach(pid, agentPath, isWindows);
+            }
+
+            instrumentation = ins;
+            return ins;
+        }
+    }
+
+    /**
+     * 丢弃缓存的Instrumentation, 下次使用时重新获取
+     */
+    public static synchronized void reset()
+    {
+        instrumentation = null;
+    }
+
+    public static boolean isAttached()
+    {
+        return instrumentation != null;
+    }
+
+    /**
+     * @return attach次数
+     */
+    public static long getAttachCount()
+    {
+        return attachCount.get();
+    }
+
+    /**
+     * @return 最近一次attach耗时(纳秒)
+     */
+    public static long getLastAttachNanos()
+    {
+        return lastAttachNanos;
+    }
+
+    /**
+     * @return attach总耗时(纳秒)
+     */
+    public static long getTotalAttachNanos()
+    {
+        return totalAttachNanos.get();
+    }
+
+    private static Instrumentation _attach(String pid, String agentPath, boolean isWindows) throws Exception
+    {
+        long start = System.nanoTime();
+        try
+        {
+            loadAgent(pid, agentPath, null, isWindows);
+
+            Instrumentation ins = ServerAgent.getInstrumentation();
+            Preconditions.checkNotNull(ins, "instrumentation must not be null.");
+
+            long cost = System.nanoTime() - start;
+            lastAttachNanos = cost;
+            totalAttachNanos.addAndGet(cost);
+            attachCount.incrementAndGet();
+            AgentMetrics.recordAttach(cost);
+            LOGGER.info(String.format("attach agent finish, pid: %s, cost: %.3fms", pid, cost / 1000000.0));
+            return ins;
+        }
+        catch (Exception e)
+        {
+            throw new Exception("init agent error:" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * attach到指定进程并加载ServerAgent, 加载完成后立即断开
+     * 目标进程的ServerAgent.agentmain执行完才返回
+     *
+     * @param pid       目标进程id, 可以是其它进程
+     * @param agentPath ServerAgent jar包路径
+     * @param options   传给agentmain的参数, 可以为null
+     * @param isWindows 是否是windows
+     * @throws Exception attach或者加载失败
+     */
+    public static void loadAgent(String pid, String agentPath, String options, boolean isWindows) throws Exception
+    {
+        List<AttachProvider> providers = AttachProvider.providers();
+        if (providers.size() == 0)
+        {
+            throw new AttachNotSupportedException("no providers installed");
+        }
+
+        AttachNotSupportedException notSupported = null;
+
+        // 根据系统加载不同的jvm
+        for (AttachProvider provider : providers)
+        {
+            if (isWindows && provider instanceof LinuxAttachProvider)
+                continue;
+            else if (!isWindows && provider instanceof WindowsAttachProvider)
+                continue;
+
+            VirtualMachine virtualMachine;
+            try
+            {
+                virtualMachine = provider.attachVirtualMachine(pid);
+            }
+            catch (AttachNotSupportedException e)
+            {
+                notSupported = e;
+                continue;
+            }
+
+            try
+            {
+                virtualMachine.loadAgent(agentPath, options);
+            }
+            finally
+            {
+                // Instrumentation在agent加载后一直有效, 连接可以立即断开
+                try
+                {
+                    virtualMachine.detach();
+                }
+                catch (Exception e)
+                {
+                    LOGGER.warn("detach virtualMachine error.", e);
+                }
+            }
+            return;
+        }
+
+        throw notSupported != null ? notSupported : new AttachNotSupportedException("no matching provider for pid " + pid);
+    }
+}
@@ -0,0 +1,119 @@
+package common.agent.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * AgentCommand
+ * <p>
+ * 外部进程(PatchLauncher)通过attach下发的命令, 由ServerAgent.agentmain反射调用
+ * 命令格式与url参数相同: bundle=热更包路径&result=结果文件路径 或者 rollback=热更id&result=结果文件路径, 值需要url编码
+ * 执行结果写入结果文件(properties格式): success, patchId, applyNanos, pauseNanos, classes, error
+ * 替换在热更线程中执行, 与其它热更串行
+ */
+public class AgentCommand
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgentCommand.class);
+
+    public static final String Bundle   = "bundle";
+    public static final String Rollback = "rollback";
+    public static final String Result   = "result";
+
+    private AgentCommand()
+    {
+    }
+
+    /**
+     * 执行命令
+     *
+     * @param args agentmain参数
+     */
+    public static void execute(String args) throws IOException
+    {
+        Map<String, String> options = parse(args);
+        String resultFile = options.get(Result);
+
+        Properties properties = new Properties();
+        long start = System.nanoTime();
+        try
+        {
+            RedefineResult result;
+            if (options.containsKey(Bundle))
+                result = Agent.await(Agent.reloadBundleAsync(options.get(Bundle))).getRedefineResult();
+            else if (options.containsKey(Rollback))
+                result = Agent.await(Agent.rollbackAsync(Long.parseLong(options.get(Rollback)))).getRedefineResult();
+            else
+                throw new IllegalArgumentException("unknown command: " + args);
+
+            properties.setProperty("success", String.valueOf(result.isSuccess()));
+            properties.setProperty("patchId", String.valueOf(result.getPatchId()));
+            properties.setProperty("pauseNanos", String.valueOf(result.getPauseNanos()));
+            properties.setProperty("classes", String.valueOf(result.getClassNames().size()));
+            if (!result.isSuccess())
+                properties.setProperty("error", String.valueOf(result.getError()));
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("agent command error: " + args, e);
+            properties.setProperty("success", "false");
+            properties.setProperty("error", String.valueOf(e));
+        }
+        properties.setProperty("applyNanos", String.valueOf(System.nanoTime() - start));
+
+        if (resultFile != null)
+        {
+            try (OutputStream out = new FileOutputStream(new File(resultFile)))
+            {
+                properties.store(out, "agent command result");
+            }
+        }
+    }
+
+    /**
+     * @return 命令字符串
+     */
+    public static String format(Map<String, String> options)
+    {
+        StringBuilder builder = new StringBuilder();
+        try
+        {
+            for (Map.Entry<String, String> entry : options.entrySet())
+            {
+                if (builder.length() > 0)
+                    builder.append('&');
+                builder.append(entry.getKey()).append('=').append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+            }
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+    static Map<String, String> parse(String args) throws UnsupportedEncodingException
+    {
+        Map<String, String> options = new LinkedHashMap<>();
+        if (args == null || args.isEmpty())
+            return options;
+
+        for (String pair : args.split("&"))
+        {
+            int index = pair.indexOf('=');
+            if (index > 0)
+                options.put(pair.substring(0, index), URLDecoder.decode(pair.substring(index + 1), "UTF-8"));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,411 @@
+package common.agent.agent;
+
+import common.agent.script.CompileProfile;
+
+/**
+ * AgentConfig
+ * <p>
+ * 热更配置, 默认值可以通过启动参数(-Dagent.xxx)指定, 运行时也可以通过setter修改
+ */
+public class AgentConfig
+{
+    private static volatile boolean memoryCompile    = Boolean.getBoolean("agent.memoryCompile");     // 内存编译, 字节码不经过磁盘直接替换
+    private static volatile boolean auditClassOutput = Boolean.getBoolean("agent.auditClassOutput");  // 内存编译时是否同时写class文件用于审计
+    private static volatile boolean batchRedefine    = !"false".equals(System.getProperty("agent.batchRedefine"));  // 整批class一次redefineClasses调用替换
+    private static volatile boolean changeIndex      = !"false".equals(System.getProperty("agent.changeIndex"));  // 变化索引, 只编译和替换发生变化的脚本
+    private static volatile boolean watch            = Boolean.getBoolean("agent.watch");              // 初始化时开启目录监听自动热更
+    private static volatile long    watchDebounceMillis = Long.getLong("agent.watchDebounceMillis", 500L);   // 监听防抖窗口
+    private static volatile long    watchMaxDelayMillis = Long.getLong("agent.watchMaxDelayMillis", 5000L);  // 监听一批最长等待时间
+    private static volatile int     watchQueueSize   = Integer.getInteger("agent.watchQueueSize", 10000);   // 监听事件队列上限
+    private static volatile int     compileParallelism = Integer.getInteger("agent.compileParallelism", Math.max(1, Runtime.getRuntime().availableProcessors() / 4));  // 并行编译线程数上限
+    private static volatile int     compileCacheSize = Integer.getInteger("agent.compileCacheSize", 1024);  // 编译缓存最多保留的编译单元数, 0表示不使用
+    private static volatile boolean skipUnchanged    = !"false".equals(System.getProperty("agent.skipUnchanged"));  // 跳过字节码指纹没有变化的class
+    private static volatile boolean preflightCheck   = !"false".equals(System.getProperty("agent.preflightCheck"));  // 替换前检查结构兼容性, 不兼容时不进入安全点
+    private static volatile boolean rollback         = !"false".equals(System.getProperty("agent.rollback"));  // 替换前记录原字节码, 支持回滚
+    private static volatile boolean retransformCapture = Boolean.getBoolean("agent.retransformCapture");  // 加载器中读取不到原字节码时通过retransform记录(额外一次安全点停顿)
+    private static volatile int     rollbackVersions = Integer.getInteger("agent.rollbackVersions", 16);   // 每个class保留的历史版本数
+    private static volatile int     metricsHistory   = Integer.getInteger("agent.metricsHistory", 20);      // JMX输出最近多少次热更的结果
+    private static volatile long    jitWindowMillis  = Long.getLong("agent.jitWindowMillis", 10000L);     // 统计热更前后JIT编译耗时的窗口
+    private static volatile boolean compileProfiling = Boolean.getBoolean("agent.compileProfiling");   // 编译分析, 记录javac各阶段和每个源文件的耗时
+    private static volatile boolean runtimeClassPath = !"false".equals(System.getProperty("agent.runtimeClassPath"));  // 从运行时已加载的类解析编译符号
+    private static volatile int     patchQueueSize   = Integer.getInteger("agent.patchQueueSize", 64);  // 异步热更队列上限
+    private static volatile long    scheduleMaxWaitMillis = Long.getLong("agent.scheduleMaxWaitMillis", 600000L);  // 调度的热更最长等待安静窗口的时间
+    private static volatile long    scheduleCheckMillis = Long.getLong("agent.scheduleCheckMillis", 100L);  // 检查安静窗口的间隔
+    private static volatile String  quietHours       = System.getProperty("agent.quietHours", "");      // 允许调度的热更替换的时间段, 例如03:00-06:00
+    private static volatile long    pauseBudgetMillis = Long.getLong("agent.pauseBudgetMillis", 0L);  // 目录热更按停顿预算分批替换, 0表示不分批
+    private static volatile String  listenHost       = System.getProperty("agent.listenHost", "127.0.0.1");  // 热更监听地址
+    private static volatile String  listenToken      = System.getProperty("agent.listenToken", "");     // 热更监听请求签名的共享密钥, 为空时只允许监听回环地址
+    private static volatile int     listenPort       = Integer.getInteger("agent.listenPort", -1);     // 热更监听端口, 小于0表示不监听, 0表示随机端口
+    private static volatile CompileProfile compileProfile = CompileProfile.valueOf(System.getProperty("agent.compileProfile", CompileProfile.DEFAULT.name()));  // 编译配置
+
+    private AgentConfig()
+    {
+    }
+
+    public static boolean isMemoryCompile()
+    {
+        return memoryCompile;
+    }
+
+    /**
+     * 内存编译模式, 需要在Agent.initialize()之前设置
+     */
+    public static void setMemoryCompile(boolean memoryCompile)
+    {
+        AgentConfig.memoryCompile = memoryCompile;
+    }
+
+    public static boolean isAuditClassOutput()
+    {
+        return auditClassOutput;
+    }
+
+    /**
+     * 内存编译时同时把class写到agent/agentClass, 只用于审计, 不参与热更
+     */
+    public static void setAuditClassOutput(boolean auditClassOutput)
+    {
+        AgentConfig.auditClassOutput = auditClassOutput;
+    }
+
+    public static CompileProfile getCompileProfile()
+    {
+        return compileProfile;
+    }
+
+    /**
+     * 编译配置, 例如FAST跳过注解处理和调试信息
+     */
+    public static void setCompileProfile(CompileProfile compileProfile)
+    {
+        AgentConfig.compileProfile = compileProfile == null ? CompileProfile.DEFAULT : compileProfile;
+    }
+
+    public static boolean isBatchRedefine()
+    {
+        return batchRedefine;
+    }
+
+    /**
+     * 批量替换: 所有class一次redefineClasses调用, 只有一次停顿且全部成功或全部失败; 关闭后逐个替换
+     */
+    public static void setBatchRedefine(boolean batchRedefine)
+    {
+        AgentConfig.batchRedefine = batchRedefine;
+    }
+
+    public static boolean isChangeIndex()
+    {
+        return changeIndex;
+    }
+
+    /**
+     * 变化索引: 记录源文件和class的hash(agent/agentIndex), 只编译和替换发生变化的部分, 需要在Agent.initialize()之前设置
+     */
+    public static void setChangeIndex(boolean changeIndex)
+    {
+        AgentConfig.changeIndex = changeIndex;
+    }
+
+    public static boolean isWatch()
+    {
+        return watch;
+    }
+
+    /**
+     * 初始化时开启agentJava/agentClass目录监听, 文件变化后自动热更
+     */
+    public static void setWatch(boolean watch)
+    {
+        AgentConfig.watch = watch;
+    }
+
+    public static long getWatchDebounceMillis()
+    {
+        return watchDebounceMillis;
+    }
+
+    /**
+     * 防抖窗口, 窗口内连续的文件变化合并成一批
+     */
+    public static void setWatchDebounceMillis(long watchDebounceMillis)
+    {
+        AgentConfig.watchDebounceMillis = watchDebounceMillis;
+    }
+
+    public static long getWatchMaxDelayMillis()
+    {
+        return watchMaxDelayMillis;
+    }
+
+    /**
+     * 一批最长等待时间, 持续有文件变化时到时间也会开始热更
+     */
+    public static void setWatchMaxDelayMillis(long watchMaxDelayMillis)
+    {
+        AgentConfig.watchMaxDelayMillis = watchMaxDelayMillis;
+    }
+
+    public static int getWatchQueueSize()
+    {
+        return watchQueueSize;
+    }
+
+    public static void setWatchQueueSize(int watchQueueSize)
+    {
+        AgentConfig.watchQueueSize = watchQueueSize;
+    }
+
+    public static int getCompileParallelism()
+    {
+        return compileParallelism;
+    }
+
+    /**
+     * 并行编译线程数上限, 1表示不并行; 默认cpu核数的1/4, 避免编译占用游戏逻辑线程
+     */
+    public static void setCompileParallelism(int compileParallelism)
+    {
+        AgentConfig.compileParallelism = Math.max(1, compileParallelism);
+    }
+
+    public static boolean isRollback()
+    {
+        return rollback;
+    }
+
+    /**
+     * 回滚: 第一次替换某个class前从加载器读取它的class文件记录下来, 之后可以按热更id或版本回滚, 不需要编译
+     */
+    public static void setRollback(boolean rollback)
+    {
+        AgentConfig.rollback = rollback;
+    }
+
+    public static boolean isRetransformCapture()
+    {
+        return retransformCapture;
+    }
+
+    /**
+     * 加载器中没有class文件(动态生成)或者已经被替换过但没有历史的class, 通过retransform获取当前字节码
+     * retransform和redefine一样会进入安全点, 开启后第一次热更这类class有两次停顿, 停顿时间合并计入结果; 关闭时这类热更不能回滚
+     */
+    public static void setRetransformCapture(boolean retransformCapture)
+    {
+        AgentConfig.retransformCapture = retransformCapture;
+    }
+
+    public static int getRollbackVersions()
+    {
+        return rollbackVersions;
+    }
+
+    /**
+     * 每个class保留的历史版本数(不包括第一次替换前的原始版本), 同时也是保留的热更记录数
+     */
+    public static void setRollbackVersions(int rollbackVersions)
+    {
+        AgentConfig.rollbackVersions = Math.max(1, rollbackVersions);
+    }
+
+    public static int getCompileCacheSize()
+    {
+        return compileCacheSize;
+    }
+
+    /**
+     * 持久化编译缓存(agent/agentCache)最多保留的编译单元数, 0表示不使用, 需要在Agent.initialize()之前设置
+     * 重启时源码、类路径、JDK版本和编译配置都没有变化的编译单元直接使用缓存的字节码, 不再编译
+     */
+    public static void setCompileCacheSize(int compileCacheSize)
+    {
+        AgentConfig.compileCacheSize = Math.max(0, compileCacheSize);
+    }
+
+    public static boolean isSkipUnchanged()
+    {
+        return skipUnchanged;
+    }
+
+    /**
+     * 替换前比较字节码指纹(忽略行号等调试信息), 和当前生效的class相同则不替换, 避免无意义的退优化
+     */
+    public static void setSkipUnchanged(boolean skipUnchanged)
+    {
+        AgentConfig.skipUnchanged = skipUnchanged;
+    }
+
+    public static String getListenHost()
+    {
+        return listenHost;
+    }
+
+    /**
+     * 热更监听(PatchListener)地址, 默认只监听回环地址
+     */
+    public static void setListenHost(String listenHost)
+    {
+        AgentConfig.listenHost = listenHost;
+    }
+
+    public static String getListenToken()
+    {
+        return listenToken;
+    }
+
+    /**
+     * 热更监听和FleetCoordinator共用的密钥, 请求使用HMAC-SHA256签名, 节点只接受签名正确的请求
+     * 为空时不签名, 热更监听只能绑定回环地址
+     */
+    public static void setListenToken(String listenToken)
+    {
+        AgentConfig.listenToken = listenToken == null ? "" : listenToken;
+    }
+
+    public static int getListenPort()
+    {
+        return listenPort;
+    }
+
+    /**
+     * 热更监听端口, 初始化时大于等于0则开启监听, 接收FleetCoordinator推送的热更包
+     */
+    public static void setListenPort(int listenPort)
+    {
+        AgentConfig.listenPort = listenPort;
+    }
+
+    public static boolean isPreflightCheck()
+    {
+        return preflightCheck;
+    }
+
+    /**
+     * 替换前解析class文件, 和当前生效的class比较父类/接口/字段/方法/修饰符, 不兼容时直接拒绝, 不产生停顿
+     */
+    public static void setPreflightCheck(boolean preflightCheck)
+    {
+        AgentConfig.preflightCheck = preflightCheck;
+    }
+
+    public static int getMetricsHistory()
+    {
+        return metricsHistory;
+    }
+
+    /**
+     * JMX(common.agent:type=AgentMetrics)输出最近多少次热更的结果
+     */
+    public static void setMetricsHistory(int metricsHistory)
+    {
+        AgentConfig.metricsHistory = Math.max(1, metricsHistory);
+    }
+
+    public static long getJitWindowMillis()
+    {
+        return jitWindowMillis;
+    }
+
+    /**
+     * 统计热更前后JIT编译耗时的窗口长度
+     */
+    public static void setJitWindowMillis(long jitWindowMillis)
+    {
+        AgentConfig.jitWindowMillis = Math.max(1000L, jitWindowMillis);
+    }
+
+    public static boolean isCompileProfiling()
+    {
+        return compileProfiling;
+    }
+
+    /**
+     * 编译分析: 记录javac各阶段耗时、最慢的源文件和类路径实际读取的class, 每次编译后输出报告
+     * 有一定开销, 只在排查编译慢时开启, 运行时修改需要通过ScriptManager.SetCompileProfiling生效
+     */
+    public static void setCompileProfiling(boolean compileProfiling)
+    {
+        AgentConfig.compileProfiling = compileProfiling;
+    }
+
+    public static int getPatchQueueSize()
+    {
+        return patchQueueSize;
+    }
+
+    /**
+     * 异步热更(Agent.agentAsync等)排队的上限, 超过时立即失败, 需要在第一次异步热更之前设置
+     */
+    public static void setPatchQueueSize(int patchQueueSize)
+    {
+        AgentConfig.patchQueueSize = Math.max(1, patchQueueSize);
+    }
+
+    public static long getScheduleMaxWaitMillis()
+    {
+        return scheduleMaxWaitMillis;
+    }
+
+    /**
+     * 调度的热更(Agent.getScheduler())最长等待时间, 超过后不管负载直接替换
+     */
+    public static void setScheduleMaxWaitMillis(long scheduleMaxWaitMillis)
+    {
+        AgentConfig.scheduleMaxWaitMillis = scheduleMaxWaitMillis;
+    }
+
+    public static long getScheduleCheckMillis()
+    {
+        return scheduleCheckMillis;
+    }
+
+    /**
+     * 检查安静窗口(调用负载探针)的间隔, 需要在第一次调用Agent.getScheduler()之前设置
+     */
+    public static void setScheduleCheckMillis(long scheduleCheckMillis)
+    {
+        AgentConfig.scheduleCheckMillis = Math.max(1, scheduleCheckMillis);
+    }
+
+    public static String getQuietHours()
+    {
+        return quietHours;
+    }
+
+    /**
+     * 允许调度的热更替换的时间段, 例如"03:00-06:00,13:30-14:00", 空字符串表示任意时间, 需要在第一次调用Agent.getScheduler()之前设置
+     */
+    public static void setQuietHours(String quietHours)
+    {
+        AgentConfig.quietHours = quietHours == null ? "" : quietHours;
+    }
+
+    public static long getPauseBudgetMillis()
+    {
+        return pauseBudgetMillis;
+    }
+
+    /**
+     * 停顿预算: 大于0时目录热更按估算停顿拆分成多批替换, 每批只读取这一批的class文件, 同一个外部类的class在同一批
+     * 不再是整批全部成功或全部失败, 批次之间新旧代码同时运行, 某一批失败时回滚之前的批次(需要开启回滚)
+     */
+    public static void setPauseBudgetMillis(long pauseBudgetMillis)
+    {
+        AgentConfig.pauseBudgetMillis = Math.max(0, pauseBudgetMillis);
+    }
+
+    public static boolean isRuntimeClassPath()
+    {
+        return runtimeClassPath;
+    }
+
+    /**
+     * 编译脚本时优先从运行中JVM已加载的类(通过它们的定义加载器)解析引用的符号, 应用加载器不是URLClassLoader时也能编译
+     * 需要在Agent.initialize()之前设置
+     */
+    public static void setRuntimeClassPath(boolean runtimeClassPath)
+    {
+        AgentConfig.runtimeClassPath = runtimeClassPath;
+    }
+}
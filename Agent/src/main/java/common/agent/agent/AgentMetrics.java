@@ -0,0 +1,455 @@
+package common.agent.agent;
+
+import common.agent.script.CompileReport;
+import common.agent.script.CompileResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.instrument.ClassDefinition;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AgentMetrics
+ * <p>
+ * 热更指标收集, Agent.initialize()时注册为平台MBean
+ * 每秒采样一次CompilationMXBean的JIT编译总耗时, 用于计算每次热更前后窗口内的JIT编译耗时
+ */
+public class AgentMetrics implements AgentMetricsMXBean
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AgentMetrics.class);
+
+    public static final String OBJECT_NAME = "common.agent:type=AgentMetrics";
+
+    private static final long SampleMillis = 1000;  // JIT采样间隔
+
+    private static final AgentMetrics INSTANCE = new AgentMetrics();
+
+    private final LatencyHistogram      attachLatency       = new LatencyHistogram();
+    private final LatencyHistogram      compileBatchLatency = new LatencyHistogram();
+    private final LatencyHistogram      compileFileAvgLatency = new LatencyHistogram();
+    private final LatencyHistogram      compileSourceLatency = new LatencyHistogram();
+    private final LatencyHistogram      pauseLatency        = new LatencyHistogram();
+    private final LatencyHistogram      scheduleWaitLatency = new LatencyHistogram();
+    private final AtomicLong            scheduleForcedCount = new AtomicLong();
+    private final AtomicLong            patchCount          = new AtomicLong();
+    private final AtomicLong            failedPatchCount    = new AtomicLong();
+    private final AtomicLong            rejectedPatchCount  = new AtomicLong();
+    private final AtomicLong            classesRedefined    = new AtomicLong();
+    private final AtomicLong            classesSkipped      = new AtomicLong();
+    private final AtomicLong            sourceBytesRead     = new AtomicLong();
+    private final AtomicLong            classBytesRedefined = new AtomicLong();
+    private final Deque<PatchOutcome>   recentPatches       = new ArrayDeque<>();   // 最近N次热更
+    private final List<PatchOutcome>    pendingJit          = new ArrayList<>();    // 等待热更后窗口结束的记录
+    private final Deque<long[]>         jitSamples          = new ArrayDeque<>();   // JIT采样 {时间, 总耗时}
+    private final ThreadLocal<Long>     pendingCompileNanos = new ThreadLocal<>();  // 同一线程上一次编译的耗时, 替换时记录到热更结果
+    private final CompilationMXBean     compilation;
+    private volatile String             lastCompileReport;  // 最近一次编译分析报告
+
+    private ScheduledExecutorService    sampler;
+    private boolean                     registered;
+
+    private AgentMetrics()
+    {
+        CompilationMXBean bean = ManagementFactory.getCompilationMXBean();
+        compilation = bean != null && bean.isCompilationTimeMonitoringSupported() ? bean : null;
+    }
+
+    public static AgentMetrics getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * 注册MBean并开始JIT采样, 重复调用无影响
+     */
+    static synchronized void register()
+    {
+        if (INSTANCE.registered)
+            return;
+
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name))
+                server.registerMBean(INSTANCE, name);
+            INSTANCE.registered = true;
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("register agent metrics mbean error.", e);
+            return;
+        }
+
+        if (INSTANCE.compilation != null)
+        {
+            INSTANCE.sampler = Executors.newSingleThreadScheduledExecutor(r ->
+            {
+                Thread thread = new Thread(r, "agent-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            INSTANCE.sampler.scheduleAtFixedRate(INSTANCE::_sampleJit, 0, SampleMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 注销MBean并停止采样
+     */
+    static synchronized void unregister()
+    {
+        if (!INSTANCE.registered)
+            return;
+
+        INSTANCE.registered = false;
+        if (INSTANCE.sampler != null)
+        {
+            INSTANCE.sampler.shutdownNow();
+            INSTANCE.sampler = null;
+        }
+
+        try
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+        }
+        catch (Exception e)
+        {
+            LOGGER.error("unregister agent metrics mbean error.", e);
+        }
+    }
+
+    /**
+     * 记录一次调度的热更在队列中等待安静窗口的时间
+     *
+     * @param waitNanos 等待时间
+     * @param forced    是否因为超过最长等待时间而强制替换
+     */
+    static void recordScheduleWait(long waitNanos, boolean forced)
+    {
+        INSTANCE.scheduleWaitLatency.record(waitNanos);
+        if (forced)
+            INSTANCE.scheduleForcedCount.incrementAndGet();
+    }
+
+    static void recordAttach(long nanos)
+    {
+        INSTANCE.attachLatency.record(nanos);
+    }
+
+    /**
+     * 记录一次编译, 同一线程之后的替换会把编译耗时记录到热更结果中
+     */
+    static void recordCompile(CompileResult result)
+    {
+        int files = Math.max(1, result.getClassNames().size());
+        INSTANCE.compileBatchLatency.record(result.getCompileNanos());
+        INSTANCE.compileFileAvgLatency.record(result.getCompileNanos() / files);
+        INSTANCE.sourceBytesRead.addAndGet(result.getSourceBytes());
+        INSTANCE.pendingCompileNanos.set(result.getCompileNanos());
+        if (result.getReport() != null)
+        {
+            // 开启编译分析时才有每个源文件各阶段的实际耗时
+            for (CompileReport.SourceTiming timing : result.getReport().getSlowSources())
+            {
+                INSTANCE.compileSourceLatency.record(timing.getTotalNanos());
+            }
+            INSTANCE.lastCompileReport = result.getReport().toString();
+            LOGGER.info("compile report:\n" + INSTANCE.lastCompileReport);
+        }
+    }
+
+    /**
+     * 编译后没有需要替换的class, 丢弃同一线程记录的编译耗时
+     */
+    static void clearCompile()
+    {
+        INSTANCE.pendingCompileNanos.remove();
+    }
+
+    /**
+     * 记录一次替换
+     *
+     * @param desc        热更的文件/目录
+     * @param result      替换结果
+     * @param definitions 实际替换的class
+     */
+    static void recordRedefine(String desc, RedefineResult result, List<ClassDefinition> definitions)
+    {
+        AgentMetrics metrics = INSTANCE;
+        long bytes = 0;
+        for (ClassDefinition definition : definitions)
+        {
+            bytes += definition.getDefinitionClassFile().length;
+        }
+
+        Long compileNanos = metrics.pendingCompileNanos.get();
+        metrics.pendingCompileNanos.remove();
+
+        metrics.patchCount.incrementAndGet();
+        metrics.classesSkipped.addAndGet(result.getSkippedClasses().size());
+        if (result.isSuccess())
+        {
+            metrics.classesRedefined.addAndGet(definitions.size());
+            metrics.classBytesRedefined.addAndGet(bytes);
+        }
+        else
+        {
+            metrics.failedPatchCount.incrementAndGet();
+        }
+
+        if (result.isRejected())
+            metrics.rejectedPatchCount.incrementAndGet();
+        else if (!definitions.isEmpty())
+            metrics.pauseLatency.record(result.getPauseNanos());
+
+        long jitTotal = metrics._jitTotal();
+        PatchOutcome outcome = new PatchOutcome(desc, result, bytes, compileNanos == null ? 0 : compileNanos / 1000000.0, metrics._jitBefore(jitTotal), jitTotal);
+        metrics._addOutcome(outcome, jitTotal >= 0 && metrics.sampler != null);
+    }
+
+    /**
+     * 记录一次没有走到替换的失败(编译失败、异常)
+     */
+    static void recordFailure(String desc, String error)
+    {
+        AgentMetrics metrics = INSTANCE;
+        Long compileNanos = metrics.pendingCompileNanos.get();
+        metrics.pendingCompileNanos.remove();
+
+        metrics.patchCount.incrementAndGet();
+        metrics.failedPatchCount.incrementAndGet();
+        metrics._addOutcome(new PatchOutcome(desc, compileNanos == null ? 0 : compileNanos / 1000000.0, error), false);
+    }
+
+    private void _addOutcome(PatchOutcome outcome, boolean waitJit)
+    {
+        synchronized (recentPatches)
+        {
+            recentPatches.addLast(outcome);
+            while (recentPatches.size() > AgentConfig.getMetricsHistory())
+            {
+                recentPatches.removeFirst();
+            }
+            if (waitJit)
+                pendingJit.add(outcome);
+        }
+        LOGGER.info("patch outcome: " + outcome);
+    }
+
+    private long _jitTotal()
+    {
+        return compilation == null ? -1 : compilation.getTotalCompilationTime();
+    }
+
+    /**
+     * 热更前一个窗口内的JIT编译耗时, 采样不足一个窗口时使用最早的采样
+     */
+    private long _jitBefore(long jitTotal)
+    {
+        if (jitTotal < 0)
+            return -1;
+
+        long from = System.currentTimeMillis() - AgentConfig.getJitWindowMillis();
+        synchronized (jitSamples)
+        {
+            long[] base = null;
+            for (long[] sample : jitSamples)
+            {
+                if (base == null || sample[0] <= from)
+                    base = sample;
+                else
+                    break;
+            }
+            return base == null ? -1 : jitTotal - base[1];
+        }
+    }
+
+    /**
+     * 采样JIT编译总耗时, 并填写已经结束窗口的热更后JIT耗时
+     */
+    private void _sampleJit()
+    {
+        try
+        {
+            long now = System.currentTimeMillis();
+            long total = _jitTotal();
+            long window = AgentConfig.getJitWindowMillis();
+            synchronized (jitSamples)
+            {
+                jitSamples.addLast(new long[]{now, total});
+                while (jitSamples.size() > 1 && jitSamples.peekFirst()[0] < now - window - SampleMillis)
+                {
+                    jitSamples.removeFirst();
+                }
+            }
+
+            synchronized (recentPatches)
+            {
+                Iterator<PatchOutcome> iterator = pendingJit.iterator();
+                while (iterator.hasNext())
+                {
+                    PatchOutcome outcome = iterator.next();
+                    if (outcome.getTime() + window <= now)
+                    {
+                        outcome.setJitMillisAfter(total - outcome.getJitTotalAtPatch());
+                        iterator.remove();
+                    }
+                }
+            }
+        }
+        catch (Throwable e)
+        {
+            LOGGER.error("sample jit error.", e);
+        }
+    }
+
+    @Override
+    public long getAttachCount()
+    {
+        return AgentAttacher.getAttachCount();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getAttachLatency()
+    {
+        return attachLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getCompileBatchLatency()
+    {
+        return compileBatchLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getCompileFileAvgLatency()
+    {
+        return compileFileAvgLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getCompileSourceLatency()
+    {
+        return compileSourceLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getPauseLatency()
+    {
+        return pauseLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getScheduleWaitLatency()
+    {
+        return scheduleWaitLatency.snapshot();
+    }
+
+    @Override
+    public long getScheduleForcedCount()
+    {
+        return scheduleForcedCount.get();
+    }
+
+    @Override
+    public long getPatchCount()
+    {
+        return patchCount.get();
+    }
+
+    @Override
+    public long getFailedPatchCount()
+    {
+        return failedPatchCount.get();
+    }
+
+    @Override
+    public long getRejectedPatchCount()
+    {
+        return rejectedPatchCount.get();
+    }
+
+    @Override
+    public long getClassesRedefined()
+    {
+        return classesRedefined.get();
+    }
+
+    @Override
+    public long getClassesSkipped()
+    {
+        return classesSkipped.get();
+    }
+
+    @Override
+    public long getSourceBytesRead()
+    {
+        return sourceBytesRead.get();
+    }
+
+    @Override
+    public long getClassBytesRedefined()
+    {
+        return classBytesRedefined.get();
+    }
+
+    @Override
+    public long getJitTotalCompilationMillis()
+    {
+        return _jitTotal();
+    }
+
+    @Override
+    public String getLastCompileReport()
+    {
+        return lastCompileReport;
+    }
+
+    @Override
+    public List<PatchOutcome> getRecentPatches()
+    {
+        synchronized (recentPatches)
+        {
+            return new ArrayList<>(recentPatches);
+        }
+    }
+
+    @Override
+    public void reset()
+    {
+        attachLatency.reset();
+        compileBatchLatency.reset();
+        compileFileAvgLatency.reset();
+        compileSourceLatency.reset();
+        pauseLatency.reset();
+        scheduleWaitLatency.reset();
+        scheduleForcedCount.set(0);
+        patchCount.set(0);
+        failedPatchCount.set(0);
+        rejectedPatchCount.set(0);
+        classesRedefined.set(0);
+        classesSkipped.set(0);
+        sourceBytesRead.set(0);
+        classBytesRedefined.set(0);
+        synchronized (recentPatches)
+        {
+            recentPatches.clear();
+            pendingJit.clear();
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package common.agent.agent;
+
+import java.util.List;
+
+/**
+ * AgentMetricsMXBean
+ * <p>
+ * 热更指标, 注册到平台MBeanServer: common.agent:type=AgentMetrics
+ */
+public interface AgentMetricsMXBean
+{
+    /**
+     * @return attach次数
+     */
+    long getAttachCount();
+
+    /**
+     * @return attach耗时
+     */
+    LatencyHistogram.Snapshot getAttachLatency();
+
+    /**
+     * @return 每批编译耗时
+     */
+    LatencyHistogram.Snapshot getCompileBatchLatency();
+
+    /**
+     * @return 每个源文件的平均编译耗时(一批的耗时 / 源文件数量), 每批记录一次, 不是单个文件的耗时分布
+     */
+    LatencyHistogram.Snapshot getCompileFileAvgLatency();
+
+    /**
+     * @return 单个源文件的编译耗时(javac各阶段之和), 只有开启编译分析(agent.compileProfiling)时记录
+     */
+    LatencyHistogram.Snapshot getCompileSourceLatency();
+
+    /**
+     * @return redefineClasses停顿(stop-the-world)
+     */
+    LatencyHistogram.Snapshot getPauseLatency();
+
+    /**
+     * @return 调度的热更(PatchScheduler)等待安静窗口的时间
+     */
+    LatencyHistogram.Snapshot getScheduleWaitLatency();
+
+    /**
+     * @return 没有等到安静窗口, 超过最长等待时间后强制替换的次数
+     */
+    long getScheduleForcedCount();
+
+    /**
+     * @return 热更次数(包括失败)
+     */
+    long getPatchCount();
+
+    long getFailedPatchCount();
+
+    /**
+     * @return 替换前结构检查不通过而拒绝的热更次数(包含在失败次数中, 没有停顿)
+     */
+    long getRejectedPatchCount();
+
+    /**
+     * @return 替换的class数量
+     */
+    long getClassesRedefined();
+
+    /**
+     * @return 字节码没有变化而跳过的class数量
+     */
+    long getClassesSkipped();
+
+    /**
+     * @return 编译读取的源文件字节数
+     */
+    long getSourceBytesRead();
+
+    /**
+     * @return 替换的字节码字节数
+     */
+    long getClassBytesRedefined();
+
+    /**
+     * @return JIT编译总耗时(毫秒), 不支持时为-1
+     */
+    long getJitTotalCompilationMillis();
+
+    /**
+     * @return 最近一次编译分析报告(agent.compileProfiling), 没有时为null
+     */
+    String getLastCompileReport();
+
+    /**
+     * @return 最近N次热更的结果, 按时间顺序
+     */
+    List<PatchOutcome> getRecentPatches();
+
+    /**
+     * 清空所有计数和直方图
+     */
+    void reset();
+}
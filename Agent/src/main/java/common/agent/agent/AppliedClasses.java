@@ -0,0 +1,145 @@
+package common.agent.agent;
+
+import com.google.common.io.ByteStreams;
+import common.agent.classfile.ClassFileFingerprint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassDefinition;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * AppliedClasses
+ * <p>
+ * 记录每个class当前生效的字节码指纹, 替换前过滤掉指纹没有变化的class
+ * 每次替换都会让class和依赖它的代码退出JIT编译, 没有变化的class不需要替换
+ * 指纹忽略调试信息, 只修改了行号的class也会被过滤
+ */
+class AppliedClasses
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(AppliedClasses.class);
+
+    private static final String DIRTY = "";     // 状态未知(例如逐个替换中途失败), 不会和任何指纹相同
+
+    private static final Map<Class<?>, String> applied = Collections.synchronizedMap(new WeakHashMap<Class<?>, String>());  // class -> 当前生效的指纹
+
+    private AppliedClasses()
+    {
+    }
+
+    /**
+     * 过滤掉指纹没有变化的class
+     * 没有替换过的class使用加载器中原始class文件的指纹
+     *
+     * @param definitions  待替换的class
+     * @param fingerprints 输出, 需要替换的class -> 新的指纹, 替换成功后传给record
+     * @return 需要替换的class
+     */
+    static List<ClassDefinition> filterChanged(List<ClassDefinition> definitions, Map<Class<?>, String> fingerprints)
+    {
+        List<ClassDefinition> changed = new ArrayList<>(definitions.size());
+        for (ClassDefinition definition : definitions)
+        {
+            Class<?> clazz = definition.getDefinitionClass();
+            String fingerprint;
+            try
+            {
+                fingerprint = ClassFileFingerprint.fingerprint(definition.getDefinitionClassFile());
+            }
+            catch (IOException e)
+            {
+                // 解析失败交给redefineClasses处理
+                LOGGER.warn("class fingerprint error: " + clazz.getName() + ", " + e.getMessage());
+                changed.add(definition);
+                continue;
+            }
+
+            if (!fingerprint.equals(_getApplied(clazz)))
+            {
+                changed.add(definition);
+                fingerprints.put(clazz, fingerprint);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * 替换成功后记录新的指纹
+     */
+    static void record(Map<Class<?>, String> fingerprints)
+    {
+        applied.putAll(fingerprints);
+    }
+
+    /**
+     * 替换失败且部分class可能已经生效(逐个替换模式), 这些class下次不做过滤
+     */
+    static void invalidate(List<ClassDefinition> definitions)
+    {
+        for (ClassDefinition definition : definitions)
+        {
+            applied.put(definition.getDefinitionClass(), DIRTY);
+        }
+    }
+
+    /**
+     * @return bytes是否和记录的当前生效的指纹一致, 没有记录时认为一致
+     */
+    static boolean isApplied(Class<?> clazz, byte[] bytes)
+    {
+        String fingerprint = applied.get(clazz);
+        if (fingerprint == null)
+            return true;
+
+        try
+        {
+            return fingerprint.equals(ClassFileFingerprint.fingerprint(bytes));
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    private static String _getApplied(Class<?> clazz)
+    {
+        String fingerprint = applied.get(clazz);
+        if (fingerprint != null)
+            return fingerprint;
+
+        // 没有替换过, 当前生效的就是加载器中的class文件
+        try
+        {
+            byte[] bytes = loadClassFile(clazz);
+            fingerprint = bytes == null ? DIRTY : ClassFileFingerprint.fingerprint(bytes);
+        }
+        catch (IOException e)
+        {
+            fingerprint = DIRTY;
+        }
+
+        applied.put(clazz, fingerprint);
+        return fingerprint;
+    }
+
+    /**
+     * 从加载器中读取class文件
+     *
+     * @return class文件, 不存在(例如动态生成的class)时返回null
+     */
+    static byte[] loadClassFile(Class<?> clazz) throws IOException
+    {
+        ClassLoader loader = clazz.getClassLoader();
+        String resource = clazz.getName().replace('.', '/') + ".class";
+        try (InputStream in = loader != null ? loader.getResourceAsStream(resource) : ClassLoader.getSystemResourceAsStream(resource))
+        {
+            return in == null ? null : ByteStreams.toByteArray(in);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package common.agent.agent;
+
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ClassRedefiner
+ * <p>
+ * class替换
+ * 批量模式下所有class通过一次redefineClasses调用替换: 只有一次安全点停顿, 要么全部生效要么全部不生效
+ */
+public class ClassRedefiner
+{
+    private ClassRedefiner()
+    {
+    }
+
+    /**
+     * 一次redefineClasses调用替换所有class
+     *
+     * @param instrumentation instrumentation
+     * @param definitions     待替换的class
+     * @return 替换结果, 包含停顿时间和导致失败的类
+     */
+    public static RedefineResult redefine(Instrumentation instrumentation, List<ClassDefinition> definitions)
+    {
+        RedefineResult result = new RedefineResult(getClassNames(definitions));
+        result.setBatch(true);
+        if (definitions.isEmpty())
+        {
+            result.setSuccess(true);
+            return result;
+        }
+
+        long start = System.nanoTime();
+        try
+        {
+            instrumentation.redefineClasses(definitions.toArray(new ClassDefinition[definitions.size()]));
+            result.setPauseNanos(System.nanoTime() - start);
+            result.setSuccess(true);
+        }
+        catch (Throwable e)
+        {
+            result.setPauseNanos(System.nanoTime() - start);
+            result.setFailed(findFailedClass(e, definitions), e);
+        }
+        return result;
+    }
+
+    /**
+     * 逐个替换class, 每个class一次停顿, 中途失败时前面的class已经生效
+     *
+     * @param instrumentation instrumentation
+     * @param definitions     待替换的class
+     * @return 替换结果, 停顿时间为所有调用之和
+     */
+    public static RedefineResult redefineEach(Instrumentation instrumentation, List<ClassDefinition> definitions)
+    {
+        RedefineResult result = new RedefineResult(getClassNames(definitions));
+        result.setBatch(false);
+
+        long pause = 0;
+        for (ClassDefinition definition : definitions)
+        {
+            long start = System.nanoTime();
+            try
+            {
+                instrumentation.redefineClasses(definition);
+                pause += System.nanoTime() - start;
+            }
+            catch (Throwable e)
+            {
+                result.setPauseNanos(pause + System.nanoTime() - start);
+                result.setFailed(definition.getDefinitionClass().getName(), e);
+                return result;
+            }
+        }
+
+        result.setPauseNanos(pause);
+        result.setSuccess(true);
+        return result;
+    }
+
+    /**
+     * 从异常信息中找出导致失败的类
+     * jvm在VerifyError/ClassFormatError等异常信息中会带上类名(内部名或者全名), UnsupportedOperationException不带类名
+     *
+     * @return 类全名, 无法确定时返回null
+     */
+    static String findFailedClass(Throwable e, List<ClassDefinition> definitions)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Throwable t = e; t != null; t = t.getCause())
+        {
+            if (t.getMessage() != null)
+                builder.append(t.getMessage()).append('\n');
+        }
+        String message = builder.toString();
+        if (message.isEmpty())
+            return null;
+
+        // 优先匹配最长的类名, 避免Outer匹配到Outer$Inner的信息
+        String found = null;
+        for (ClassDefinition definition : definitions)
+        {
+            String name = definition.getDefinitionClass().getName();
+            if (found != null && found.length() >= name.length())
+                continue;
+
+            if (containsClassName(message, name) || containsClassName(message, name.replace('.', '/')))
+                found = name;
+        }
+        return found;
+    }
+
+    private static boolean containsClassName(String message, String name)
+    {
+        int index = message.indexOf(name);
+        while (index >= 0)
+        {
+            int end = index + name.length();
+            // 类名后面不能紧跟标识符字符, 否则是另一个类
+            if (end >= message.length() || !Character.isJavaIdentifierPart(message.charAt(end)))
+                return true;
+            index = message.indexOf(name, index + 1);
+        }
+        return false;
+    }
+
+    static List<String> getClassNames(List<ClassDefinition> definitions)
+    {
+        List<String> names = new ArrayList<>(definitions.size());
+        for (ClassDefinition definition : definitions)
+        {
+            names.add(definition.getDefinitionClass().getName());
+        }
+        return names;
+    }
+}
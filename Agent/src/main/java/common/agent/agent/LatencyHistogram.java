@@ -0,0 +1,144 @@
+package common.agent.agent;
+
+import java.util.Arrays;
+
+/**
+ * LatencyHistogram
+ * <p>
+ * 固定分桶的耗时直方图, 分位数取所在桶的上界
+ */
+public class LatencyHistogram
+{
+    /**
+     * 桶的上界(毫秒), 最后一个桶没有上界
+     */
+    private static final double[] BOUNDS = {0.1, 0.5, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    /**
+     * 直方图快照, 通过JMX以CompositeData形式输出
+     */
+    public static class Snapshot
+    {
+        private final long     count;
+        private final double   totalMillis;
+        private final double   maxMillis;
+        private final long[]   buckets;
+
+        Snapshot(long count, double totalMillis, double maxMillis, long[] buckets)
+        {
+            this.count = count;
+            this.totalMillis = totalMillis;
+            this.maxMillis = maxMillis;
+            this.buckets = buckets;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public double getTotalMillis()
+        {
+            return totalMillis;
+        }
+
+        public double getMeanMillis()
+        {
+            return count == 0 ? 0 : totalMillis / count;
+        }
+
+        public double getMaxMillis()
+        {
+            return maxMillis;
+        }
+
+        public double getP50Millis()
+        {
+            return _percentile(0.5);
+        }
+
+        public double getP90Millis()
+        {
+            return _percentile(0.9);
+        }
+
+        public double getP99Millis()
+        {
+            return _percentile(0.99);
+        }
+
+        /**
+         * @return 每个桶的上界(毫秒), 与getBuckets()一一对应, 最后一个桶没有上界
+         */
+        public double[] getBucketBounds()
+        {
+            return BOUNDS.clone();
+        }
+
+        /**
+         * @return 每个桶的次数, 比getBucketBounds()多一个(超过最大上界)
+         */
+        public long[] getBuckets()
+        {
+            return buckets.clone();
+        }
+
+        private double _percentile(double percent)
+        {
+            if (count == 0)
+                return 0;
+
+            long target = (long) Math.ceil(count * percent);
+            long sum = 0;
+            for (int i = 0; i < buckets.length; i++)
+            {
+                sum += buckets[i];
+                if (sum >= target)
+                    return i < BOUNDS.length ? Math.min(BOUNDS[i], maxMillis) : maxMillis;
+            }
+            return maxMillis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("count=%d, mean=%.3fms, p99=%.3fms, max=%.3fms", count, getMeanMillis(), getP99Millis(), maxMillis);
+        }
+    }
+
+    private long         count;
+    private long         totalNanos;
+    private long         maxNanos;
+    private final long[] buckets = new long[BOUNDS.length + 1];
+
+    public synchronized void record(long nanos)
+    {
+        if (nanos < 0)
+            return;
+
+        count++;
+        totalNanos += nanos;
+        maxNanos = Math.max(maxNanos, nanos);
+
+        double millis = nanos / 1000000.0;
+        int index = 0;
+        while (index < BOUNDS.length && millis > BOUNDS[index])
+        {
+            index++;
+        }
+        buckets[index]++;
+    }
+
+    public synchronized Snapshot snapshot()
+    {
+        return new Snapshot(count, totalNanos / 1000000.0, maxNanos / 1000000.0, buckets.clone());
+    }
+
+    public synchronized void reset()
+    {
+        count = 0;
+        totalNanos = 0;
+        maxNanos = 0;
+        Arrays.fill(buckets, 0);
+    }
+}
@@ -0,0 +1,16 @@
+package common.agent.agent;
+
+/**
+ * LoadProbe
+ * <p>
+ * 应用提供的负载探针, PatchScheduler据此判断当前是否是替换class的安静窗口
+ * 例如: () -> tickCostMillis < 5 &amp;&amp; onlineCount < 1000 &amp;&amp; taskQueue.size() < 100
+ * 在调度线程中周期调用, 需要很快返回且线程安全
+ */
+public interface LoadProbe
+{
+    /**
+     * @return 当前负载是否足够低, 可以承受一次safepoint停顿和之后的JIT重新编译
+     */
+    boolean isQuiet();
+}
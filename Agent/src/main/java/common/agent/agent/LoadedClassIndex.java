@@ -0,0 +1,339 @@
+package common.agent.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.ref.WeakReference;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LoadedClassIndex
+ * <p>
+ * 已加载类的索引, 类全名 -> 所有加载器中的Class, 替换时按名字查找目标class, 不经过Class.forName
+ * Class.forName只能找到Agent自己的加载器能看到的类(插件、分区加载器中的类找不到), 还会加载并初始化还没有用到的类
+ * 安装时扫描一次getAllLoadedClasses(), 之后由transformer增量记录新加载的类(类名 + 加载器的弱引用),
+ * 每次查找和后台每秒一次把记录合并到索引中; 待合并的记录有上限, 超过时丢弃并在下次查找时重新扫描一次
+ * 查找不到时(还没有合并的类定义失败、记录被丢弃)重新扫描一次, 两次扫描之间至少间隔RescanIntervalNanos
+ * 只持有弱引用, 不阻止插件加载器卸载, 合并时清理已经卸载的类
+ */
+class LoadedClassIndex
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadedClassIndex.class);
+
+    private static final int  MaxPending = 65536;      // 待合并记录的上限
+    private static final long DrainMillis = 1000;      // 后台合并间隔
+    private static final long PendingRetryNanos = TimeUnit.SECONDS.toNanos(5);      // 记录之后多久仍然没有定义视为定义失败
+    private static final long RescanIntervalNanos = TimeUnit.SECONDS.toNanos(1);    // 查找不到时重新扫描的最小间隔, 一批替换中很多没有加载过的类只扫描一次
+
+    /**
+     * 新加载的类, 定义之前记录, 合并时再从加载器中取得Class
+     */
+    private static class Pending
+    {
+        final String                     className;
+        final WeakReference<ClassLoader> loader;    // null表示启动类加载器
+        final long                       nanos;     // 记录时间
+
+        Pending(String className, ClassLoader loader)
+        {
+            this.className = className;
+            this.loader = loader == null ? null : new WeakReference<>(loader);
+            this.nanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * 记录新加载的类, 不修改字节码
+     */
+    private static class LoadListener implements ClassFileTransformer
+    {
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer)
+        {
+            // redefine/retransform不是新加载, 运行时生成的匿名类没有名字
+            if (classBeingRedefined != null || className == null)
+                return null;
+
+            if (pendingCount.incrementAndGet() > MaxPending)
+            {
+                pendingCount.decrementAndGet();
+                overflow = true;
+                return null;
+            }
+            pending.add(new Pending(className.replace('/', '.'), loader));
+            return null;
+        }
+    }
+
+    private static final ConcurrentLinkedQueue<Pending>               pending = new ConcurrentLinkedQueue<>();   // 待合并的新加载的类
+    private static final AtomicInteger                                pendingCount = new AtomicInteger();
+    private static volatile boolean                                   overflow;                              // 待合并记录超过上限, 需要重新扫描
+    private static final LoadListener                                 listener = new LoadListener();
+    private static final Map<String, List<WeakReference<Class<?>>>>   classes = new HashMap<>();             // 类全名 -> 已加载的class
+    private static Instrumentation                                    installed;                             // 已经安装的instrumentation
+    private static ScheduledExecutorService                           drainer;                               // 后台合并线程
+    private static long                                               scanNanos;                             // 上次扫描的时间
+
+    private LoadedClassIndex()
+    {
+    }
+
+    /**
+     * 安装索引, 同一个instrumentation只扫描一次
+     */
+    static synchronized void install(Instrumentation instrumentation)
+    {
+        if (installed == instrumentation)
+            return;
+
+        uninstall();
+
+        // 先注册监听再扫描, 扫描期间加载的类合并时重复记录会被忽略
+        instrumentation.addTransformer(listener, false);
+        installed = instrumentation;
+        _scan();
+
+        drainer = Executors.newSingleThreadScheduledExecutor(r ->
+        {
+            Thread thread = new Thread(r, "agent-class-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        drainer.scheduleWithFixedDelay(LoadedClassIndex::_drainSafely, DrainMillis, DrainMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 移除监听并清空索引
+     */
+    static synchronized void uninstall()
+    {
+        if (drainer != null)
+        {
+            drainer.shutdownNow();
+            drainer = null;
+        }
+        if (installed != null)
+        {
+            installed.removeTransformer(listener);
+            installed = null;
+        }
+        classes.clear();
+        pending.clear();
+        pendingCount.set(0);
+        overflow = false;
+    }
+
+    static boolean isInstalled()
+    {
+        return installed != null;
+    }
+
+    /**
+     * @param className 类全名(内部类为Outer$Inner)
+     * @return 所有加载器中已加载的class, 没有加载过时为空
+     */
+    static synchronized List<Class<?>> find(String className)
+    {
+        List<Class<?>> result = _find(className);
+        if (result.isEmpty() && _canRescan())
+        {
+            // 合并之后仍然找不到, 可能是记录之前加载的, 重新扫描确认
+            _scan();
+            result = _find(className);
+        }
+        return result;
+    }
+
+    /**
+     * @param className 类全名
+     * @param loader    定义加载器, null表示启动类加载器
+     * @return 该加载器定义的class, 没有时为null
+     */
+    static synchronized Class<?> find(String className, ClassLoader loader)
+    {
+        Class<?> clazz = _find(className, loader);
+        if (clazz == null && _canRescan())
+        {
+            _scan();
+            clazz = _find(className, loader);
+        }
+        return clazz;
+    }
+
+    private static boolean _canRescan()
+    {
+        return installed != null && System.nanoTime() - scanNanos >= RescanIntervalNanos;
+    }
+
+    private static Class<?> _find(String className, ClassLoader loader)
+    {
+        for (Class<?> clazz : _find(className))
+        {
+            if (clazz.getClassLoader() == loader)
+                return clazz;
+        }
+        return null;
+    }
+
+    private static List<Class<?>> _find(String className)
+    {
+        _drain();
+
+        List<WeakReference<Class<?>>> refs = classes.get(className);
+        if (refs == null)
+            return Collections.emptyList();
+
+        List<Class<?>> result = new ArrayList<>(refs.size());
+        for (WeakReference<Class<?>> ref : refs)
+        {
+            Class<?> clazz = ref.get();
+            if (clazz != null)
+                result.add(clazz);
+        }
+        return result;
+    }
+
+    private static synchronized void _drainSafely()
+    {
+        try
+        {
+            _drain();
+        }
+        catch (Throwable e)
+        {
+            LOGGER.error("loaded class index drain error.", e);
+        }
+    }
+
+    /**
+     * 把新加载的类合并到索引中, 超过上限时重新扫描
+     */
+    private static void _drain()
+    {
+        if (installed == null)
+            return;
+
+        if (overflow)
+        {
+            _scan();
+            return;
+        }
+
+        // 按加载器分组, 每个加载器只取一次它已加载的类, 不通过Class.forName(可能触发加载或者重复定义)
+        Map<ClassLoader, List<Pending>> byLoader = new IdentityHashMap<>();
+        List<Pending> boot = new ArrayList<>();
+        Pending entry;
+        while ((entry = pending.poll()) != null)
+        {
+            pendingCount.decrementAndGet();
+            if (entry.loader == null)
+            {
+                boot.add(entry);
+                continue;
+            }
+
+            ClassLoader loader = entry.loader.get();
+            if (loader != null)     // 加载器已经卸载时丢弃
+                byLoader.computeIfAbsent(loader, k -> new ArrayList<>()).add(entry);
+        }
+
+        if (!boot.isEmpty())
+            _addDefined(null, boot);
+        for (Map.Entry<ClassLoader, List<Pending>> group : byLoader.entrySet())
+        {
+            _addDefined(group.getKey(), group.getValue());
+        }
+    }
+
+    /**
+     * 把加载器定义的指定类加入索引
+     * transformer在类定义之前调用, 还没有定义完成的类放回去下次再合并, 超过PendingRetryNanos仍然没有定义的(定义失败)丢弃
+     */
+    private static void _addDefined(ClassLoader loader, List<Pending> entries)
+    {
+        Map<String, Pending> names = new HashMap<>();
+        for (Pending entry : entries)
+        {
+            names.put(entry.className, entry);
+        }
+        for (Class<?> clazz : installed.getInitiatedClasses(loader))
+        {
+            if (clazz.getClassLoader() == loader && names.remove(clazz.getName()) != null)
+                _add(classes, clazz);
+        }
+
+        long now = System.nanoTime();
+        for (Pending entry : names.values())
+        {
+            if (now - entry.nanos >= PendingRetryNanos)
+                continue;
+
+            if (pendingCount.incrementAndGet() <= MaxPending)
+                pending.add(entry);
+            else
+                pendingCount.decrementAndGet();
+        }
+    }
+
+    private static void _add(Map<String, List<WeakReference<Class<?>>>> index, Class<?> clazz)
+    {
+        List<WeakReference<Class<?>>> refs = index.get(clazz.getName());
+        if (refs == null)
+        {
+            refs = new ArrayList<>(1);
+            index.put(clazz.getName(), refs);
+        }
+
+        // 清理已经卸载的类, 同一个class只记录一次
+        for (int i = refs.size() - 1; i >= 0; i--)
+        {
+            Class<?> old = refs.get(i).get();
+            if (old == null)
+                refs.remove(i);
+            else if (old == clazz)
+                return;
+        }
+        refs.add(new WeakReference<Class<?>>(clazz));
+    }
+
+    private static void _scan()
+    {
+        long start = System.nanoTime();
+        overflow = false;
+        pending.clear();
+        pendingCount.set(0);
+
+        Class<?>[] loaded = installed.getAllLoadedClasses();
+        Map<String, List<WeakReference<Class<?>>>> index = new HashMap<>(loaded.length * 2);
+        for (Class<?> clazz : loaded)
+        {
+            if (clazz.isArray() || clazz.isPrimitive())
+                continue;
+
+            List<WeakReference<Class<?>>> refs = index.get(clazz.getName());
+            if (refs == null)
+            {
+                refs = new ArrayList<>(1);
+                index.put(clazz.getName(), refs);
+            }
+            refs.add(new WeakReference<Class<?>>(clazz));
+        }
+        classes.clear();
+        classes.putAll(index);
+        scanNanos = System.nanoTime();
+        LOGGER.info(String.format("loaded class index scanned, classes: %d, cost %.3fms", loaded.length, (scanNanos - start) / 1000000.0));
+    }
+}
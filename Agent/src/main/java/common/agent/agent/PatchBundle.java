@@ -0,0 +1,347 @@
+package common.agent.agent;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * PatchBundle
+ * <p>
+ * 热更包: 一个jar/zip文件, 包含待替换的class和清单(META-INF/MANIFEST.MF), 一个文件代替大量零散的class文件
+ * 清单格式与jar签名摘要相同:
+ * <pre>
+ * Manifest-Version: 1.0
+ * Patch-Id: 20171001-fix-team
+ *
+ * Name: logic/team/CTeam.class
+ * SHA-256-Digest: (base64)
+ * </pre>
+ * 读取时整个文件映射到内存, 直接解析中央目录, 不逐个打开文件; 清单中的每个class必须存在且摘要一致, 包中的class必须都在清单中
+ * 不支持zip64和加密
+ * 包可能来自网络, 中央目录中的偏移和长度都检查不超出文件范围, 解压后的总大小不超过MaxUncompressedSize, 任何错误都抛出IOException
+ */
+public class PatchBundle
+{
+    public static final String PatchIdAttribute = "Patch-Id";
+    public static final String DigestAttribute  = "SHA-256-Digest";
+
+    private static final int EndSignature     = 0x06054b50;   // 中央目录结束标记
+    private static final int CentralSignature = 0x02014b50;   // 中央目录文件头
+    private static final int LocalSignature   = 0x04034b50;   // 本地文件头
+    private static final int EndSize          = 22;
+    private static final int MaxCommentSize   = 0xFFFF;
+    private static final int Stored           = 0;
+    private static final int Deflated         = 8;
+    private static final String ClassSuffix   = ".class";
+    static final int MaxUncompressedSize      = 64 * 1024 * 1024;   // 解压后的总大小上限, 与FleetProtocol.MaxBundleSize相同
+
+    private final String              patchId;
+    private final Map<String, byte[]> classes;        // 类全名 -> 字节码, 按清单顺序
+
+    private PatchBundle(String patchId, Map<String, byte[]> classes)
+    {
+        this.patchId = patchId;
+        this.classes = classes;
+    }
+
+    public String getPatchId()
+    {
+        return patchId;
+    }
+
+    /**
+     * @return 类全名(内部类为Outer$Inner) -> 字节码
+     */
+    public Map<String, byte[]> getClasses()
+    {
+        return Collections.unmodifiableMap(classes);
+    }
+
+    /**
+     * 读取并校验热更包
+     *
+     * @param file 热更包
+     * @return 热更包内容
+     * @throws IOException 格式错误或者校验失败
+     */
+    public static PatchBundle read(File file) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("patch bundle too large: " + file);
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return _read(buffer, file.toString());
+        }
+    }
+
+    /**
+     * 把目录下所有class打成热更包, 清单中记录每个class的摘要
+     *
+     * @param classDir class根目录, 子目录为包名
+     * @param patchId  热更id
+     * @param out      输出的热更包
+     */
+    public static void create(File classDir, String patchId, File out) throws IOException
+    {
+        Map<String, byte[]> classes = new TreeMap<>();
+        _collect(classDir, "", classes);
+
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue(PatchIdAttribute, patchId);
+        for (Map.Entry<String, byte[]> entry : classes.entrySet())
+        {
+            Attributes attributes = new Attributes();
+            attributes.putValue(DigestAttribute, Base64.getEncoder().encodeToString(Hashing.sha256().hashBytes(entry.getValue()).asBytes()));
+            manifest.getEntries().put(entry.getKey(), attributes);
+        }
+
+        try (JarOutputStream jar = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(out)), manifest))
+        {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet())
+            {
+                jar.putNextEntry(new JarEntry(entry.getKey()));
+                jar.write(entry.getValue());
+                jar.closeEntry();
+            }
+        }
+    }
+
+    private static void _collect(File dir, String prefix, Map<String, byte[]> classes) throws IOException
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+            throw new IOException("not a directory: " + dir);
+
+        for (File file : files)
+        {
+            if (file.isDirectory())
+                _collect(file, prefix + file.getName() + "/", classes);
+            else if (file.getName().endsWith(ClassSuffix))
+                classes.put(prefix + file.getName(), Files.toByteArray(file));
+        }
+    }
+
+    /**
+     * 读取并校验内存中的热更包(例如通过网络收到的)
+     *
+     * @param bytes 热更包内容
+     * @return 热更包内容
+     * @throws IOException 格式错误或者校验失败
+     */
+    public static PatchBundle read(byte[] bytes) throws IOException
+    {
+        return _read(ByteBuffer.wrap(bytes), "bytes");
+    }
+
+    private static PatchBundle _read(ByteBuffer buffer, String file) throws IOException
+    {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        Map<String, byte[]> entries = _readEntries(buffer, file);
+
+        byte[] manifestBytes = entries.remove(JarFile.MANIFEST_NAME);
+        if (manifestBytes == null)
+            throw new IOException("patch bundle has no " + JarFile.MANIFEST_NAME + ": " + file);
+
+        Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+        String patchId = manifest.getMainAttributes().getValue(PatchIdAttribute);
+        if (patchId == null || patchId.trim().isEmpty())
+            throw new IOException("patch bundle has no " + PatchIdAttribute + ": " + file);
+
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        for (Map.Entry<String, Attributes> entry : manifest.getEntries().entrySet())
+        {
+            String name = entry.getKey();
+            if (!name.endsWith(ClassSuffix))
+                continue;
+
+            String digest = entry.getValue().getValue(DigestAttribute);
+            if (digest == null)
+                throw new IOException("manifest entry has no " + DigestAttribute + ": " + name);
+
+            byte[] bytes = entries.remove(name);
+            if (bytes == null)
+                throw new IOException("manifest entry not found in bundle: " + name);
+
+            byte[] actual = Hashing.sha256().hashBytes(bytes).asBytes();
+            if (!Base64.getEncoder().encodeToString(actual).equals(digest.trim()))
+                throw new IOException("digest mismatch: " + name);
+
+            classes.put(name.substring(0, name.length() - ClassSuffix.length()).replace('/', '.'), bytes);
+        }
+
+        for (String name : entries.keySet())
+        {
+            if (name.endsWith(ClassSuffix))
+                throw new IOException("class not listed in manifest: " + name);
+        }
+        return new PatchBundle(patchId.trim(), classes);
+    }
+
+    /**
+     * 解析中央目录, 读取所有文件内容
+     */
+    private static Map<String, byte[]> _readEntries(ByteBuffer buffer, String file) throws IOException
+    {
+        int end = _findEnd(buffer);
+        if (end < 0)
+            throw new IOException("not a zip file: " + file);
+
+        int count = buffer.getShort(end + 10) & 0xFFFF;
+        long centralOffset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || centralOffset == 0xFFFFFFFFL)
+            throw new IOException("zip64 is not supported: " + file);
+        if (centralOffset > end)
+            throw new IOException("bad central directory offset: " + file);
+
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        long total = 0;
+        int position = (int) centralOffset;
+        for (int i = 0; i < count; i++)
+        {
+            _checkRange(buffer, position, 46, "central directory", file);
+            if (buffer.getInt(position) != CentralSignature)
+                throw new IOException("bad central directory: " + file);
+
+            int flags = buffer.getShort(position + 8) & 0xFFFF;
+            int method = buffer.getShort(position + 10) & 0xFFFF;
+            long compressedSize = buffer.getInt(position + 20) & 0xFFFFFFFFL;
+            long size = buffer.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = buffer.getShort(position + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(position + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(position + 32) & 0xFFFF;
+            long localOffset = buffer.getInt(position + 42) & 0xFFFFFFFFL;
+            _checkRange(buffer, position + 46, nameLength + extraLength + commentLength, "central directory", file);
+            String name = _string(buffer, position + 46, nameLength);
+            position += 46 + nameLength + extraLength + commentLength;
+
+            if (name.endsWith("/"))
+                continue;
+            if ((flags & 1) != 0)
+                throw new IOException("encrypted entry is not supported: " + name);
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localOffset == 0xFFFFFFFFL)
+                throw new IOException("zip64 is not supported: " + name);
+
+            // 声明的大小在分配内存之前检查, 超过上限或者超出文件范围的直接拒绝
+            total += size;
+            if (total > MaxUncompressedSize)
+                throw new IOException("patch bundle too large after decompression, limit " + MaxUncompressedSize + ": " + file);
+            if (localOffset > buffer.limit())
+                throw new IOException("bad local header offset: " + name);
+
+            int local = (int) localOffset;
+            _checkRange(buffer, local, 30, "local header " + name, file);
+            if (buffer.getInt(local) != LocalSignature)
+                throw new IOException("bad local header: " + name);
+
+            // 本地头的扩展字段长度可能和中央目录不同
+            long data = local + 30L + (buffer.getShort(local + 26) & 0xFFFF) + (buffer.getShort(local + 28) & 0xFFFF);
+            if (data + compressedSize > buffer.limit())
+                throw new IOException("entry data out of range: " + name);
+            if (entries.put(name, _data(buffer, (int) data, method, (int) compressedSize, (int) size, name)) != null)
+                throw new IOException("duplicate entry: " + name);
+        }
+        return entries;
+    }
+
+    private static byte[] _data(ByteBuffer buffer, int offset, int method, int compressedSize, int size, String name) throws IOException
+    {
+        byte[] bytes = new byte[size];
+        if (method == Stored)
+        {
+            if (compressedSize != size)
+                throw new IOException("bad stored entry: " + name);
+            _get(buffer, offset, bytes, compressedSize);
+            return bytes;
+        }
+        if (method != Deflated)
+            throw new IOException("unsupported compression method " + method + ": " + name);
+
+        // nowrap模式需要额外一个字节
+        byte[] input = new byte[compressedSize + 1];
+        _get(buffer, offset, input, compressedSize);
+        Inflater inflater = new Inflater(true);
+        try
+        {
+            inflater.setInput(input);
+            // 解压出的内容不能多于声明的大小
+            int length = inflater.inflate(bytes);
+            if (length != size || inflater.inflate(new byte[1]) != 0)
+                throw new IOException("bad compressed entry: " + name);
+            return bytes;
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("bad compressed entry: " + name, e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 检查[offset, offset + length)在文件范围内
+     */
+    private static void _checkRange(ByteBuffer buffer, int offset, int length, String what, String file) throws IOException
+    {
+        if (offset < 0 || length < 0 || (long) offset + length > buffer.limit())
+            throw new IOException("truncated " + what + ": " + file);
+    }
+
+    private static void _get(ByteBuffer buffer, int offset, byte[] bytes, int length)
+    {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes, 0, length);
+    }
+
+    private static String _string(ByteBuffer buffer, int offset, int length)
+    {
+        byte[] bytes = new byte[length];
+        _get(buffer, offset, bytes, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 从文件末尾向前查找中央目录结束标记(后面可能有注释)
+     */
+    private static int _findEnd(ByteBuffer buffer)
+    {
+        if (buffer.limit() < EndSize)
+            return -1;
+
+        int limit = Math.max(0, buffer.limit() - EndSize - MaxCommentSize);
+        for (int position = buffer.limit() - EndSize; position >= limit; position--)
+        {
+            if (buffer.getInt(position) == EndSignature)
+                return position;
+        }
+        return -1;
+    }
+}
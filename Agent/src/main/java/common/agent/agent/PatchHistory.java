@@ -0,0 +1,376 @@
+package common.agent.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PatchHistory
+ * <p>
+ * 热更历史, 保存每个class每次热更前后的字节码, 用于回滚
+ * 第一次热更某个class前从加载器读取它的class文件(与PreflightCheck/AppliedClasses相同), 不进入安全点; 之后的版本直接使用上一次热更的字节码
+ * 加载器中没有class文件(动态生成)或者已经被替换过但没有记录历史的class, 只有开启retransformCapture时才通过retransform获取,
+ * retransform和redefine一样是一次安全点停顿, 耗时计入这次热更的停顿
+ * 历史按class弱引用保存, 不影响插件等加载器的卸载
+ * 回滚只是一次批量替换, 不需要编译
+ */
+public class PatchHistory
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(PatchHistory.class);
+
+    /**
+     * 一次热更记录
+     */
+    public static class PatchRecord
+    {
+        private final long                      patchId;    // 热更id
+        private final long                      time;       // 热更时间
+        private final String                    desc;       // 描述
+        private final Map<Class<?>, byte[]>     before;     // 热更前的字节码, class弱引用
+
+        PatchRecord(long patchId, String desc, Map<Class<?>, byte[]> before)
+        {
+            this.patchId = patchId;
+            this.time = System.currentTimeMillis();
+            this.desc = desc;
+            this.before = new WeakHashMap<>(before);
+        }
+
+        public long getPatchId()
+        {
+            return patchId;
+        }
+
+        public long getTime()
+        {
+            return time;
+        }
+
+        public String getDesc()
+        {
+            return desc;
+        }
+
+        public List<String> getClassNames()
+        {
+            List<String> names = new ArrayList<>(before.size());
+            for (Class<?> clazz : before.keySet())
+            {
+                names.add(clazz.getName());
+            }
+            return names;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "PatchRecord{patchId=" + patchId + ", desc=" + desc + ", classes=" + getClassNames() + "}";
+        }
+    }
+
+    /**
+     * 单个class的版本, 0为第一次热更前的字节码
+     */
+    private static class ClassHistory
+    {
+        private final byte[]             original;                          // 版本0
+        private final List<byte[]>       versions = new ArrayList<>();      // 版本1..n, 每次热更后的字节码
+        private final List<Long>         patchIds = new ArrayList<>();      // 每个版本对应的热更id
+        private int                      firstVersion = 1;                  // versions中第一个元素的版本号(旧版本被淘汰后递增)
+
+        ClassHistory(byte[] original)
+        {
+            this.original = original;
+        }
+
+        byte[] current()
+        {
+            return versions.isEmpty() ? original : versions.get(versions.size() - 1);
+        }
+
+        int currentVersion()
+        {
+            return firstVersion + versions.size() - 1;
+        }
+
+        byte[] get(int version)
+        {
+            if (version == 0)
+                return original;
+            int index = version - firstVersion;
+            return index >= 0 && index < versions.size() ? versions.get(index) : null;
+        }
+    }
+
+    /**
+     * 替换前记录的字节码
+     */
+    static class Capture
+    {
+        private final Map<Class<?>, byte[]>     before;         // class -> 替换前的字节码
+        private final long                      pauseNanos;     // retransform的停顿, 没有retransform时为0
+
+        Capture(Map<Class<?>, byte[]> before, long pauseNanos)
+        {
+            this.before = before;
+            this.pauseNanos = pauseNanos;
+        }
+
+        Map<Class<?>, byte[]> getBefore()
+        {
+            return before;
+        }
+
+        long getPauseNanos()
+        {
+            return pauseNanos;
+        }
+    }
+
+    /**
+     * 获取class当前字节码的transformer, 只在capture期间生效, 不修改字节码
+     */
+    private static class CaptureTransformer implements ClassFileTransformer
+    {
+        private volatile Map<Class<?>, byte[]> capturing;
+
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer)
+        {
+            Map<Class<?>, byte[]> map = capturing;
+            if (map != null && classBeingRedefined != null && map.containsKey(classBeingRedefined))
+                map.put(classBeingRedefined, classfileBuffer.clone());
+            return null;
+        }
+    }
+
+    private static final AtomicLong                          patchIdGenerator = new AtomicLong();
+    private static final Map<Class<?>, ClassHistory>         classes = new WeakHashMap<>();       // class -> 历史版本, class弱引用
+    private static final LinkedHashMap<Long, PatchRecord>    patches = new LinkedHashMap<>();     // 热更id -> 记录
+    private static final CaptureTransformer                  transformer = new CaptureTransformer();
+    private static Instrumentation                           registered;                          // 已经注册transformer的instrumentation
+
+    private PatchHistory()
+    {
+    }
+
+    /**
+     * 替换前记录class当前的字节码
+     * 没有历史的class从加载器读取class文件, 读取不到的class在开启retransformCapture时通过一次retransformClasses批量获取
+     *
+     * @param instrumentation instrumentation
+     * @param definitions     即将替换的class
+     * @param retransform     是否允许retransform(一次安全点停顿)
+     * @return 替换前的字节码和retransform的停顿
+     */
+    static synchronized Capture capture(Instrumentation instrumentation, List<ClassDefinition> definitions, boolean retransform) throws Exception
+    {
+        Map<Class<?>, byte[]> before = new LinkedHashMap<>();
+        List<Class<?>> unknown = new ArrayList<>();
+        for (ClassDefinition definition : definitions)
+        {
+            Class<?> clazz = definition.getDefinitionClass();
+            ClassHistory history = classes.get(clazz);
+            if (history != null)
+            {
+                before.put(clazz, history.current());
+                continue;
+            }
+
+            // 加载器中的class文件只有在没有被替换过时才是当前生效的字节码
+            byte[] bytes = AppliedClasses.loadClassFile(clazz);
+            if (bytes != null && AppliedClasses.isApplied(clazz, bytes))
+            {
+                classes.put(clazz, new ClassHistory(bytes));
+                before.put(clazz, bytes);
+            }
+            else
+            {
+                unknown.add(clazz);
+            }
+        }
+
+        if (unknown.isEmpty())
+            return new Capture(before, 0);
+
+        if (!retransform)
+            throw new IllegalStateException("class file not found or already redefined without history, set agent.retransformCapture to capture by retransform: " + _names(unknown));
+
+        if (!instrumentation.isRetransformClassesSupported())
+            throw new UnsupportedOperationException("retransform classes not supported, rollback is disabled.");
+
+        if (registered != instrumentation)
+        {
+            instrumentation.addTransformer(transformer, true);
+            registered = instrumentation;
+        }
+
+        Map<Class<?>, byte[]> captured = Collections.synchronizedMap(new IdentityHashMap<Class<?>, byte[]>());
+        for (Class<?> clazz : unknown)
+        {
+            captured.put(clazz, null);
+        }
+
+        transformer.capturing = captured;
+        long start = System.nanoTime();
+        try
+        {
+            instrumentation.retransformClasses(unknown.toArray(new Class<?>[unknown.size()]));
+        }
+        finally
+        {
+            transformer.capturing = null;
+        }
+        long pauseNanos = System.nanoTime() - start;
+        LOGGER.info(String.format("capture %d classes by retransform, pause %.3fms", unknown.size(), pauseNanos / 1000000.0));
+
+        for (Class<?> clazz : unknown)
+        {
+            byte[] bytes = captured.get(clazz);
+            if (bytes == null)
+                throw new IllegalStateException("capture class bytes failed: " + clazz.getName());
+
+            classes.put(clazz, new ClassHistory(bytes));
+            before.put(clazz, bytes);
+        }
+        return new Capture(before, pauseNanos);
+    }
+
+    private static List<String> _names(List<Class<?>> classes)
+    {
+        List<String> names = new ArrayList<>(classes.size());
+        for (Class<?> clazz : classes)
+        {
+            names.add(clazz.getName());
+        }
+        return names;
+    }
+
+    /**
+     * 替换成功后记录一次热更
+     *
+     * @param desc        描述
+     * @param before      替换前的字节码
+     * @param definitions 替换后的字节码
+     * @param maxVersions 每个class最多保留的版本数(不包括版本0)
+     * @return 热更id
+     */
+    static synchronized long record(String desc, Map<Class<?>, byte[]> before, List<ClassDefinition> definitions, int maxVersions)
+    {
+        long patchId = patchIdGenerator.incrementAndGet();
+        for (ClassDefinition definition : definitions)
+        {
+            ClassHistory history = classes.get(definition.getDefinitionClass());
+            if (history == null)
+                continue;
+
+            history.versions.add(definition.getDefinitionClassFile());
+            history.patchIds.add(patchId);
+            while (history.versions.size() > maxVersions)
+            {
+                history.versions.remove(0);
+                history.patchIds.remove(0);
+                history.firstVersion++;
+            }
+        }
+
+        patches.put(patchId, new PatchRecord(patchId, desc, before));
+        while (patches.size() > maxVersions)
+        {
+            Long oldest = patches.keySet().iterator().next();
+            patches.remove(oldest);
+        }
+        return patchId;
+    }
+
+    /**
+     * 回滚一次热更需要的class定义: 该次热更前的字节码
+     * 如果之后的热更也修改了这些class, 之后的修改也会被回滚
+     *
+     * @param patchId 热更id
+     * @return 替换定义, 记录不存在时返回null
+     */
+    static synchronized List<ClassDefinition> getRollback(long patchId)
+    {
+        PatchRecord record = patches.get(patchId);
+        if (record == null)
+            return null;
+
+        List<ClassDefinition> definitions = new ArrayList<>(record.before.size());
+        for (Map.Entry<Class<?>, byte[]> entry : record.before.entrySet())
+        {
+            ClassHistory history = classes.get(entry.getKey());
+            int index = history == null ? -1 : history.patchIds.indexOf(patchId);
+            if (index >= 0 && index < history.patchIds.size() - 1)
+                LOGGER.warn("rollback patch " + patchId + " also reverts later patches of " + entry.getKey().getName());
+            definitions.add(new ClassDefinition(entry.getKey(), entry.getValue()));
+        }
+        return definitions;
+    }
+
+    /**
+     * 回滚单个class到指定版本需要的class定义, 所有loader中同名的class都会回滚
+     *
+     * @param className 类全名
+     * @param version   版本, 0为第一次热更前
+     * @return 替换定义, 版本不存在时返回空列表
+     */
+    static synchronized List<ClassDefinition> getRollback(String className, int version)
+    {
+        List<ClassDefinition> definitions = new ArrayList<>();
+        for (Map.Entry<Class<?>, ClassHistory> entry : classes.entrySet())
+        {
+            if (!entry.getKey().getName().equals(className))
+                continue;
+
+            byte[] bytes = entry.getValue().get(version);
+            if (bytes != null)
+                definitions.add(new ClassDefinition(entry.getKey(), bytes));
+        }
+        return definitions;
+    }
+
+    /**
+     * @param clazz class
+     * @return 当前生效的字节码(第一次热更前从加载器读取或由retransform获取), 没有记录时返回null
+     */
+    static synchronized byte[] getCurrent(Class<?> clazz)
+    {
+        ClassHistory history = classes.get(clazz);
+        return history == null ? null : history.current();
+    }
+
+    /**
+     * @return 保留的热更记录, 按时间顺序
+     */
+    public static synchronized List<PatchRecord> getPatches()
+    {
+        return new ArrayList<>(patches.values());
+    }
+
+    /**
+     * @param className 类全名
+     * @return 当前版本号, 没有热更过返回-1
+     */
+    public static synchronized int getCurrentVersion(String className)
+    {
+        for (Map.Entry<Class<?>, ClassHistory> entry : classes.entrySet())
+        {
+            if (entry.getKey().getName().equals(className))
+                return entry.getValue().currentVersion();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,141 @@
+package common.agent.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PatchOutcome
+ * <p>
+ * 一次热更的结果, 通过JMX输出最近N次热更
+ * JIT编译耗时取自CompilationMXBean, 分别统计热更前后相同长度窗口内的JIT编译耗时, 用来观察替换引起的退优化和重新编译
+ */
+public class PatchOutcome
+{
+    private final long         time;            // 热更时间
+    private final String       desc;            // 热更的文件/目录
+    private final boolean      success;         // 是否成功
+    private final long         patchId;         // 热更id, 没有记录回滚历史时为0
+    private final List<String> classNames;      // 替换的类
+    private final int          skipped;         // 字节码没有变化而跳过的类数量
+    private final long         bytes;           // 替换的字节码大小
+    private final double       compileMillis;   // 本次热更的编译耗时, 没有编译时为0
+    private final double       pauseMillis;     // redefineClasses停顿
+    private final String       error;           // 失败原因
+    private final long         jitMillisBefore; // 热更前一个窗口内的JIT编译耗时, 不支持时为-1
+    private volatile long      jitMillisAfter = -1;    // 热更后一个窗口内的JIT编译耗时, 窗口结束前为-1
+    private final long         jitTotalAtPatch; // 热更时JIT编译总耗时
+
+    PatchOutcome(String desc, RedefineResult result, long bytes, double compileMillis, long jitMillisBefore, long jitTotalAtPatch)
+    {
+        this.time = System.currentTimeMillis();
+        this.desc = desc;
+        this.success = result.isSuccess();
+        this.patchId = result.getPatchId();
+        this.classNames = new ArrayList<>(result.getClassNames());
+        this.skipped = result.getSkippedClasses().size();
+        this.bytes = bytes;
+        this.compileMillis = compileMillis;
+        this.pauseMillis = result.getPauseNanos() / 1000000.0;
+        this.error = result.getError() == null ? null : String.valueOf(result.getError());
+        this.jitMillisBefore = jitMillisBefore;
+        this.jitTotalAtPatch = jitTotalAtPatch;
+    }
+
+    /**
+     * 编译失败等没有走到替换的热更
+     */
+    PatchOutcome(String desc, double compileMillis, String error)
+    {
+        this.time = System.currentTimeMillis();
+        this.desc = desc;
+        this.success = false;
+        this.patchId = 0;
+        this.classNames = Collections.emptyList();
+        this.skipped = 0;
+        this.bytes = 0;
+        this.compileMillis = compileMillis;
+        this.pauseMillis = 0;
+        this.error = error;
+        this.jitMillisBefore = -1;
+        this.jitTotalAtPatch = -1;
+    }
+
+    long getJitTotalAtPatch()
+    {
+        return jitTotalAtPatch;
+    }
+
+    void setJitMillisAfter(long jitMillisAfter)
+    {
+        this.jitMillisAfter = jitMillisAfter;
+    }
+
+    public long getTime()
+    {
+        return time;
+    }
+
+    public String getDesc()
+    {
+        return desc;
+    }
+
+    public boolean isSuccess()
+    {
+        return success;
+    }
+
+    public long getPatchId()
+    {
+        return patchId;
+    }
+
+    public List<String> getClassNames()
+    {
+        return Collections.unmodifiableList(classNames);
+    }
+
+    public int getSkipped()
+    {
+        return skipped;
+    }
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+
+    public double getCompileMillis()
+    {
+        return compileMillis;
+    }
+
+    public double getPauseMillis()
+    {
+        return pauseMillis;
+    }
+
+    public String getError()
+    {
+        return error;
+    }
+
+    public long getJitMillisBefore()
+    {
+        return jitMillisBefore;
+    }
+
+    public long getJitMillisAfter()
+    {
+        return jitMillisAfter;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "PatchOutcome{desc=" + desc + ", success=" + success + ", classes=" + classNames.size() + ", skipped=" + skipped
+                + ", compile=" + String.format("%.3f", compileMillis) + "ms, pause=" + String.format("%.3f", pauseMillis) + "ms"
+                + (error == null ? "" : ", error=" + error) + "}";
+    }
+}
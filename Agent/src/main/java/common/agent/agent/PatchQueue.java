@@ -0,0 +1,254 @@
+package common.agent.agent;
+
+import com.lmax.disruptor.LiteBlockingWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * PatchQueue
+ * <p>
+ * 热更请求队列, 所有热更请求写入Disruptor环形队列, 由唯一的热更线程依次执行, Agent的静态状态(agentClass目录、编译器)只有这一个线程修改
+ * 生产者无锁入队(LiteBlockingWaitStrategy只在热更线程等待时才加锁唤醒), 队列满时立即失败; 热更线程按Disruptor的批次(执行上一批期间到达的请求)合并重叠的请求:
+ * 同类请求路径相同, 或者被同一批中的目录请求包含时, 只执行一次, 结果返回给每个请求者
+ */
+class PatchQueue
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(PatchQueue.class);
+
+    private static final String ThreadName = "agent-patch";
+
+    /**
+     * 一个热更请求
+     */
+    static class Request
+    {
+        private final String                          kind;       // 请求类型, 只有同类请求会合并, null表示不合并
+        private final String                          path;       // 统一成'/'分隔的路径
+        private final boolean                         directory;  // 是否是目录
+        private final Callable<PatchResult>           task;       // 热更线程中执行的任务
+        private final CompletableFuture<PatchResult>  future = new CompletableFuture<>();
+
+        Request(String kind, String path, boolean directory, Callable<PatchResult> task)
+        {
+            this.kind = kind;
+            this.path = path == null ? null : _normalize(path);
+            this.directory = directory;
+            this.task = task;
+        }
+
+        CompletableFuture<PatchResult> getFuture()
+        {
+            return future;
+        }
+
+        PatchResult call() throws Exception
+        {
+            return task.call();
+        }
+
+        /**
+         * @return 执行这个请求是否已经包含了other
+         */
+        boolean covers(Request other)
+        {
+            if (kind == null || !kind.equals(other.kind))
+                return false;
+            if (path.equals(other.path) && directory == other.directory)
+                return true;
+            return directory && (path.isEmpty() || other.path.startsWith(path + "/"));
+        }
+
+        @Override
+        public String toString()
+        {
+            return kind + (directory ? " directory " : " ") + path;
+        }
+
+        private static String _normalize(String path)
+        {
+            String result = path.replace('\\', '/');
+            while (result.startsWith("/"))
+                result = result.substring(1);
+            while (result.endsWith("/"))
+                result = result.substring(0, result.length() - 1);
+            return result;
+        }
+    }
+
+    /**
+     * 环形队列中的槽位, 预先分配, 只保存请求的引用
+     */
+    private static class RequestEvent
+    {
+        private Request request;
+    }
+
+    private static final EventTranslatorOneArg<RequestEvent, Request> TRANSLATOR = (event, sequence, request) -> event.request = request;
+
+    /**
+     * 热更线程, 收集一个批次的请求, 批次结束时合并执行
+     */
+    private static class Worker implements EventHandler<RequestEvent>
+    {
+        private final List<Request> batch = new ArrayList<>();
+
+        @Override
+        public void onEvent(RequestEvent event, long sequence, boolean endOfBatch)
+        {
+            batch.add(event.request);
+            event.request = null;
+            if (!endOfBatch)
+                return;
+
+            try
+            {
+                _execute(batch);
+            }
+            finally
+            {
+                batch.clear();
+            }
+        }
+
+        private void _execute(List<Request> requests)
+        {
+            List<Request> pending = new ArrayList<>(requests);
+            while (!pending.isEmpty())
+            {
+                // 先找到包含第一个请求的请求(可能是之后到达的目录请求), 再把它包含的其他请求一起完成
+                Request first = pending.get(0);
+                Request runner = first;
+                for (Request request : pending)
+                {
+                    if (request != first && request.covers(first) && !first.covers(request))
+                    {
+                        runner = request;
+                        break;
+                    }
+                }
+
+                List<Request> merged = new ArrayList<>();
+                for (Request request : pending)
+                {
+                    if (request == runner || runner.covers(request))
+                        merged.add(request);
+                }
+                pending.removeAll(merged);
+
+                if (merged.size() > 1)
+                    LOGGER.info("patch queue merged " + merged.size() + " requests into " + runner);
+                _run(runner, merged);
+            }
+        }
+
+        private void _run(Request runner, List<Request> merged)
+        {
+            PatchResult result;
+            try
+            {
+                result = runner.call();
+            }
+            catch (Throwable e)
+            {
+                LOGGER.error("patch request error: " + runner, e);
+                for (Request request : merged)
+                {
+                    request.future.completeExceptionally(e);
+                }
+                return;
+            }
+
+            for (Request request : merged)
+            {
+                request.future.complete(result);
+            }
+        }
+    }
+
+    private final Disruptor<RequestEvent>    disruptor;
+    private final RingBuffer<RequestEvent>   ringBuffer;
+    private volatile Thread                  workerThread;
+
+    /**
+     * @param capacity 队列容量, 向上取整为2的幂
+     */
+    PatchQueue(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        disruptor = new Disruptor<>(RequestEvent::new, size, r ->
+        {
+            Thread thread = new Thread(() ->
+            {
+                workerThread = Thread.currentThread();
+                r.run();
+            }, ThreadName);
+            thread.setDaemon(true);
+            return thread;
+        }, ProducerType.MULTI, new LiteBlockingWaitStrategy());
+        disruptor.handleEventsWith(new Worker());
+        disruptor.setDefaultExceptionHandler(new ExceptionHandler<RequestEvent>()
+        {
+            @Override
+            public void handleEventException(Throwable ex, long sequence, RequestEvent event)
+            {
+                LOGGER.error("patch queue error.", ex);
+            }
+
+            @Override
+            public void handleOnStartException(Throwable ex)
+            {
+                LOGGER.error("patch queue start error.", ex);
+            }
+
+            @Override
+            public void handleOnShutdownException(Throwable ex)
+            {
+                LOGGER.error("patch queue shutdown error.", ex);
+            }
+        });
+        ringBuffer = disruptor.start();
+    }
+
+    /**
+     * 提交请求, 不阻塞
+     *
+     * @return 请求的结果, 队列已满时立即以RejectedExecutionException失败
+     */
+    CompletableFuture<PatchResult> submit(Request request)
+    {
+        if (!ringBuffer.tryPublishEvent(TRANSLATOR, request))
+        {
+            LOGGER.error("patch queue is full, patch rejected: " + request);
+            request.future.completeExceptionally(new RejectedExecutionException("patch queue is full: " + request));
+        }
+        return request.future;
+    }
+
+    /**
+     * @return 当前线程是否是热更线程, 热更线程中再次提交并等待会死锁, 需要直接执行
+     */
+    boolean isWorkerThread()
+    {
+        return Thread.currentThread() == workerThread;
+    }
+
+    /**
+     * 等待已经提交的请求执行完后停止热更线程
+     */
+    void shutdown()
+    {
+        disruptor.shutdown();
+    }
+}
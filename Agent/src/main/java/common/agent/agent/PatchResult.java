@@ -0,0 +1,192 @@
+package common.agent.agent;
+
+import common.agent.script.CompileResult;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PatchResult
+ * <p>
+ * 一次完整热更(读取 -> 编译 -> 检查 -> 替换)的结果, 由Agent的异步接口返回
+ * 各阶段耗时: read读取class文件/热更包(源码的读取计入compile), compile编译, verify过滤没有变化的class和结构检查, redefine替换停顿
+ */
+public class PatchResult
+{
+    private final String    desc;                   // 热更的文件/目录
+    private boolean         success;                // 是否成功, 没有变化也算成功
+    private CompileResult   compileResult;          // 编译结果, 没有编译时为null
+    private RedefineResult  redefineResult;         // 替换结果, 没有走到替换时为null
+    private String          error;                  // 没有走到替换时的失败原因
+    private Throwable       cause;                  // 异常
+    private long            totalNanos;             // 总耗时
+    private long            waitNanos;              // 调度的热更等待安静窗口的时间
+    private boolean         forced;                 // 调度的热更是否因为超过最长等待时间而强制替换
+
+    PatchResult(String desc)
+    {
+        this.desc = desc;
+    }
+
+    void setCompile(CompileResult compileResult)
+    {
+        this.compileResult = compileResult;
+        if (!compileResult.isSuccess())
+            setFailed("compile error: " + compileResult.getDiagnostics().keySet(), null);
+    }
+
+    void setRedefine(RedefineResult redefineResult)
+    {
+        this.redefineResult = redefineResult;
+        this.success = redefineResult.isSuccess();
+        if (!success)
+            this.cause = redefineResult.getError();
+    }
+
+    /**
+     * 没有需要替换的class(例如使用变化索引时脚本没有变化)
+     */
+    void setUnchanged()
+    {
+        this.success = true;
+    }
+
+    void setFailed(String error, Throwable cause)
+    {
+        this.success = false;
+        this.error = error;
+        this.cause = cause;
+    }
+
+    void setTotalNanos(long totalNanos)
+    {
+        this.totalNanos = totalNanos;
+    }
+
+    void setScheduled(long waitNanos, boolean forced)
+    {
+        this.waitNanos = waitNanos;
+        this.forced = forced;
+    }
+
+    public String getDesc()
+    {
+        return desc;
+    }
+
+    public boolean isSuccess()
+    {
+        return success;
+    }
+
+    /**
+     * @return 本次编译的源文件(类全名), 没有编译时为空
+     */
+    public List<String> getCompiledClasses()
+    {
+        return compileResult == null ? Collections.<String>emptyList() : compileResult.getClassNames();
+    }
+
+    /**
+     * @return 本次替换的类全名
+     */
+    public List<String> getRedefinedClasses()
+    {
+        return redefineResult == null ? Collections.<String>emptyList() : redefineResult.getClassNames();
+    }
+
+    /**
+     * @return 编译诊断信息, 类全名 -> 诊断
+     */
+    public Map<String, List<String>> getDiagnostics()
+    {
+        return compileResult == null ? Collections.<String, List<String>>emptyMap() : compileResult.getDiagnostics();
+    }
+
+    public long getReadNanos()
+    {
+        return redefineResult == null ? 0 : redefineResult.getReadNanos();
+    }
+
+    public long getCompileNanos()
+    {
+        return compileResult == null ? 0 : compileResult.getCompileNanos();
+    }
+
+    public long getVerifyNanos()
+    {
+        return redefineResult == null ? 0 : redefineResult.getVerifyNanos();
+    }
+
+    public long getRedefineNanos()
+    {
+        return redefineResult == null ? 0 : redefineResult.getPauseNanos();
+    }
+
+    public long getTotalNanos()
+    {
+        return totalNanos;
+    }
+
+    /**
+     * @return 通过PatchScheduler提交时等待安静窗口的时间, 直接热更为0
+     */
+    public long getWaitNanos()
+    {
+        return waitNanos;
+    }
+
+    /**
+     * @return 是否没有等到安静窗口, 超过最长等待时间后强制替换
+     */
+    public boolean isForced()
+    {
+        return forced;
+    }
+
+    /**
+     * @return 热更id, 可以用于Agent.rollback(patchId), 没有记录历史时为0
+     */
+    public long getPatchId()
+    {
+        return redefineResult == null ? 0 : redefineResult.getPatchId();
+    }
+
+    public CompileResult getCompileResult()
+    {
+        return compileResult;
+    }
+
+    public RedefineResult getRedefineResult()
+    {
+        return redefineResult;
+    }
+
+    /**
+     * @return 失败原因, 成功时为null
+     */
+    public String getError()
+    {
+        if (success)
+            return null;
+        if (error != null)
+            return error;
+        return cause == null ? null : String.valueOf(cause);
+    }
+
+    public Throwable getCause()
+    {
+        return cause;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("PatchResult{desc=%s, success=%s, compiled=%d, redefined=%d, read=%.3fms, compile=%.3fms, verify=%.3fms, redefine=%.3fms, total=%.3fms%s%s}",
+                desc, success, getCompiledClasses().size(), getRedefinedClasses().size(),
+                getReadNanos() / 1000000.0, getCompileNanos() / 1000000.0, getVerifyNanos() / 1000000.0, getRedefineNanos() / 1000000.0, totalNanos / 1000000.0,
+                waitNanos > 0 ? String.format(", wait=%.3fms%s", waitNanos / 1000000.0, forced ? " forced" : "") : "",
+                success ? "" : ", error=" + getError());
+    }
+}
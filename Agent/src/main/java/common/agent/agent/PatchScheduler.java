@@ -0,0 +1,292 @@
+package common.agent.agent;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PatchScheduler
+ * <p>
+ * 热更调度: 已经编译好的热更先保存起来, 等到安静窗口再替换, 避免高峰期的safepoint停顿和退优化
+ * 安静窗口 = 在允许的时间段内(没有配置时为任意时间) 并且 负载探针认为安静(没有设置时为安静)
+ * 等待超过最长等待时间的热更不再等待, 直接替换
+ * 调度线程周期检查, 替换通过Agent的热更队列执行; 每个热更的等待时间和停顿记录在PatchResult和AgentMetrics中
+ */
+public class PatchScheduler
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(PatchScheduler.class);
+
+    /**
+     * 等待中的热更
+     */
+    private static class Pending
+    {
+        private final String                          desc;
+        private final Callable<RedefineResult>        task;
+        private final long                            submitNanos;
+        private final long                            deadlineNanos;
+        private final CompletableFuture<PatchResult>  future = new CompletableFuture<>();
+
+        Pending(String desc, Callable<RedefineResult> task, long maxWaitMillis)
+        {
+            this.desc = desc;
+            this.task = task;
+            this.submitNanos = System.nanoTime();
+            this.deadlineNanos = submitNanos + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        }
+    }
+
+    private final List<Pending>             pending = new ArrayList<>();
+    private volatile LoadProbe              loadProbe;
+    private volatile List<LocalTime[]>      quietHours = Collections.emptyList();  // 允许替换的时间段 {开始, 结束}, 为空表示任意时间
+    private volatile long                   maxWaitMillis;
+    private final long                      checkMillis;
+    private ScheduledExecutorService        timer;
+
+    /**
+     * @param maxWaitMillis 最长等待时间, 超过后不管负载直接替换
+     * @param checkMillis   检查间隔
+     */
+    public PatchScheduler(long maxWaitMillis, long checkMillis)
+    {
+        this.maxWaitMillis = maxWaitMillis;
+        this.checkMillis = Math.max(1, checkMillis);
+    }
+
+    /**
+     * @param loadProbe 负载探针, null表示不检查负载
+     */
+    public void setLoadProbe(LoadProbe loadProbe)
+    {
+        this.loadProbe = loadProbe;
+    }
+
+    /**
+     * 允许替换的时间段, 例如"03:00-06:00,13:30-14:00", 结束时间小于开始时间表示跨过零点, 空字符串表示任意时间
+     */
+    public void setQuietHours(String quietHours)
+    {
+        this.quietHours = _parseHours(quietHours);
+    }
+
+    public void setMaxWaitMillis(long maxWaitMillis)
+    {
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * 等到安静窗口再替换内存中的字节码
+     *
+     * @param desc       描述
+     * @param classBytes 类全名(内部类为Outer$Inner) -> 字节码, 例如CompileResult.getClassBytes()
+     * @return 替换结果, 包含等待时间
+     */
+    public CompletableFuture<PatchResult> schedule(String desc, Map<String, byte[]> classBytes)
+    {
+        Map<String, byte[]> copy = new LinkedHashMap<>(classBytes);
+        return _schedule(new Pending(desc, () -> Agent._reloadClass(copy, null), maxWaitMillis));
+    }
+
+    /**
+     * 等到安静窗口再替换已经读取并校验过的热更包
+     */
+    public CompletableFuture<PatchResult> schedule(PatchBundle bundle)
+    {
+        return _schedule(new Pending("bundle " + bundle.getPatchId(), () -> Agent._reloadBundle(bundle), maxWaitMillis));
+    }
+
+    /**
+     * @return 等待中的热更数量
+     */
+    public int getPendingCount()
+    {
+        synchronized (pending)
+        {
+            return pending.size();
+        }
+    }
+
+    /**
+     * 不再等待, 在调度线程中立即替换所有等待中的热更
+     */
+    public void flush()
+    {
+        ScheduledExecutorService executor = _timer();
+        executor.execute(() -> _check(true));
+    }
+
+    /**
+     * 停止调度, 等待中的热更以CancellationException结束
+     */
+    public synchronized void shutdown()
+    {
+        if (timer != null)
+        {
+            timer.shutdownNow();
+            timer = null;
+        }
+
+        List<Pending> cancelled;
+        synchronized (pending)
+        {
+            cancelled = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Pending patch : cancelled)
+        {
+            patch.future.completeExceptionally(new CancellationException("patch scheduler shutdown: " + patch.desc));
+        }
+    }
+
+    private CompletableFuture<PatchResult> _schedule(Pending patch)
+    {
+        synchronized (pending)
+        {
+            pending.add(patch);
+        }
+        _timer();
+        LOGGER.info("patch scheduled, waiting for quiet window: " + patch.desc);
+        return patch.future;
+    }
+
+    private synchronized ScheduledExecutorService _timer()
+    {
+        if (timer == null)
+        {
+            timer = Executors.newSingleThreadScheduledExecutor(r ->
+            {
+                Thread thread = new Thread(r, "agent-patch-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleWithFixedDelay(() -> _check(false), checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+        }
+        return timer;
+    }
+
+    /**
+     * 安静时依次替换所有等待中的热更(每次替换后重新检查负载), 否则只替换超过最长等待时间的
+     */
+    private void _check(boolean flush)
+    {
+        while (getPendingCount() > 0)
+        {
+            // 负载探针由应用实现, 不在锁内调用
+            boolean quiet = flush || _isQuiet();
+            Pending next = null;
+            boolean forced = false;
+            synchronized (pending)
+            {
+                if (pending.isEmpty())
+                    return;
+
+                if (quiet)
+                {
+                    next = pending.get(0);
+                }
+                else
+                {
+                    long now = System.nanoTime();
+                    for (Pending patch : pending)
+                    {
+                        if (now - patch.deadlineNanos >= 0)
+                        {
+                            next = patch;
+                            forced = true;
+                            break;
+                        }
+                    }
+                }
+
+                if (next == null)
+                    return;
+                pending.remove(next);
+            }
+            _apply(next, forced);
+        }
+    }
+
+    private void _apply(Pending patch, boolean forced)
+    {
+        long waitNanos = System.nanoTime() - patch.submitNanos;
+        if (forced)
+            LOGGER.warn(String.format("patch %s waited %.3fms without a quiet window, apply now.", patch.desc, waitNanos / 1000000.0));
+
+        // 每个热更都记录等待时间, 包括替换失败或者抛出异常的
+        AgentMetrics.recordScheduleWait(waitNanos, forced);
+        try
+        {
+            PatchResult result = Agent.await(Agent.submit(patch.desc, () -> Agent.patchResult(patch.desc, patch.task.call())));
+            result.setScheduled(waitNanos, forced);
+            LOGGER.info("scheduled patch finish. " + result);
+            patch.future.complete(result);
+        }
+        catch (Throwable e)
+        {
+            LOGGER.error("scheduled patch error: " + patch.desc, e);
+            patch.future.completeExceptionally(e);
+        }
+    }
+
+    private boolean _isQuiet()
+    {
+        List<LocalTime[]> hours = quietHours;
+        if (!hours.isEmpty())
+        {
+            LocalTime now = LocalTime.now();
+            boolean inWindow = false;
+            for (LocalTime[] window : hours)
+            {
+                inWindow = window[0].isAfter(window[1])
+                        ? !now.isBefore(window[0]) || now.isBefore(window[1])
+                        : !now.isBefore(window[0]) && now.isBefore(window[1]);
+                if (inWindow)
+                    break;
+            }
+            if (!inWindow)
+                return false;
+        }
+
+        LoadProbe probe = loadProbe;
+        if (probe == null)
+            return true;
+
+        try
+        {
+            return probe.isQuiet();
+        }
+        catch (Throwable e)
+        {
+            LOGGER.error("load probe error.", e);
+            return false;
+        }
+    }
+
+    private static List<LocalTime[]> _parseHours(String quietHours)
+    {
+        if (quietHours == null || quietHours.trim().isEmpty())
+            return Collections.emptyList();
+
+        List<LocalTime[]> result = new ArrayList<>();
+        for (String window : quietHours.split(","))
+        {
+            String[] times = window.trim().split("-");
+            if (times.length != 2)
+                throw new IllegalArgumentException("bad quiet hours: " + window);
+            result.add(new LocalTime[]{LocalTime.parse(times[0].trim()), LocalTime.parse(times[1].trim())});
+        }
+        return result;
+    }
+}
@@ -0,0 +1,457 @@
+package common.agent.agent;
+
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PatchWatcher
+ * <p>
+ * 监听agent/agentJava和agent/agentClass目录, 自动热更; agentClass目录下的jar/zip作为热更包(PatchBundle)处理
+ * 一段时间(防抖窗口)内连续的文件变化合并成一批, 一次编译一次替换; rsync和部署脚本逐个写文件时不会每个文件都触发一次编译和停顿
+ * 事件队列有上限, 队列满时监听线程阻塞等待(背压), 等待超时则丢弃事件并在下一批做一次全量扫描
+ */
+public class PatchWatcher
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(PatchWatcher.class);
+
+    private static final String JavaSuffix  = ".java";
+    private static final String ClassSuffix = ".class";
+    private static final String JarSuffix   = ".jar";
+    private static final String ZipSuffix   = ".zip";
+
+    private final Path                      javaRoot;           // java文件根目录
+    private final Path                      classRoot;          // class文件根目录
+    private final long                      debounceMillis;     // 防抖窗口, 窗口内没有新事件才开始热更
+    private final long                      maxDelayMillis;     // 一批最长等待时间, 持续有事件时也会在这个时间后开始热更
+    private final BlockingQueue<Path>       queue;              // 变化的文件
+    private final Set<Path>                 watchDirs = new HashSet<>();        // 监听的目录
+    private final Map<String, String>       appliedClasses = new HashMap<>();   // 已经替换的class hash, 过滤编译器自己写出的class
+    private final Map<Path, String>         appliedBundles = new HashMap<>();   // 已经替换的热更包 hash
+    private final Object                    pauseLock = new Object();
+
+    private volatile WatchService           watchService;
+    private volatile boolean                running;
+    private volatile boolean                paused;
+    private volatile boolean                overflow;           // 有事件被丢弃, 下一批需要全量扫描
+    private Thread                          watchThread;
+    private Thread                          applyThread;
+
+    /**
+     * @param javaRoot       java文件根目录
+     * @param classRoot      class文件根目录
+     * @param debounceMillis 防抖窗口(毫秒)
+     * @param maxDelayMillis 一批最长等待时间(毫秒)
+     * @param queueSize      事件队列上限
+     */
+    public PatchWatcher(String javaRoot, String classRoot, long debounceMillis, long maxDelayMillis, int queueSize)
+    {
+        this.javaRoot = new File(javaRoot).getAbsoluteFile().toPath().normalize();
+        this.classRoot = new File(classRoot).getAbsoluteFile().toPath().normalize();
+        this.debounceMillis = debounceMillis;
+        this.maxDelayMillis = Math.max(maxDelayMillis, debounceMillis);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    /**
+     * 开始监听
+     */
+    public synchronized void start() throws IOException
+    {
+        if (running)
+            return;
+
+        watchService = FileSystems.getDefault().newWatchService();
+        _registerAll(javaRoot);
+        _registerAll(classRoot);
+        running = true;
+
+        watchThread = new Thread(this::_watchLoop, "agent-watch");
+        watchThread.setDaemon(true);
+        watchThread.start();
+
+        applyThread = new Thread(this::_applyLoop, "agent-watch-apply");
+        applyThread.setDaemon(true);
+        applyThread.start();
+
+        LOGGER.info(String.format("patch watcher started, java: %s, class: %s, debounce: %dms", javaRoot, classRoot, debounceMillis));
+    }
+
+    /**
+     * 停止监听, 未处理的事件丢弃
+     */
+    public synchronized void stop()
+    {
+        if (!running)
+            return;
+
+        running = false;
+        try
+        {
+            watchService.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.error(e.getMessage(), e);
+        }
+        applyThread.interrupt();
+        resume();
+        queue.clear();
+        synchronized (watchDirs)
+        {
+            watchDirs.clear();
+        }
+        LOGGER.info("patch watcher stopped.");
+    }
+
+    /**
+     * 暂停热更(例如高峰期), 事件继续收集, 恢复后合并成一批处理
+     */
+    public void pause()
+    {
+        paused = true;
+        LOGGER.info("patch watcher paused.");
+    }
+
+    /**
+     * 恢复热更
+     */
+    public void resume()
+    {
+        synchronized (pauseLock)
+        {
+            paused = false;
+            pauseLock.notifyAll();
+        }
+    }
+
+    public boolean isPaused()
+    {
+        return paused;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * @return 当前排队的文件变化数量
+     */
+    public int getPendingCount()
+    {
+        return queue.size();
+    }
+
+    private void _registerAll(Path root) throws IOException
+    {
+        if (!Files.isDirectory(root))
+            Files.createDirectories(root);
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+            {
+                _register(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void _register(Path dir) throws IOException
+    {
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        synchronized (watchDirs)
+        {
+            watchDirs.add(dir);
+        }
+    }
+
+    /**
+     * 监听线程: 收集文件事件放入有界队列
+     */
+    private void _watchLoop()
+    {
+        while (running)
+        {
+            WatchKey key;
+            try
+            {
+                key = watchService.take();
+            }
+            catch (InterruptedException | ClosedWatchServiceException e)
+            {
+                break;
+            }
+
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents())
+            {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                {
+                    overflow = true;
+                    continue;
+                }
+
+                Path path = dir.resolve((Path) event.context());
+                try
+                {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path))
+                    {
+                        // 新目录需要注册, 注册前已经写入目录的文件也需要处理
+                        _registerAll(path);
+                        List<Path> files = _scan(path, JavaSuffix);
+                        files.addAll(_scan(path, ClassSuffix));
+                        files.addAll(_scan(path, JarSuffix));
+                        files.addAll(_scan(path, ZipSuffix));
+                        for (Path file : files)
+                        {
+                            if (!queue.offer(file))
+                                overflow = true;
+                        }
+                        continue;
+                    }
+                }
+                catch (IOException e)
+                {
+                    LOGGER.error("watch register error: " + path, e);
+                }
+
+                String name = path.getFileName().toString();
+                if (name.startsWith(".") || !(name.endsWith(JavaSuffix) || name.endsWith(ClassSuffix) || _isBundle(name)))
+                    continue;
+
+                try
+                {
+                    // 队列满时阻塞等待apply线程处理, 超时则丢弃并标记全量扫描
+                    if (!queue.offer(path, maxDelayMillis, TimeUnit.MILLISECONDS))
+                        overflow = true;
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+
+            if (!key.reset())
+            {
+                synchronized (watchDirs)
+                {
+                    watchDirs.remove(dir);
+                }
+            }
+        }
+    }
+
+    /**
+     * 热更线程: 等待防抖窗口结束, 合并一批变化后编译并替换
+     */
+    private void _applyLoop()
+    {
+        while (running)
+        {
+            try
+            {
+                Set<Path> batch = new LinkedHashSet<>();
+                Path first = queue.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                if (first == null && !overflow)
+                    continue;
+
+                if (first != null)
+                    batch.add(first);
+
+                // 窗口内持续有新事件则继续等待, 最长等待maxDelayMillis
+                long deadline = System.currentTimeMillis() + maxDelayMillis;
+                while (System.currentTimeMillis() < deadline)
+                {
+                    Path next = queue.poll(debounceMillis, TimeUnit.MILLISECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+
+                // 暂停期间继续收集, 恢复后一起处理
+                synchronized (pauseLock)
+                {
+                    while (paused && running)
+                    {
+                        pauseLock.wait();
+                    }
+                }
+                queue.drainTo(batch);
+
+                if (overflow)
+                {
+                    overflow = false;
+                    batch.addAll(_scan(javaRoot, JavaSuffix));
+                    batch.addAll(_scan(classRoot, ClassSuffix));
+                    batch.addAll(_scan(classRoot, JarSuffix));
+                    batch.addAll(_scan(classRoot, ZipSuffix));
+                }
+
+                // 和其他热更请求一样在热更线程中执行
+                Agent.await(Agent.submit("watch", () ->
+                {
+                    _apply(batch);
+                    return null;
+                }));
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            catch (Throwable e)
+            {
+                LOGGER.error("patch watcher apply error.", e);
+            }
+        }
+    }
+
+    private void _apply(Set<Path> batch) throws Exception
+    {
+        List<String> scripts = new ArrayList<>();
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        Map<Path, String> bundles = new LinkedHashMap<>();
+        for (Path path : batch)
+        {
+            if (!Files.isRegularFile(path))
+                continue;
+
+            String name = path.getFileName().toString();
+            if (name.endsWith(JavaSuffix) && path.startsWith(javaRoot))
+            {
+                scripts.add(_toClassName(javaRoot, path, JavaSuffix));
+            }
+            else if (name.endsWith(ClassSuffix) && path.startsWith(classRoot))
+            {
+                String className = _toClassName(classRoot, path, ClassSuffix);
+                byte[] bytes = Files.readAllBytes(path);
+                String hash = Hashing.sha256().hashBytes(bytes).toString();
+                // 编译器写出的class或者没有变化的class不需要再次替换
+                if (!hash.equals(appliedClasses.get(className)))
+                    classes.put(className, bytes);
+            }
+            else if (_isBundle(name) && path.startsWith(classRoot))
+            {
+                String hash = Hashing.sha256().hashBytes(Files.readAllBytes(path)).toString();
+                if (!hash.equals(appliedBundles.get(path)))
+                    bundles.put(path, hash);
+            }
+        }
+
+        if (!scripts.isEmpty())
+        {
+            LOGGER.info("patch watcher compile " + scripts.size() + " scripts: " + scripts);
+            if (Agent.agentScripts("watch", scripts))
+            {
+                // 编译输出的class文件事件稍后到达, 记录hash避免重复替换
+                _rememberOutputs(scripts);
+            }
+        }
+
+        if (!classes.isEmpty())
+        {
+            LOGGER.info("patch watcher reload " + classes.size() + " classes: " + classes.keySet());
+            RedefineResult result = Agent._reloadClass(classes, null);
+            if (result.isSuccess())
+            {
+                for (Map.Entry<String, byte[]> entry : classes.entrySet())
+                {
+                    appliedClasses.put(entry.getKey(), Hashing.sha256().hashBytes(entry.getValue()).toString());
+                }
+            }
+        }
+
+        for (Map.Entry<Path, String> entry : bundles.entrySet())
+        {
+            LOGGER.info("patch watcher reload bundle: " + entry.getKey());
+            if (Agent._reloadBundle(entry.getKey().toString()).isSuccess())
+                appliedBundles.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * 记录脚本编译输出到class目录的文件hash
+     */
+    private void _rememberOutputs(List<String> scripts) throws IOException
+    {
+        for (String script : scripts)
+        {
+            Path dir = classRoot.resolve(script.replace('.', File.separatorChar)).getParent();
+            if (dir == null || !Files.isDirectory(dir))
+                continue;
+
+            String simpleName = script.substring(script.lastIndexOf('.') + 1);
+            File[] files = dir.toFile().listFiles();
+            if (files == null)
+                continue;
+
+            for (File file : files)
+            {
+                String name = file.getName();
+                if (name.equals(simpleName + ClassSuffix) || name.startsWith(simpleName + "$") && name.endsWith(ClassSuffix))
+                {
+                    byte[] bytes = Files.readAllBytes(file.toPath());
+                    appliedClasses.put(_toClassName(classRoot, file.toPath(), ClassSuffix), Hashing.sha256().hashBytes(bytes).toString());
+                }
+            }
+        }
+    }
+
+    private static boolean _isBundle(String name)
+    {
+        return name.endsWith(JarSuffix) || name.endsWith(ZipSuffix);
+    }
+
+    private List<Path> _scan(Path root, final String suffix) throws IOException
+    {
+        final List<Path> result = new ArrayList<>();
+        if (!Files.isDirectory(root))
+            return result;
+
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                if (file.getFileName().toString().endsWith(suffix))
+                    result.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return result;
+    }
+
+    private static String _toClassName(Path root, Path file, String suffix)
+    {
+        String relative = root.relativize(file).toString();
+        relative = relative.substring(0, relative.length() - suffix.length());
+        return relative.replace(File.separatorChar, '.');
+    }
+}
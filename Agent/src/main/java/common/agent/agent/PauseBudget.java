@@ -0,0 +1,130 @@
+package common.agent.agent;
+
+import java.io.File;
+import java.lang.instrument.ClassDefinition;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PauseBudget
+ * <p>
+ * 按停顿预算拆分大批量热更: 估算每批的停顿不超过预算, 同时每批只读取这一批的class文件, 限制堆内存峰值
+ * 停顿估算使用实际测得的每KB字节码的停顿(指数加权平均), 每次批量替换成功后更新
+ * 测得的停顿包括替换前通过retransform记录原字节码的停顿(开启retransformCapture时), 两次安全点合计不超过预算
+ * 同一个源文件编译出的class(Outer, Outer$Inner, Outer$1)放在同一批, 一个源文件内部的修改同时生效;
+ * 这只是切分粒度, 不能保证不同源文件之间的调用一致, 中间批次生效时其它批次仍是旧代码
+ */
+class PauseBudget
+{
+    private static final double InitialNanosPerKb = 50000;  // 还没有测量时的估算: 每KB 50us
+    private static final double Alpha             = 0.3;    // 指数加权平均的新样本权重
+    private static final long   MinSampleBytes    = 16 * 1024;  // 太小的批次固定开销占比大, 不参与估算
+
+    private static volatile double nanosPerKb = InitialNanosPerKb;
+
+    /**
+     * 待替换的class文件, 只记录路径和大小, 替换这一批时才读取
+     */
+    static class ClassFileEntry
+    {
+        final String className;
+        final File   file;
+        final long   length;
+
+        ClassFileEntry(String className, File file)
+        {
+            this.className = className;
+            this.file = file;
+            this.length = file.length();
+        }
+    }
+
+    private PauseBudget()
+    {
+    }
+
+    /**
+     * 记录一次批量替换的停顿, 更新每KB的替换耗时
+     */
+    static void record(List<ClassDefinition> definitions, long pauseNanos)
+    {
+        long bytes = 0;
+        for (ClassDefinition definition : definitions)
+        {
+            bytes += definition.getDefinitionClassFile().length;
+        }
+        if (bytes < MinSampleBytes || pauseNanos <= 0)
+            return;
+
+        double sample = pauseNanos / (bytes / 1024.0);
+        nanosPerKb = nanosPerKb * (1 - Alpha) + sample * Alpha;
+    }
+
+    /**
+     * @return 当前估算的每KB字节码替换耗时
+     */
+    static double getNanosPerKb()
+    {
+        return nanosPerKb;
+    }
+
+    /**
+     * @return 估算的停顿
+     */
+    static long estimate(long bytes)
+    {
+        return (long) (bytes / 1024.0 * nanosPerKb);
+    }
+
+    /**
+     * 拆分成多批, 同一个外部类的class在同一批中, 按原顺序装入批次直到估算停顿超过预算
+     * 单个分组超过预算时单独一批
+     *
+     * @param files       待替换的class文件
+     * @param budgetNanos 每批的停顿预算
+     * @return 批次
+     */
+    static List<List<ClassFileEntry>> plan(List<ClassFileEntry> files, long budgetNanos)
+    {
+        Map<String, List<ClassFileEntry>> groups = new LinkedHashMap<>();
+        for (ClassFileEntry file : files)
+        {
+            groups.computeIfAbsent(_outerName(file.className), k -> new ArrayList<>()).add(file);
+        }
+
+        List<List<ClassFileEntry>> batches = new ArrayList<>();
+        List<ClassFileEntry> batch = new ArrayList<>();
+        long batchBytes = 0;
+        for (List<ClassFileEntry> group : groups.values())
+        {
+            long groupBytes = 0;
+            for (ClassFileEntry file : group)
+            {
+                groupBytes += file.length;
+            }
+
+            if (!batch.isEmpty() && estimate(batchBytes + groupBytes) > budgetNanos)
+            {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.addAll(group);
+            batchBytes += groupBytes;
+        }
+        if (!batch.isEmpty())
+            batches.add(batch);
+        return batches;
+    }
+
+    /**
+     * a.b.Outer$Inner$1 -> a.b.Outer
+     */
+    private static String _outerName(String className)
+    {
+        int index = className.indexOf('$', className.lastIndexOf('.') + 1);
+        return index > 0 ? className.substring(0, index) : className;
+    }
+}
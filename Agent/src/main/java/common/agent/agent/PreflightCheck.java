@@ -0,0 +1,88 @@
+package common.agent.agent;
+
+import common.agent.classfile.ClassCompatibility;
+import common.agent.classfile.ClassFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.instrument.ClassDefinition;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * PreflightCheck
+ * <p>
+ * 进入redefineClasses之前的结构兼容性检查
+ * JVM要在安全点内才会校验新class的结构, 不兼容时整个进程已经停顿过一次; 这里提前解析class文件比较, 不兼容的热更直接拒绝
+ * 当前生效的class优先使用热更历史中记录的字节码, 没有时使用加载器中的class文件(结构与加载时相同)
+ */
+class PreflightCheck
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(PreflightCheck.class);
+
+    private static final int ParallelThreshold = 16;     // class数量达到这个值时并行检查
+
+    private PreflightCheck()
+    {
+    }
+
+    /**
+     * @param definitions 待替换的class
+     * @return 类全名 -> 不兼容的地方, 全部兼容时为空
+     */
+    static Map<String, List<String>> check(List<ClassDefinition> definitions)
+    {
+        Map<String, List<String>> problems = new ConcurrentHashMap<>();
+        if (definitions.size() >= ParallelThreshold)
+            definitions.parallelStream().forEach(definition -> _check(definition, problems));
+        else
+            definitions.forEach(definition -> _check(definition, problems));
+        return problems.isEmpty() ? Collections.<String, List<String>>emptyMap() : new TreeMap<>(problems);
+    }
+
+    private static void _check(ClassDefinition definition, Map<String, List<String>> problems)
+    {
+        Class<?> clazz = definition.getDefinitionClass();
+        try
+        {
+            byte[] live = PatchHistory.getCurrent(clazz);
+            if (live == null)
+                live = AppliedClasses.loadClassFile(clazz);
+            if (live == null)
+            {
+                // 找不到当前的class文件, 交给JVM校验
+                LOGGER.debug("preflight check skipped, class file not found: " + clazz.getName());
+                return;
+            }
+
+            List<String> list = ClassCompatibility.check(ClassFile.parse(live), ClassFile.parse(definition.getDefinitionClassFile()));
+            if (!list.isEmpty())
+                problems.put(clazz.getName(), list);
+        }
+        catch (IOException e)
+        {
+            problems.put(clazz.getName(), Collections.singletonList("class file parse error: " + e.getMessage()));
+        }
+    }
+
+    /**
+     * @return 多行报告, 每个class一段
+     */
+    static String report(Map<String, List<String>> problems)
+    {
+        StringBuilder builder = new StringBuilder("incompatible class changes (").append(problems.size()).append(" classes):");
+        for (Map.Entry<String, List<String>> entry : problems.entrySet())
+        {
+            builder.append("\n  ").append(entry.getKey());
+            for (String problem : entry.getValue())
+            {
+                builder.append("\n    ").append(problem);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,233 @@
+package common.agent.agent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RedefineResult
+ * <p>
+ * 一次class替换的结果
+ */
+public class RedefineResult
+{
+    private final List<String> classNames;      // 本次替换的类全名
+    private boolean            batch;           // 是否一次redefineClasses调用整批替换
+    private boolean            success;         // 是否全部替换成功
+    private long               pauseNanos;      // redefineClasses耗时(stop-the-world停顿)
+    private long               readNanos;       // 读取class文件/热更包的耗时, 内存中的字节码为0
+    private long               verifyNanos;     // 替换前过滤没有变化的class和结构检查的耗时
+    private String             failedClass;     // 导致失败的类, 无法确定时为null
+    private Throwable          error;           // 失败原因
+    private long               patchId;         // 热更id, 用于回滚, 没有记录时为0
+    private List<String>       skippedClasses = Collections.emptyList();   // 字节码没有变化而跳过的类
+    private Map<String, List<String>> incompatibleClasses = Collections.emptyMap();   // 结构检查不通过的类 -> 原因
+    private int                batches;         // 按停顿预算分批替换时的批次数, 0表示没有分批
+    private long               maxPauseNanos;   // 分批替换时最长的一次停顿
+    private List<Long>         batchPatchIds = Collections.emptyList();   // 分批替换时每批的热更id
+
+    public RedefineResult(List<String> classNames)
+    {
+        this.classNames = new ArrayList<>(classNames);
+    }
+
+    void setBatch(boolean batch)
+    {
+        this.batch = batch;
+    }
+
+    void setSuccess(boolean success)
+    {
+        this.success = success;
+    }
+
+    void setPauseNanos(long pauseNanos)
+    {
+        this.pauseNanos = pauseNanos;
+    }
+
+    /**
+     * 合并一批的替换结果, 停顿和各阶段耗时累加
+     */
+    void addBatch(RedefineResult batch, long readNanos)
+    {
+        if (batches == 0)
+        {
+            skippedClasses = new ArrayList<>();
+            batchPatchIds = new ArrayList<>();
+        }
+        batches++;
+        this.pauseNanos += batch.pauseNanos;
+        this.maxPauseNanos = Math.max(maxPauseNanos, batch.pauseNanos);
+        this.readNanos += readNanos;
+        this.verifyNanos += batch.verifyNanos;
+        this.skippedClasses.addAll(batch.skippedClasses);
+        if (batch.patchId > 0)
+        {
+            this.batchPatchIds.add(batch.patchId);
+            this.patchId = batch.patchId;
+        }
+        if (!batch.success)
+        {
+            this.incompatibleClasses = batch.incompatibleClasses;
+            setFailed(batch.failedClass, batch.error);
+        }
+    }
+
+    void setReadNanos(long readNanos)
+    {
+        this.readNanos = readNanos;
+    }
+
+    void setVerifyNanos(long verifyNanos)
+    {
+        this.verifyNanos = verifyNanos;
+    }
+
+    void setFailed(String failedClass, Throwable error)
+    {
+        this.success = false;
+        this.failedClass = failedClass;
+        this.error = error;
+    }
+
+    /**
+     * 结构检查不通过, 没有调用redefineClasses
+     */
+    void setIncompatible(Map<String, List<String>> incompatibleClasses, String report)
+    {
+        this.incompatibleClasses = new LinkedHashMap<>(incompatibleClasses);
+        setFailed(incompatibleClasses.keySet().iterator().next(), new UnsupportedOperationException(report));
+    }
+
+    void setPatchId(long patchId)
+    {
+        this.patchId = patchId;
+    }
+
+    void setSkippedClasses(List<String> skippedClasses)
+    {
+        this.skippedClasses = new ArrayList<>(skippedClasses);
+    }
+
+    public List<String> getClassNames()
+    {
+        return Collections.unmodifiableList(classNames);
+    }
+
+    public boolean isBatch()
+    {
+        return batch;
+    }
+
+    public boolean isSuccess()
+    {
+        return success;
+    }
+
+    public long getPauseNanos()
+    {
+        return pauseNanos;
+    }
+
+    public long getPauseMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(pauseNanos);
+    }
+
+    /**
+     * @return 读取class文件或热更包的耗时, 替换内存中的字节码时为0; 分批替换时为各批之和
+     */
+    public long getReadNanos()
+    {
+        return readNanos;
+    }
+
+    public long getVerifyNanos()
+    {
+        return verifyNanos;
+    }
+
+    /**
+     * @return 按停顿预算分批替换时的批次数, 没有分批时为0
+     */
+    public int getBatches()
+    {
+        return batches;
+    }
+
+    /**
+     * @return 分批替换时最长的一次停顿, 没有分批时为0
+     */
+    public long getMaxPauseNanos()
+    {
+        return maxPauseNanos;
+    }
+
+    /**
+     * @return 分批替换时每批的热更id, 按替换顺序
+     */
+    public List<Long> getBatchPatchIds()
+    {
+        return Collections.unmodifiableList(batchPatchIds);
+    }
+
+    /**
+     * @return 导致失败的类全名, 成功或者无法确定时为null
+     */
+    public String getFailedClass()
+    {
+        return failedClass;
+    }
+
+    public Throwable getError()
+    {
+        return error;
+    }
+
+    /**
+     * @return 字节码指纹与当前生效的class相同而没有替换的类全名
+     */
+    public List<String> getSkippedClasses()
+    {
+        return Collections.unmodifiableList(skippedClasses);
+    }
+
+    /**
+     * @return 替换前结构检查不通过的类全名 -> 不兼容的地方, 不为空时没有进入安全点
+     */
+    public Map<String, List<String>> getIncompatibleClasses()
+    {
+        return Collections.unmodifiableMap(incompatibleClasses);
+    }
+
+    /**
+     * @return 是否在替换前被结构检查拒绝
+     */
+    public boolean isRejected()
+    {
+        return !incompatibleClasses.isEmpty();
+    }
+
+    /**
+     * @return 热更id, 可以用于Agent.rollback(patchId), 没有记录历史时为0
+     */
+    public long getPatchId()
+    {
+        return patchId;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "RedefineResult{success=" + success + (patchId > 0 ? ", patchId=" + patchId : "") + ", batch=" + batch + ", classes=" + classNames.size()
+                + (skippedClasses.isEmpty() ? "" : ", skipped=" + skippedClasses.size())
+                + (incompatibleClasses.isEmpty() ? "" : ", rejected=" + incompatibleClasses.keySet())
+                + ", pause=" + String.format("%.3f", pauseNanos / 1000000.0) + "ms"
+                + (batches == 0 ? "" : ", batches=" + batches + ", maxPause=" + String.format("%.3f", maxPauseNanos / 1000000.0) + "ms")
+                + (success ? "" : ", failedClass=" + failedClass + ", error=" + error) + "}";
+    }
+}
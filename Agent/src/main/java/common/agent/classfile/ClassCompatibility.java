@@ -0,0 +1,182 @@
+package common.agent.classfile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ClassCompatibility
+ * <p>
+ * 替换前的结构兼容性检查, 规则与HotSpot redefineClasses一致(不支持增强替换的JVM):
+ * 类名、父类、接口(包括顺序)、类修饰符不能变化; 字段不能增删改(包括顺序);
+ * 方法不能增删, 名字/描述符/修饰符不能变化, private static/private final方法除外; NestHost/NestMembers不能变化
+ * 在进入安全点之前发现不兼容的修改, 不会产生停顿
+ */
+public class ClassCompatibility
+{
+    // HotSpot中参与比较的修饰符
+    private static final int CLASS_MODIFIERS  = 0x7631;     // JVM_RECOGNIZED_CLASS_MODIFIERS
+    private static final int FIELD_MODIFIERS  = 0x50DF;     // JVM_RECOGNIZED_FIELD_MODIFIERS
+    private static final int METHOD_MODIFIERS = 0x1DFF;     // JVM_RECOGNIZED_METHOD_MODIFIERS
+
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_STATIC  = 0x0008;
+    private static final int ACC_FINAL   = 0x0010;
+
+    private ClassCompatibility()
+    {
+    }
+
+    /**
+     * 检查新的class能否替换当前的class
+     *
+     * @param live  当前生效的class(结构与第一次加载时相同)
+     * @param patch 新的class
+     * @return 不兼容的地方, 兼容时为空列表
+     */
+    public static List<String> check(ClassFile live, ClassFile patch) throws IOException
+    {
+        List<String> problems = new ArrayList<>();
+        if (!live.getName().equals(patch.getName()))
+            problems.add("class name changed: " + live.getName() + " -> " + patch.getName());
+
+        if (!String.valueOf(live.getSuperName()).equals(String.valueOf(patch.getSuperName())))
+            problems.add("superclass changed: " + live.getSuperName() + " -> " + patch.getSuperName());
+
+        if (!live.getInterfaces().equals(patch.getInterfaces()))
+            problems.add("interfaces changed: " + live.getInterfaces() + " -> " + patch.getInterfaces());
+
+        if ((live.getAccess() & CLASS_MODIFIERS) != (patch.getAccess() & CLASS_MODIFIERS))
+            problems.add(String.format("class modifiers changed: 0x%04x -> 0x%04x", live.getAccess() & CLASS_MODIFIERS, patch.getAccess() & CLASS_MODIFIERS));
+
+        _checkFields(live, patch, problems);
+        _checkMethods(live, patch, problems);
+        _checkNest(live, patch, problems);
+        return problems;
+    }
+
+    /**
+     * 字段按顺序逐个比较
+     */
+    private static void _checkFields(ClassFile live, ClassFile patch, List<String> problems)
+    {
+        List<ClassFile.Member> oldFields = live.getFields();
+        List<ClassFile.Member> newFields = patch.getFields();
+        int count = Math.max(oldFields.size(), newFields.size());
+        for (int i = 0; i < count; i++)
+        {
+            ClassFile.Member oldField = i < oldFields.size() ? oldFields.get(i) : null;
+            ClassFile.Member newField = i < newFields.size() ? newFields.get(i) : null;
+            if (oldField == null)
+            {
+                problems.add("field added: " + _field(newField));
+            }
+            else if (newField == null)
+            {
+                problems.add("field removed: " + _field(oldField));
+            }
+            else if (!oldField.getName().equals(newField.getName()) || !oldField.getDescriptor().equals(newField.getDescriptor()))
+            {
+                problems.add("field changed or reordered at " + i + ": " + _field(oldField) + " -> " + _field(newField));
+            }
+            else if ((oldField.getAccess() & FIELD_MODIFIERS) != (newField.getAccess() & FIELD_MODIFIERS))
+            {
+                problems.add(String.format("field modifiers changed: %s 0x%04x -> 0x%04x", _field(oldField), oldField.getAccess() & FIELD_MODIFIERS, newField.getAccess() & FIELD_MODIFIERS));
+            }
+        }
+    }
+
+    /**
+     * 方法按 名字+描述符 比较, 顺序可以变化
+     */
+    private static void _checkMethods(ClassFile live, ClassFile patch, List<String> problems)
+    {
+        Map<String, ClassFile.Member> oldMethods = _methods(live);
+        Map<String, ClassFile.Member> newMethods = _methods(patch);
+        for (Map.Entry<String, ClassFile.Member> entry : oldMethods.entrySet())
+        {
+            ClassFile.Member oldMethod = entry.getValue();
+            ClassFile.Member newMethod = newMethods.get(entry.getKey());
+            if (newMethod == null)
+            {
+                if (!_isPrivateStaticOrFinal(oldMethod))
+                    problems.add("method removed: " + entry.getKey());
+            }
+            else if ((oldMethod.getAccess() & METHOD_MODIFIERS) != (newMethod.getAccess() & METHOD_MODIFIERS))
+            {
+                problems.add(String.format("method modifiers changed: %s 0x%04x -> 0x%04x", entry.getKey(), oldMethod.getAccess() & METHOD_MODIFIERS, newMethod.getAccess() & METHOD_MODIFIERS));
+            }
+        }
+
+        for (Map.Entry<String, ClassFile.Member> entry : newMethods.entrySet())
+        {
+            if (!oldMethods.containsKey(entry.getKey()) && !_isPrivateStaticOrFinal(entry.getValue()))
+                problems.add("method added: " + entry.getKey());
+        }
+    }
+
+    private static void _checkNest(ClassFile live, ClassFile patch, List<String> problems) throws IOException
+    {
+        for (String name : Arrays.asList("NestHost", "NestMembers"))
+        {
+            List<String> oldValue = _classRefs(live, name);
+            List<String> newValue = _classRefs(patch, name);
+            if (!oldValue.equals(newValue))
+                problems.add(name + " changed: " + oldValue + " -> " + newValue);
+        }
+    }
+
+    /**
+     * NestHost/NestMembers属性中的类名
+     */
+    private static List<String> _classRefs(ClassFile classFile, String attributeName) throws IOException
+    {
+        List<String> names = new ArrayList<>();
+        for (ClassFile.Attribute attribute : classFile.getAttributes())
+        {
+            if (!attribute.getName().equals(attributeName))
+                continue;
+
+            byte[] info = attribute.getInfo();
+            if (attributeName.equals("NestHost"))
+            {
+                names.add(classFile.getClassName(((info[0] & 0xFF) << 8) | (info[1] & 0xFF)));
+            }
+            else
+            {
+                int count = ((info[0] & 0xFF) << 8) | (info[1] & 0xFF);
+                for (int i = 0; i < count; i++)
+                {
+                    names.add(classFile.getClassName(((info[2 + i * 2] & 0xFF) << 8) | (info[3 + i * 2] & 0xFF)));
+                }
+            }
+        }
+        return names;
+    }
+
+    private static Map<String, ClassFile.Member> _methods(ClassFile classFile)
+    {
+        Map<String, ClassFile.Member> methods = new LinkedHashMap<>();
+        for (ClassFile.Member method : classFile.getMethods())
+        {
+            methods.put(method.getName() + method.getDescriptor(), method);
+        }
+        return methods;
+    }
+
+    /**
+     * private static/private final方法可以增删
+     */
+    private static boolean _isPrivateStaticOrFinal(ClassFile.Member method)
+    {
+        return (method.getAccess() & ACC_PRIVATE) != 0 && (method.getAccess() & (ACC_STATIC | ACC_FINAL)) != 0;
+    }
+
+    private static String _field(ClassFile.Member field)
+    {
+        return field.getName() + ":" + field.getDescriptor();
+    }
+}
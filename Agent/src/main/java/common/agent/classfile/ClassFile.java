@@ -0,0 +1,425 @@
+package common.agent.classfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * ClassFile
+ * <p>
+ * 轻量的class文件解析, 只解析常量池、类/字段/方法的声明和属性的原始字节, 不解析字节码指令
+ * 用于比较两个版本的class(指纹、结构兼容性、依赖关系), 不依赖ASM等第三方库
+ */
+public class ClassFile
+{
+    public static final int CONSTANT_Utf8               = 1;
+    public static final int CONSTANT_Integer            = 3;
+    public static final int CONSTANT_Float              = 4;
+    public static final int CONSTANT_Long               = 5;
+    public static final int CONSTANT_Double             = 6;
+    public static final int CONSTANT_Class              = 7;
+    public static final int CONSTANT_String             = 8;
+    public static final int CONSTANT_Fieldref           = 9;
+    public static final int CONSTANT_Methodref          = 10;
+    public static final int CONSTANT_InterfaceMethodref = 11;
+    public static final int CONSTANT_NameAndType        = 12;
+    public static final int CONSTANT_MethodHandle       = 15;
+    public static final int CONSTANT_MethodType         = 16;
+    public static final int CONSTANT_Dynamic            = 17;
+    public static final int CONSTANT_InvokeDynamic      = 18;
+    public static final int CONSTANT_Module             = 19;
+    public static final int CONSTANT_Package            = 20;
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    /**
+     * 常量池项, 引用类型的常量只记录下标
+     */
+    public static class Constant
+    {
+        private final int    tag;
+        private final int    ref1;      // 第一个引用下标(或者MethodHandle的kind)
+        private final int    ref2;      // 第二个引用下标
+        private final Object value;     // Utf8/数值常量的值
+
+        Constant(int tag, int ref1, int ref2, Object value)
+        {
+            this.tag = tag;
+            this.ref1 = ref1;
+            this.ref2 = ref2;
+            this.value = value;
+        }
+
+        public int getTag()
+        {
+            return tag;
+        }
+
+        public int getRef1()
+        {
+            return ref1;
+        }
+
+        public int getRef2()
+        {
+            return ref2;
+        }
+
+        public Object getValue()
+        {
+            return value;
+        }
+    }
+
+    /**
+     * 属性, 只保存原始字节
+     */
+    public static class Attribute
+    {
+        private final String name;
+        private final byte[] info;
+
+        Attribute(String name, byte[] info)
+        {
+            this.name = name;
+            this.info = info;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public byte[] getInfo()
+        {
+            return info;
+        }
+    }
+
+    /**
+     * 字段或者方法
+     */
+    public static class Member
+    {
+        private final int             access;
+        private final String          name;
+        private final String          descriptor;
+        private final List<Attribute> attributes;
+
+        Member(int access, String name, String descriptor, List<Attribute> attributes)
+        {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.attributes = attributes;
+        }
+
+        public int getAccess()
+        {
+            return access;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public String getDescriptor()
+        {
+            return descriptor;
+        }
+
+        public List<Attribute> getAttributes()
+        {
+            return Collections.unmodifiableList(attributes);
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + descriptor;
+        }
+    }
+
+    private final int             minorVersion;
+    private final int             majorVersion;
+    private final Constant[]      constants;        // 常量池, 下标0以及long/double的第二个位置为null
+    private final int             access;
+    private final String          name;             // 内部名 a/b/C
+    private final String          superName;        // 父类内部名, Object为null
+    private final List<String>    interfaces;
+    private final List<Member>    fields;
+    private final List<Member>    methods;
+    private final List<Attribute> attributes;
+
+    private ClassFile(DataInputStream in) throws IOException
+    {
+        if (in.readInt() != MAGIC)
+            throw new IOException("not a class file.");
+
+        minorVersion = in.readUnsignedShort();
+        majorVersion = in.readUnsignedShort();
+        constants = _readConstants(in);
+        access = in.readUnsignedShort();
+        name = getClassName(in.readUnsignedShort());
+        int superIndex = in.readUnsignedShort();
+        superName = superIndex == 0 ? null : getClassName(superIndex);
+
+        int count = in.readUnsignedShort();
+        List<String> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            list.add(getClassName(in.readUnsignedShort()));
+        }
+        interfaces = list;
+        fields = _readMembers(in);
+        methods = _readMembers(in);
+        attributes = _readAttributes(in);
+    }
+
+    /**
+     * 解析class文件
+     *
+     * @param bytes class字节码
+     * @return 解析结果
+     * @throws IOException 格式错误
+     */
+    public static ClassFile parse(byte[] bytes) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes)))
+        {
+            return new ClassFile(in);
+        }
+    }
+
+    private static Constant[] _readConstants(DataInputStream in) throws IOException
+    {
+        int count = in.readUnsignedShort();
+        Constant[] constants = new Constant[count];
+        for (int i = 1; i < count; i++)
+        {
+            int tag = in.readUnsignedByte();
+            switch (tag)
+            {
+                case CONSTANT_Utf8:
+                    constants[i] = new Constant(tag, 0, 0, in.readUTF());
+                    break;
+                case CONSTANT_Integer:
+                    constants[i] = new Constant(tag, 0, 0, in.readInt());
+                    break;
+                case CONSTANT_Float:
+                    constants[i] = new Constant(tag, 0, 0, in.readFloat());
+                    break;
+                case CONSTANT_Long:
+                    constants[i] = new Constant(tag, 0, 0, in.readLong());
+                    i++;
+                    break;
+                case CONSTANT_Double:
+                    constants[i] = new Constant(tag, 0, 0, in.readDouble());
+                    i++;
+                    break;
+                case CONSTANT_Class:
+                case CONSTANT_String:
+                case CONSTANT_MethodType:
+                case CONSTANT_Module:
+                case CONSTANT_Package:
+                    constants[i] = new Constant(tag, in.readUnsignedShort(), 0, null);
+                    break;
+                case CONSTANT_Fieldref:
+                case CONSTANT_Methodref:
+                case CONSTANT_InterfaceMethodref:
+                case CONSTANT_NameAndType:
+                case CONSTANT_Dynamic:
+                case CONSTANT_InvokeDynamic:
+                    constants[i] = new Constant(tag, in.readUnsignedShort(), in.readUnsignedShort(), null);
+                    break;
+                case CONSTANT_MethodHandle:
+                    constants[i] = new Constant(tag, in.readUnsignedByte(), in.readUnsignedShort(), null);
+                    break;
+                default:
+                    throw new IOException("unknown constant tag " + tag + " at " + i);
+            }
+        }
+        return constants;
+    }
+
+    private List<Member> _readMembers(DataInputStream in) throws IOException
+    {
+        int count = in.readUnsignedShort();
+        List<Member> members = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            int memberAccess = in.readUnsignedShort();
+            String memberName = getUtf8(in.readUnsignedShort());
+            String descriptor = getUtf8(in.readUnsignedShort());
+            members.add(new Member(memberAccess, memberName, descriptor, _readAttributes(in)));
+        }
+        return members;
+    }
+
+    private List<Attribute> _readAttributes(DataInputStream in) throws IOException
+    {
+        int count = in.readUnsignedShort();
+        List<Attribute> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String attributeName = getUtf8(in.readUnsignedShort());
+            byte[] info = new byte[in.readInt()];
+            in.readFully(info);
+            list.add(new Attribute(attributeName, info));
+        }
+        return list;
+    }
+
+    /**
+     * @param index 常量池下标
+     * @return 常量, 下标无效时抛出IOException
+     */
+    public Constant getConstant(int index) throws IOException
+    {
+        if (index <= 0 || index >= constants.length || constants[index] == null)
+            throw new IOException("bad constant index " + index);
+        return constants[index];
+    }
+
+    public int getConstantCount()
+    {
+        return constants.length;
+    }
+
+    public String getUtf8(int index) throws IOException
+    {
+        Constant constant = getConstant(index);
+        if (constant.tag != CONSTANT_Utf8)
+            throw new IOException("constant " + index + " is not utf8.");
+        return (String) constant.value;
+    }
+
+    /**
+     * @param index CONSTANT_Class下标
+     * @return 内部名(a/b/C), 数组为描述符形式([La/b/C;)
+     */
+    public String getClassName(int index) throws IOException
+    {
+        Constant constant = getConstant(index);
+        if (constant.tag != CONSTANT_Class)
+            throw new IOException("constant " + index + " is not class.");
+        return getUtf8(constant.ref1);
+    }
+
+    /**
+     * 常量池中引用的所有类: CONSTANT_Class以及字段/方法/MethodType描述符中出现的类型, 不包括自己
+     *
+     * @return 内部名(a/b/C), 数组取元素类型
+     */
+    public Set<String> getReferencedClasses() throws IOException
+    {
+        Set<String> names = new TreeSet<>();
+        for (int i = 1; i < constants.length; i++)
+        {
+            Constant constant = constants[i];
+            if (constant == null)
+                continue;
+
+            if (constant.tag == CONSTANT_Class)
+            {
+                String className = getUtf8(constant.ref1);
+                if (className.startsWith("["))
+                    _addDescriptorClasses(className, names);
+                else
+                    names.add(className);
+            }
+            else if (constant.tag == CONSTANT_NameAndType)
+            {
+                _addDescriptorClasses(getUtf8(constant.ref2), names);
+            }
+            else if (constant.tag == CONSTANT_MethodType)
+            {
+                _addDescriptorClasses(getUtf8(constant.ref1), names);
+            }
+        }
+
+        for (Member member : fields)
+        {
+            _addDescriptorClasses(member.getDescriptor(), names);
+        }
+        for (Member member : methods)
+        {
+            _addDescriptorClasses(member.getDescriptor(), names);
+        }
+        names.remove(name);
+        return names;
+    }
+
+    /**
+     * 描述符中的 La/b/C; 类型
+     */
+    private static void _addDescriptorClasses(String descriptor, Set<String> names)
+    {
+        int index = descriptor.indexOf('L');
+        while (index >= 0)
+        {
+            int end = descriptor.indexOf(';', index);
+            if (end < 0)
+                return;
+            names.add(descriptor.substring(index + 1, end));
+            index = descriptor.indexOf('L', end);
+        }
+    }
+
+    public int getMinorVersion()
+    {
+        return minorVersion;
+    }
+
+    public int getMajorVersion()
+    {
+        return majorVersion;
+    }
+
+    public int getAccess()
+    {
+        return access;
+    }
+
+    /**
+     * @return 内部名 a/b/C
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * @return 父类内部名, java/lang/Object为null
+     */
+    public String getSuperName()
+    {
+        return superName;
+    }
+
+    public List<String> getInterfaces()
+    {
+        return Collections.unmodifiableList(interfaces);
+    }
+
+    public List<Member> getFields()
+    {
+        return Collections.unmodifiableList(fields);
+    }
+
+    public List<Member> getMethods()
+    {
+        return Collections.unmodifiableList(methods);
+    }
+
+    public List<Attribute> getAttributes()
+    {
+        return Collections.unmodifiableList(attributes);
+    }
+}
@@ -0,0 +1,412 @@
+package common.agent.classfile;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ClassFileFingerprint
+ * <p>
+ * class指纹, 只包含影响运行行为的内容, 两个class的指纹相同时替换没有意义
+ * 忽略调试信息(源文件名、行号表、局部变量表), 常量池下标替换成常量的值, 常量池顺序变化不影响指纹
+ * 无法规范化的属性按原始字节计算, 这种情况下宁可认为有变化
+ */
+public class ClassFileFingerprint
+{
+    /**
+     * 只用于调试的属性
+     */
+    private static final Set<String> DEBUG_ATTRIBUTES = new HashSet<>(Arrays.asList(
+            "SourceFile", "SourceDebugExtension", "LineNumberTable", "LocalVariableTable", "LocalVariableTypeTable"));
+
+    private ClassFileFingerprint()
+    {
+    }
+
+    /**
+     * 计算class指纹
+     *
+     * @param bytes class字节码
+     * @return 指纹
+     * @throws IOException class格式错误
+     */
+    public static String fingerprint(byte[] bytes) throws IOException
+    {
+        return fingerprint(ClassFile.parse(bytes));
+    }
+
+    public static String fingerprint(ClassFile classFile) throws IOException
+    {
+        Hasher hasher = Hashing.sha256().newHasher();
+        try (DataOutputStream out = new DataOutputStream(Funnels.asOutputStream(hasher)))
+        {
+            out.writeInt(classFile.getMajorVersion());
+            out.writeInt(classFile.getAccess());
+            _writeString(out, classFile.getName());
+            _writeString(out, String.valueOf(classFile.getSuperName()));
+            out.writeInt(classFile.getInterfaces().size());
+            for (String name : classFile.getInterfaces())
+            {
+                _writeString(out, name);
+            }
+            _writeMembers(out, classFile, classFile.getFields());
+            _writeMembers(out, classFile, classFile.getMethods());
+            _writeAttributes(out, classFile, classFile.getAttributes());
+        }
+        return hasher.hash().toString();
+    }
+
+    private static void _writeMembers(DataOutputStream out, ClassFile classFile, List<ClassFile.Member> members) throws IOException
+    {
+        out.writeInt(members.size());
+        for (ClassFile.Member member : members)
+        {
+            out.writeInt(member.getAccess());
+            _writeString(out, member.getName());
+            _writeString(out, member.getDescriptor());
+            _writeAttributes(out, classFile, member.getAttributes());
+        }
+    }
+
+    private static void _writeAttributes(DataOutputStream out, ClassFile classFile, List<ClassFile.Attribute> attributes) throws IOException
+    {
+        for (ClassFile.Attribute attribute : attributes)
+        {
+            if (DEBUG_ATTRIBUTES.contains(attribute.getName()))
+                continue;
+
+            _writeString(out, attribute.getName());
+            _writeAttribute(out, classFile, attribute.getName(), new DataInputStream(new ByteArrayInputStream(attribute.getInfo())), attribute.getInfo());
+        }
+        _writeString(out, "");
+    }
+
+    private static void _writeAttribute(DataOutputStream out, ClassFile classFile, String name, DataInputStream in, byte[] info) throws IOException
+    {
+        switch (name)
+        {
+            case "Code":
+                _writeCode(out, classFile, in);
+                break;
+            case "ConstantValue":
+            case "Signature":
+            case "NestHost":
+                _writeConstant(out, classFile, in.readUnsignedShort());
+                break;
+            case "Exceptions":
+            case "NestMembers":
+            case "PermittedSubclasses":
+            {
+                int count = in.readUnsignedShort();
+                out.writeInt(count);
+                for (int i = 0; i < count; i++)
+                {
+                    _writeConstant(out, classFile, in.readUnsignedShort());
+                }
+                break;
+            }
+            case "InnerClasses":
+            {
+                int count = in.readUnsignedShort();
+                out.writeInt(count);
+                for (int i = 0; i < count; i++)
+                {
+                    _writeConstant(out, classFile, in.readUnsignedShort());
+                    _writeConstant(out, classFile, in.readUnsignedShort());
+                    _writeConstant(out, classFile, in.readUnsignedShort());
+                    out.writeInt(in.readUnsignedShort());
+                }
+                break;
+            }
+            case "EnclosingMethod":
+                _writeConstant(out, classFile, in.readUnsignedShort());
+                _writeConstant(out, classFile, in.readUnsignedShort());
+                break;
+            case "BootstrapMethods":
+            {
+                int count = in.readUnsignedShort();
+                out.writeInt(count);
+                for (int i = 0; i < count; i++)
+                {
+                    _writeConstant(out, classFile, in.readUnsignedShort());
+                    int argc = in.readUnsignedShort();
+                    out.writeInt(argc);
+                    for (int j = 0; j < argc; j++)
+                    {
+                        _writeConstant(out, classFile, in.readUnsignedShort());
+                    }
+                }
+                break;
+            }
+            case "StackMapTable":
+                _writeStackMap(out, classFile, in);
+                break;
+            default:
+                // 注解等属性中的常量池下标不做规范化
+                out.writeInt(info.length);
+                out.write(info);
+                break;
+        }
+    }
+
+    private static void _writeCode(DataOutputStream out, ClassFile classFile, DataInputStream in) throws IOException
+    {
+        out.writeInt(in.readUnsignedShort());   // max_stack
+        out.writeInt(in.readUnsignedShort());   // max_locals
+        byte[] code = new byte[in.readInt()];
+        in.readFully(code);
+        out.writeInt(code.length);
+        _writeInstructions(out, classFile, code);
+
+        int exceptions = in.readUnsignedShort();
+        out.writeInt(exceptions);
+        for (int i = 0; i < exceptions; i++)
+        {
+            out.writeInt(in.readUnsignedShort());
+            out.writeInt(in.readUnsignedShort());
+            out.writeInt(in.readUnsignedShort());
+            _writeConstant(out, classFile, in.readUnsignedShort());
+        }
+
+        int count = in.readUnsignedShort();
+        for (int i = 0; i < count; i++)
+        {
+            String name = classFile.getUtf8(in.readUnsignedShort());
+            byte[] info = new byte[in.readInt()];
+            in.readFully(info);
+            if (DEBUG_ATTRIBUTES.contains(name))
+                continue;
+
+            _writeString(out, name);
+            _writeAttribute(out, classFile, name, new DataInputStream(new ByteArrayInputStream(info)), info);
+        }
+        _writeString(out, "");
+    }
+
+    /**
+     * 逐条指令输出, 引用常量池的操作数替换成常量的值
+     */
+    private static void _writeInstructions(DataOutputStream out, ClassFile classFile, byte[] code) throws IOException
+    {
+        int pc = 0;
+        while (pc < code.length)
+        {
+            int opcode = code[pc] & 0xFF;
+            out.writeByte(opcode);
+            switch (opcode)
+            {
+                case 0x12:  // ldc
+                    _writeConstant(out, classFile, code[pc + 1] & 0xFF);
+                    pc += 2;
+                    break;
+                case 0x13:  // ldc_w
+                case 0x14:  // ldc2_w
+                case 0xb2:  // getstatic
+                case 0xb3:  // putstatic
+                case 0xb4:  // getfield
+                case 0xb5:  // putfield
+                case 0xb6:  // invokevirtual
+                case 0xb7:  // invokespecial
+                case 0xb8:  // invokestatic
+                case 0xbb:  // new
+                case 0xbd:  // anewarray
+                case 0xc0:  // checkcast
+                case 0xc1:  // instanceof
+                    _writeConstant(out, classFile, _u2(code, pc + 1));
+                    pc += 3;
+                    break;
+                case 0xb9:  // invokeinterface
+                case 0xba:  // invokedynamic
+                    _writeConstant(out, classFile, _u2(code, pc + 1));
+                    out.write(code, pc + 3, 2);
+                    pc += 5;
+                    break;
+                case 0xc5:  // multianewarray
+                    _writeConstant(out, classFile, _u2(code, pc + 1));
+                    out.writeByte(code[pc + 3]);
+                    pc += 4;
+                    break;
+                default:
+                {
+                    int length = _instructionLength(code, pc, opcode);
+                    out.write(code, pc + 1, length - 1);
+                    pc += length;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static int _instructionLength(byte[] code, int pc, int opcode) throws IOException
+    {
+        switch (opcode)
+        {
+            case 0x10:  // bipush
+            case 0x15: case 0x16: case 0x17: case 0x18: case 0x19:  // load
+            case 0x36: case 0x37: case 0x38: case 0x39: case 0x3a:  // store
+            case 0xa9:  // ret
+            case 0xbc:  // newarray
+                return 2;
+            case 0x11:  // sipush
+            case 0x84:  // iinc
+            case 0xc6:  // ifnull
+            case 0xc7:  // ifnonnull
+                return 3;
+            case 0xc8:  // goto_w
+            case 0xc9:  // jsr_w
+                return 5;
+            case 0xc4:  // wide
+                return (code[pc + 1] & 0xFF) == 0x84 ? 6 : 4;
+            case 0xaa:  // tableswitch
+            {
+                int base = (pc + 4) & ~3;
+                int low = _s4(code, base + 4);
+                int high = _s4(code, base + 8);
+                return base + 12 + (high - low + 1) * 4 - pc;
+            }
+            case 0xab:  // lookupswitch
+            {
+                int base = (pc + 4) & ~3;
+                int pairs = _s4(code, base + 4);
+                return base + 8 + pairs * 8 - pc;
+            }
+            default:
+                if (opcode >= 0x99 && opcode <= 0xa8)   // if*, goto, jsr
+                    return 3;
+                if (opcode > 0xc9)
+                    throw new IOException("unknown opcode " + opcode + " at " + pc);
+                return 1;
+        }
+    }
+
+    private static void _writeStackMap(DataOutputStream out, ClassFile classFile, DataInputStream in) throws IOException
+    {
+        int count = in.readUnsignedShort();
+        out.writeInt(count);
+        for (int i = 0; i < count; i++)
+        {
+            int type = in.readUnsignedByte();
+            out.writeByte(type);
+            if (type < 64)
+                continue;
+
+            if (type < 128)
+            {
+                _writeVerificationType(out, classFile, in);
+            }
+            else if (type == 247)
+            {
+                out.writeInt(in.readUnsignedShort());
+                _writeVerificationType(out, classFile, in);
+            }
+            else if (type >= 248 && type <= 251)
+            {
+                out.writeInt(in.readUnsignedShort());
+            }
+            else if (type >= 252 && type <= 254)
+            {
+                out.writeInt(in.readUnsignedShort());
+                for (int j = 0; j < type - 251; j++)
+                {
+                    _writeVerificationType(out, classFile, in);
+                }
+            }
+            else if (type == 255)
+            {
+                out.writeInt(in.readUnsignedShort());
+                for (int k = 0; k < 2; k++)
+                {
+                    int number = in.readUnsignedShort();
+                    out.writeInt(number);
+                    for (int j = 0; j < number; j++)
+                    {
+                        _writeVerificationType(out, classFile, in);
+                    }
+                }
+            }
+            else
+            {
+                throw new IOException("bad stack map frame type " + type);
+            }
+        }
+    }
+
+    private static void _writeVerificationType(DataOutputStream out, ClassFile classFile, DataInputStream in) throws IOException
+    {
+        int tag = in.readUnsignedByte();
+        out.writeByte(tag);
+        if (tag == 7)       // Object_variable_info
+            _writeConstant(out, classFile, in.readUnsignedShort());
+        else if (tag == 8)  // Uninitialized_variable_info
+            out.writeInt(in.readUnsignedShort());
+    }
+
+    private static void _writeConstant(DataOutputStream out, ClassFile classFile, int index) throws IOException
+    {
+        _writeString(out, index == 0 ? "" : resolve(classFile, index));
+    }
+
+    /**
+     * 常量的规范化表示, 引用类型的常量递归展开
+     *
+     * @param classFile class
+     * @param index     常量池下标
+     * @return 常量的值
+     */
+    public static String resolve(ClassFile classFile, int index) throws IOException
+    {
+        ClassFile.Constant constant = classFile.getConstant(index);
+        switch (constant.getTag())
+        {
+            case ClassFile.CONSTANT_Utf8:
+                return "U" + constant.getValue();
+            case ClassFile.CONSTANT_Integer:
+                return "I" + constant.getValue();
+            case ClassFile.CONSTANT_Long:
+                return "J" + constant.getValue();
+            case ClassFile.CONSTANT_Float:
+                return "F" + Float.floatToRawIntBits((Float) constant.getValue());
+            case ClassFile.CONSTANT_Double:
+                return "D" + Double.doubleToRawLongBits((Double) constant.getValue());
+            case ClassFile.CONSTANT_MethodHandle:
+                return "H" + constant.getRef1() + ":" + resolve(classFile, constant.getRef2());
+            case ClassFile.CONSTANT_Dynamic:
+            case ClassFile.CONSTANT_InvokeDynamic:
+                return "Y" + constant.getTag() + ":" + constant.getRef1() + ":" + resolve(classFile, constant.getRef2());
+            case ClassFile.CONSTANT_Fieldref:
+            case ClassFile.CONSTANT_Methodref:
+            case ClassFile.CONSTANT_InterfaceMethodref:
+            case ClassFile.CONSTANT_NameAndType:
+                return "R" + constant.getTag() + ":" + resolve(classFile, constant.getRef1()) + ":" + resolve(classFile, constant.getRef2());
+            default:    // Class/String/MethodType/Module/Package
+                return "C" + constant.getTag() + ":" + classFile.getUtf8(constant.getRef1());
+        }
+    }
+
+    private static void _writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static int _u2(byte[] code, int index)
+    {
+        return ((code[index] & 0xFF) << 8) | (code[index + 1] & 0xFF);
+    }
+
+    private static int _s4(byte[] code, int index)
+    {
+        return ((code[index] & 0xFF) << 24) | ((code[index + 1] & 0xFF) << 16) | ((code[index + 2] & 0xFF) << 8) | (code[index + 3] & 0xFF);
+    }
+}
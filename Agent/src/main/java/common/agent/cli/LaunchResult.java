@@ -0,0 +1,90 @@
+package common.agent.cli;
+
+import java.util.Properties;
+
+/**
+ * LaunchResult
+ * <p>
+ * 单个目标进程的热更结果
+ */
+public class LaunchResult
+{
+    private final String pid;
+    private boolean      success;
+    private long         attachNanos;        // attach + agentmain执行的总耗时(从launcher看)
+    private long         applyNanos;         // 目标进程内执行命令的耗时
+    private long         pauseNanos;         // 目标进程redefineClasses的停顿
+    private long         patchId;            // 目标进程内的热更id, 回滚时使用
+    private int          classes;            // 替换的class数量
+    private String       error = "";
+
+    LaunchResult(String pid)
+    {
+        this.pid = pid;
+    }
+
+    void fill(Properties properties, long attachNanos)
+    {
+        this.success = Boolean.parseBoolean(properties.getProperty("success"));
+        this.patchId = Long.parseLong(properties.getProperty("patchId", "0"));
+        this.applyNanos = Long.parseLong(properties.getProperty("applyNanos", "0"));
+        this.pauseNanos = Long.parseLong(properties.getProperty("pauseNanos", "0"));
+        this.classes = Integer.parseInt(properties.getProperty("classes", "0"));
+        this.error = properties.getProperty("error", "");
+        this.attachNanos = attachNanos;
+    }
+
+    void setFailed(String error, long attachNanos)
+    {
+        this.success = false;
+        this.error = error;
+        this.attachNanos = attachNanos;
+    }
+
+    public String getPid()
+    {
+        return pid;
+    }
+
+    public boolean isSuccess()
+    {
+        return success;
+    }
+
+    public double getAttachMillis()
+    {
+        return attachNanos / 1000000.0;
+    }
+
+    public double getApplyMillis()
+    {
+        return applyNanos / 1000000.0;
+    }
+
+    public double getPauseMillis()
+    {
+        return pauseNanos / 1000000.0;
+    }
+
+    public long getPatchId()
+    {
+        return patchId;
+    }
+
+    public int getClasses()
+    {
+        return classes;
+    }
+
+    public String getError()
+    {
+        return error;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("pid=%s success=%s patchId=%d classes=%d attach=%.3fms apply=%.3fms pause=%.3fms%s",
+                pid, success, patchId, classes, getAttachMillis(), getApplyMillis(), getPauseMillis(), error.isEmpty() ? "" : " error=" + error);
+    }
+}
@@ -0,0 +1,238 @@
+package common.agent.cli;
+
+import common.agent.agent.Agent;
+import common.agent.agent.AgentAttacher;
+import common.agent.agent.AgentCommand;
+import common.agent.agent.PatchBundle;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * PatchLauncher
+ * <p>
+ * 独立的热更工具: attach到本机多个JVM进程, 通过ServerAgent.agentmain的参数下发热更包, 并行执行并收集每个进程的耗时和结果
+ * 目标进程的类路径中需要有Agent模块(不需要应用自己触发热更)
+ * <pre>
+ * java -cp ... common.agent.cli.PatchLauncher [options] pid...
+ *   --bundle &lt;file|dir&gt;   热更包, 或者class目录(自动打包)
+ *   --rollback &lt;patchId&gt;  回滚目标进程内的热更id
+ *   --patch-id &lt;id&gt;       class目录打包时使用的热更id
+ *   --agent &lt;jar&gt;         ServerAgent jar包路径, 默认为当前类路径中的ServerAgent
+ *   --parallelism &lt;n&gt;     同时attach的进程数, 默认为全部
+ * </pre>
+ * 所有进程成功时退出码为0
+ */
+public class PatchLauncher
+{
+    private final String agentPath;
+    private final int    parallelism;
+    private final boolean isWindows = System.getProperty("os.name").toLowerCase().startsWith("win");
+
+    /**
+     * @param agentPath   ServerAgent jar包路径
+     * @param parallelism 同时attach的进程数
+     */
+    public PatchLauncher(String agentPath, int parallelism)
+    {
+        this.agentPath = agentPath;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * 并行向多个进程下发热更包
+     *
+     * @param pids   目标进程id
+     * @param bundle 热更包, 目标进程需要能读取这个路径
+     * @return 每个进程的结果, 顺序与pids相同
+     */
+    public List<LaunchResult> applyBundle(List<String> pids, File bundle) throws IOException
+    {
+        PatchBundle.read(bundle);
+        return _launch(pids, AgentCommand.Bundle, bundle.getAbsolutePath());
+    }
+
+    /**
+     * 并行回滚多个进程的热更
+     */
+    public List<LaunchResult> rollback(List<String> pids, long patchId)
+    {
+        return _launch(pids, AgentCommand.Rollback, String.valueOf(patchId));
+    }
+
+    private List<LaunchResult> _launch(List<String> pids, String command, String value)
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, pids.size())));
+        try
+        {
+            List<Future<LaunchResult>> futures = new ArrayList<>(pids.size());
+            for (String pid : pids)
+            {
+                futures.add(executor.submit(() -> _launch(pid, command, value)));
+            }
+
+            List<LaunchResult> results = new ArrayList<>(pids.size());
+            for (int i = 0; i < futures.size(); i++)
+            {
+                try
+                {
+                    results.add(futures.get(i).get());
+                }
+                catch (InterruptedException | ExecutionException e)
+                {
+                    LaunchResult result = new LaunchResult(pids.get(i));
+                    result.setFailed(String.valueOf(e), 0);
+                    results.add(result);
+                }
+            }
+            return results;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * attach单个进程, agentmain执行完命令后读取结果文件
+     */
+    private LaunchResult _launch(String pid, String command, String value)
+    {
+        LaunchResult result = new LaunchResult(pid);
+        long start = System.nanoTime();
+        File resultFile = null;
+        try
+        {
+            resultFile = File.createTempFile("agent-" + pid + "-", ".result");
+            Map<String, String> options = new LinkedHashMap<>();
+            options.put(command, value);
+            options.put(AgentCommand.Result, resultFile.getAbsolutePath());
+
+            AgentAttacher.loadAgent(pid, agentPath, AgentCommand.format(options), isWindows);
+            long cost = System.nanoTime() - start;
+
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(resultFile))
+            {
+                properties.load(in);
+            }
+            if (properties.isEmpty())
+                result.setFailed("no result, Agent module not found in target process?", cost);
+            else
+                result.fill(properties, cost);
+        }
+        catch (Exception e)
+        {
+            result.setFailed(String.valueOf(e), System.nanoTime() - start);
+        }
+        finally
+        {
+            if (resultFile != null && !resultFile.delete())
+                resultFile.deleteOnExit();
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String bundle = null;
+        String rollback = null;
+        String patchId = "patch-" + System.currentTimeMillis();
+        String agentPath = null;
+        int parallelism = 0;
+        List<String> pids = new ArrayList<>();
+        boolean badArgs = false;
+        for (int i = 0; i < args.length && !badArgs; i++)
+        {
+            String option = args[i];
+            if (!option.startsWith("--"))
+            {
+                pids.add(option);
+                continue;
+            }
+
+            // 选项都需要一个值
+            if (i + 1 >= args.length)
+            {
+                badArgs = true;
+                break;
+            }
+            String value = args[++i];
+            switch (option)
+            {
+                case "--bundle":
+                    bundle = value;
+                    break;
+                case "--rollback":
+                    rollback = value;
+                    break;
+                case "--patch-id":
+                    patchId = value;
+                    break;
+                case "--agent":
+                    agentPath = value;
+                    break;
+                case "--parallelism":
+                    try
+                    {
+                        parallelism = Integer.parseInt(value);
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        badArgs = true;
+                    }
+                    break;
+                default:
+                    badArgs = true;
+            }
+        }
+
+        if (badArgs || pids.isEmpty() || (bundle == null) == (rollback == null))
+        {
+            System.err.println("usage: PatchLauncher (--bundle <file|dir> | --rollback <patchId>) [--patch-id <id>] [--agent <jar>] [--parallelism <n>] pid...");
+            System.exit(2);
+        }
+
+        PatchLauncher launcher = new PatchLauncher(agentPath != null ? agentPath : Agent.getJarPath(), parallelism > 0 ? parallelism : pids.size());
+        long start = System.nanoTime();
+        List<LaunchResult> results;
+        if (bundle != null)
+        {
+            File file = new File(bundle);
+            if (file.isDirectory())
+            {
+                // class目录先打包, 所有进程读取同一个文件
+                File packed = File.createTempFile("agent-" + patchId + "-", ".jar");
+                packed.deleteOnExit();
+                PatchBundle.create(file, patchId, packed);
+                file = packed;
+            }
+            results = launcher.applyBundle(pids, file);
+        }
+        else
+        {
+            results = launcher.rollback(pids, Long.parseLong(rollback));
+        }
+
+        int failed = 0;
+        for (LaunchResult result : results)
+        {
+            System.out.println(result);
+            if (!result.isSuccess())
+                failed++;
+        }
+        System.out.println(String.format("%d processes, %d failed, total %.3fms", results.size(), failed, (System.nanoTime() - start) / 1000000.0));
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
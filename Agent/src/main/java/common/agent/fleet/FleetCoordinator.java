@@ -0,0 +1,306 @@
+package common.agent.fleet;
+
+import common.agent.agent.AgentConfig;
+import common.agent.agent.PatchBundle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FleetCoordinator
+ * <p>
+ * 把一个热更包分批推送到多个节点(节点需要开启PatchListener)
+ * 先推送金丝雀节点, 再按比例分批推送; 每批结束后检查每个节点的结果和耗时, 有节点失败或者超过耗时阈值时中止后续批次,
+ * 开启自动回滚时回滚所有已经成功的节点
+ */
+public class FleetCoordinator
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(FleetCoordinator.class);
+
+    private final List<InetSocketAddress> nodes;
+    private int                           canaryCount   = 1;                       // 金丝雀节点数量
+    private int[]                         wavePercents  = {25, 50, 100};           // 之后每批结束时累计覆盖的节点比例
+    private long                          maxApplyMillis;                          // 节点替换耗时阈值, 0表示不检查
+    private long                          maxPauseMillis;                          // 节点停顿阈值, 0表示不检查
+    private boolean                       autoRollback  = true;                    // 中止时回滚已经成功的节点
+    private int                           parallelism   = 16;                      // 同一批内同时推送的节点数
+    private int                           timeoutMillis = 60000;                   // 连接和等待响应的超时
+    private String                        token = AgentConfig.getListenToken();   // 请求签名的共享密钥, 与节点的agent.listenToken相同
+
+    /**
+     * @param nodes 节点监听地址, 按顺序分批, 前canaryCount个为金丝雀
+     */
+    public FleetCoordinator(List<InetSocketAddress> nodes)
+    {
+        this.nodes = new ArrayList<>(nodes);
+    }
+
+    public void setCanaryCount(int canaryCount)
+    {
+        this.canaryCount = Math.max(0, canaryCount);
+    }
+
+    /**
+     * @param wavePercents 金丝雀之后每批结束时累计覆盖的节点比例, 例如 25, 50, 100; 最后一批总是覆盖全部节点
+     */
+    public void setWavePercents(int... wavePercents)
+    {
+        this.wavePercents = wavePercents.clone();
+    }
+
+    public void setMaxApplyMillis(long maxApplyMillis)
+    {
+        this.maxApplyMillis = maxApplyMillis;
+    }
+
+    public void setMaxPauseMillis(long maxPauseMillis)
+    {
+        this.maxPauseMillis = maxPauseMillis;
+    }
+
+    public void setAutoRollback(boolean autoRollback)
+    {
+        this.autoRollback = autoRollback;
+    }
+
+    public void setParallelism(int parallelism)
+    {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public void setTimeoutMillis(int timeoutMillis)
+    {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param token 请求签名的共享密钥, 需要与节点的agent.listenToken相同, 默认取本进程的agent.listenToken
+     */
+    public void setToken(String token)
+    {
+        this.token = token;
+    }
+
+    /**
+     * @param file 热更包(PatchBundle格式)
+     */
+    public FleetResult rollout(File file) throws IOException
+    {
+        return rollout(Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * 分批推送热更包, 推送前先在本地校验
+     *
+     * @param bundle 热更包内容(PatchBundle格式)
+     * @return 推送结果
+     * @throws IOException 热更包校验失败
+     */
+    public FleetResult rollout(byte[] bundle) throws IOException
+    {
+        String patchId = PatchBundle.read(bundle).getPatchId();
+        FleetResult result = new FleetResult(patchId);
+        List<List<InetSocketAddress>> waves = _plan();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, nodes.size())), _threadFactory());
+        try
+        {
+            List<NodeResult> applied = new ArrayList<>();
+            for (int i = 0; i < waves.size(); i++)
+            {
+                LOGGER.info("fleet rollout " + patchId + " wave " + i + "/" + (waves.size() - 1) + ": " + waves.get(i));
+                List<NodeResult> wave = _push(executor, waves.get(i), i, FleetProtocol.Apply, bundle, 0);
+                result.addResults(wave);
+
+                String reason = null;
+                for (NodeResult node : wave)
+                {
+                    if (node.isSuccess())
+                        applied.add(node);
+                    if (reason == null)
+                        reason = _check(node);
+                }
+
+                if (reason != null)
+                {
+                    LOGGER.error("fleet rollout " + patchId + " stopped at wave " + i + ": " + reason);
+                    result.setStopReason(reason);
+                    if (autoRollback)
+                        result.addRollbacks(_rollback(executor, applied));
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        LOGGER.info(result.toString());
+        return result;
+    }
+
+    /**
+     * @return 节点是否正常, 正常时返回null
+     */
+    private String _check(NodeResult node)
+    {
+        if (!node.isSuccess())
+            return "node " + node.getAddress() + " failed: " + node.getError();
+        if (maxApplyMillis > 0 && node.getApplyMillis() > maxApplyMillis)
+            return String.format("node %s apply %.3fms > %dms", node.getAddress(), node.getApplyMillis(), maxApplyMillis);
+        if (maxPauseMillis > 0 && node.getPauseMillis() > maxPauseMillis)
+            return String.format("node %s pause %.3fms > %dms", node.getAddress(), node.getPauseMillis(), maxPauseMillis);
+        return null;
+    }
+
+    /**
+     * 回滚已经替换成功的节点, 没有替换任何class(patchId为0)的节点不需要回滚
+     */
+    private List<NodeResult> _rollback(ExecutorService executor, List<NodeResult> applied)
+    {
+        List<NodeResult> nodes = new ArrayList<>();
+        List<Future<NodeResult>> futures = new ArrayList<>();
+        for (NodeResult node : applied)
+        {
+            if (node.getPatchId() <= 0)
+                continue;
+
+            nodes.add(node);
+            futures.add(executor.submit(() -> send(node.getAddress(), node.getWave(), FleetProtocol.Rollback, null, node.getPatchId(), timeoutMillis, token)));
+        }
+        return _collect(nodes, futures);
+    }
+
+    /**
+     * 同一批节点并行推送
+     */
+    private List<NodeResult> _push(ExecutorService executor, List<InetSocketAddress> wave, int index, byte command, byte[] bundle, long patchId)
+    {
+        List<Future<NodeResult>> futures = new ArrayList<>(wave.size());
+        for (InetSocketAddress address : wave)
+        {
+            futures.add(executor.submit(() -> send(address, index, command, bundle, patchId, timeoutMillis, token)));
+        }
+
+        List<NodeResult> nodes = new ArrayList<>(wave.size());
+        for (InetSocketAddress address : wave)
+        {
+            nodes.add(new NodeResult(address, index));
+        }
+        return _collect(nodes, futures);
+    }
+
+    /**
+     * 等待所有节点的结果, 异常时使用nodes中对应的节点记录失败
+     */
+    private static List<NodeResult> _collect(List<NodeResult> nodes, List<Future<NodeResult>> futures)
+    {
+        List<NodeResult> results = new ArrayList<>(futures.size());
+        for (int i = 0; i < futures.size(); i++)
+        {
+            try
+            {
+                results.add(futures.get(i).get());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                NodeResult result = new NodeResult(nodes.get(i).getAddress(), nodes.get(i).getWave());
+                result.setFailed("interrupted", 0);
+                results.add(result);
+            }
+            catch (ExecutionException e)
+            {
+                NodeResult result = new NodeResult(nodes.get(i).getAddress(), nodes.get(i).getWave());
+                result.setFailed(String.valueOf(e.getCause()), 0);
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 向单个节点发送一个请求
+     */
+    static NodeResult send(InetSocketAddress address, int wave, byte command, byte[] bundle, long patchId, int timeoutMillis, String token)
+    {
+        NodeResult result = new NodeResult(address, wave);
+        long start = System.nanoTime();
+        try (Socket socket = new Socket())
+        {
+            socket.connect(address, timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte[] body;
+            if (command == FleetProtocol.Apply)
+                body = bundle;
+            else if (command == FleetProtocol.Rollback)
+                body = FleetProtocol.longBody(patchId);
+            else
+                body = new byte[0];
+            FleetProtocol.writeRequest(out, token, command, body);
+            out.flush();
+
+            FleetProtocol.Response response = FleetProtocol.Response.read(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+            result.fill(response, System.nanoTime() - start);
+        }
+        catch (IOException e)
+        {
+            result.setFailed(String.valueOf(e), System.nanoTime() - start);
+        }
+        return result;
+    }
+
+    /**
+     * 分批: 金丝雀, 然后按累计比例, 最后一批覆盖剩余全部节点
+     */
+    private List<List<InetSocketAddress>> _plan()
+    {
+        List<List<InetSocketAddress>> waves = new ArrayList<>();
+        int done = Math.min(canaryCount, nodes.size());
+        if (done > 0)
+            waves.add(nodes.subList(0, done));
+
+        for (int percent : wavePercents)
+        {
+            int target = Math.min(nodes.size(), (int) Math.ceil(nodes.size() * percent / 100.0));
+            if (target > done)
+            {
+                waves.add(nodes.subList(done, target));
+                done = target;
+            }
+        }
+        if (done < nodes.size())
+            waves.add(nodes.subList(done, nodes.size()));
+        return waves;
+    }
+
+    private static ThreadFactory _threadFactory()
+    {
+        AtomicInteger index = new AtomicInteger();
+        return runnable ->
+        {
+            Thread thread = new Thread(runnable, "agent-fleet-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
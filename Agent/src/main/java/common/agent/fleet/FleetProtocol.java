@@ -0,0 +1,178 @@
+package common.agent.fleet;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/**
+ * FleetProtocol
+ * <p>
+ * 协调器和节点监听之间的协议, 一个连接一个请求一个响应
+ * 请求: magic, version, command, 时间(毫秒), 内容长度 + 内容, 签名长度 + 签名
+ *       内容 APPLY: 热更包(PatchBundle格式) / ROLLBACK: patchId / PING: 无
+ *       签名为HMAC-SHA256(共享密钥agent.listenToken, command + 时间 + 内容), 没有配置密钥时为空
+ *       热更包中的摘要只能证明内容完整, 签名证明请求来自持有密钥的协调器; 时间超过允许偏差的请求拒绝, 限制重放
+ * 响应: magic, success, patchId, 节点替换耗时(纳秒), 停顿(纳秒), 节点名, 错误信息
+ */
+class FleetProtocol
+{
+    static final int  Magic   = 0x41475054;       // "AGPT"
+    static final byte Version = 2;
+
+    static final byte Apply    = 1;
+    static final byte Rollback = 2;
+    static final byte Ping     = 3;
+
+    static final int MaxBundleSize = 64 * 1024 * 1024;
+
+    private static final String MacAlgorithm       = "HmacSHA256";
+    private static final int    MaxMacSize         = 64;
+    private static final long   MaxClockSkewMillis = 5 * 60 * 1000L;   // 请求时间和节点时间允许的偏差
+
+    /**
+     * 协调器的请求
+     */
+    static class Request
+    {
+        byte    command;
+        byte[]  body;
+    }
+
+    private FleetProtocol()
+    {
+    }
+
+    /**
+     * 节点的响应
+     */
+    static class Response
+    {
+        boolean success;
+        long    patchId;
+        long    applyNanos;
+        long    pauseNanos;
+        String  node  = "";
+        String  error = "";
+
+        void write(DataOutputStream out) throws IOException
+        {
+            out.writeInt(Magic);
+            out.writeBoolean(success);
+            out.writeLong(patchId);
+            out.writeLong(applyNanos);
+            out.writeLong(pauseNanos);
+            out.writeUTF(node);
+            out.writeUTF(error.length() > 8192 ? error.substring(0, 8192) : error);
+            out.flush();
+        }
+
+        static Response read(DataInputStream in) throws IOException
+        {
+            if (in.readInt() != Magic)
+                throw new IOException("bad response magic");
+
+            Response response = new Response();
+            response.success = in.readBoolean();
+            response.patchId = in.readLong();
+            response.applyNanos = in.readLong();
+            response.pauseNanos = in.readLong();
+            response.node = in.readUTF();
+            response.error = in.readUTF();
+            return response;
+        }
+    }
+
+    /**
+     * @param token 共享密钥, 为空时不签名
+     */
+    static void writeRequest(DataOutputStream out, String token, byte command, byte[] body) throws IOException
+    {
+        long time = System.currentTimeMillis();
+        byte[] mac = _mac(token, command, time, body);
+        out.writeInt(Magic);
+        out.writeByte(Version);
+        out.writeByte(command);
+        out.writeLong(time);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(mac.length);
+        out.write(mac);
+    }
+
+    /**
+     * 读取请求, 配置了共享密钥时校验签名(常量时间比较)和请求时间
+     *
+     * @param token 共享密钥, 为空时不校验
+     * @return 请求
+     * @throws IOException 格式错误或者校验失败
+     */
+    static Request readRequest(DataInputStream in, String token) throws IOException
+    {
+        if (in.readInt() != Magic)
+            throw new IOException("bad request magic");
+        byte version = in.readByte();
+        if (version != Version)
+            throw new IOException("unsupported protocol version: " + version);
+
+        Request request = new Request();
+        request.command = in.readByte();
+        long time = in.readLong();
+        int length = in.readInt();
+        if (length < 0 || length > MaxBundleSize)
+            throw new IOException("bad request size: " + length);
+        request.body = new byte[length];
+        in.readFully(request.body);
+        int macLength = in.readUnsignedShort();
+        if (macLength > MaxMacSize)
+            throw new IOException("bad request signature size: " + macLength);
+        byte[] mac = new byte[macLength];
+        in.readFully(mac);
+
+        if (token != null && !token.isEmpty())
+        {
+            if (!MessageDigest.isEqual(_mac(token, request.command, time, request.body), mac))
+                throw new IOException("request signature mismatch");
+            if (Math.abs(System.currentTimeMillis() - time) > MaxClockSkewMillis)
+                throw new IOException("request expired, time: " + time);
+        }
+        return request;
+    }
+
+    static byte[] longBody(long value)
+    {
+        return ByteBuffer.allocate(8).putLong(value).array();
+    }
+
+    static long readLongBody(byte[] body) throws IOException
+    {
+        if (body.length != 8)
+            throw new IOException("bad request size: " + body.length);
+        return ByteBuffer.wrap(body).getLong();
+    }
+
+    private static byte[] _mac(String token, byte command, long time, byte[] body)
+    {
+        if (token == null || token.isEmpty())
+            return new byte[0];
+
+        try
+        {
+            Mac mac = Mac.getInstance(MacAlgorithm);
+            mac.init(new SecretKeySpec(token.getBytes(StandardCharsets.UTF_8), MacAlgorithm));
+            mac.update(command);
+            mac.update(longBody(time));
+            mac.update(body);
+            return mac.doFinal();
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package common.agent.fleet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * FleetResult
+ * <p>
+ * 一次分批推送的结果
+ */
+public class FleetResult
+{
+    private final String           patchId;                                 // 热更包的Patch-Id
+    private final List<NodeResult> results   = new ArrayList<>();          // 每个节点的热更结果, 按批次顺序
+    private final List<NodeResult> rollbacks = new ArrayList<>();          // 自动回滚的结果
+    private int                    waves;                                   // 实际执行的批数
+    private String                 stopReason;                              // 中止原因, 全部完成时为null
+
+    FleetResult(String patchId)
+    {
+        this.patchId = patchId;
+    }
+
+    void addResults(List<NodeResult> wave)
+    {
+        results.addAll(wave);
+        waves++;
+    }
+
+    void addRollbacks(List<NodeResult> list)
+    {
+        rollbacks.addAll(list);
+    }
+
+    void setStopReason(String stopReason)
+    {
+        this.stopReason = stopReason;
+    }
+
+    public String getPatchId()
+    {
+        return patchId;
+    }
+
+    public List<NodeResult> getResults()
+    {
+        return Collections.unmodifiableList(results);
+    }
+
+    public List<NodeResult> getRollbacks()
+    {
+        return Collections.unmodifiableList(rollbacks);
+    }
+
+    public int getWaves()
+    {
+        return waves;
+    }
+
+    /**
+     * @return 是否所有节点都热更成功
+     */
+    public boolean isSuccess()
+    {
+        return stopReason == null;
+    }
+
+    public String getStopReason()
+    {
+        return stopReason;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append("FleetResult{patchId=").append(patchId).append(", success=").append(isSuccess())
+                .append(", waves=").append(waves).append(", nodes=").append(results.size());
+        if (stopReason != null)
+            builder.append(", stopReason=").append(stopReason);
+        builder.append("}");
+        for (NodeResult result : results)
+        {
+            builder.append("\n  ").append(result);
+        }
+        for (NodeResult result : rollbacks)
+        {
+            builder.append("\n  rollback ").append(result);
+        }
+        return builder.toString();
+    }
+}
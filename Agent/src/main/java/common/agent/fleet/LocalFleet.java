@@ -0,0 +1,159 @@
+package common.agent.fleet;
+
+import common.agent.agent.Agent;
+import common.agent.agent.AgentConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * LocalFleet
+ * <p>
+ * 本机测试用: 启动多个JVM作为节点, 每个节点初始化Agent并开启热更监听, 用于验证FleetCoordinator的分批推送和回滚
+ * 每个节点使用独立的工作目录 agent/fleet/node{i}, 互不影响
+ * <pre>
+ * java -cp ... common.agent.fleet.LocalFleet 4 9500 patch.jar    启动4个节点(端口9500-9503)并推送patch.jar
+ * java -cp ... common.agent.fleet.LocalFleet node                  节点模式(由LocalFleet启动)
+ * </pre>
+ */
+public class LocalFleet implements Closeable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(LocalFleet.class);
+
+    private static final long StartTimeoutMillis = 30000;
+
+    private final List<Process>           processes = new ArrayList<>();
+    private final List<InetSocketAddress> nodes     = new ArrayList<>();
+
+    private LocalFleet()
+    {
+    }
+
+    /**
+     * 启动节点, 所有节点的监听可以连接后返回
+     *
+     * @param count    节点数量
+     * @param basePort 第一个节点的端口, 之后依次加1
+     * @param jvmArgs  节点的JVM参数
+     */
+    public static LocalFleet start(int count, int basePort, String... jvmArgs) throws IOException
+    {
+        LocalFleet fleet = new LocalFleet();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                int port = basePort + i;
+                File dir = new File(System.getProperty("user.dir"), "agent" + File.separator + "fleet" + File.separator + "node" + i);
+                if (!dir.isDirectory() && !dir.mkdirs())
+                    throw new IOException("create node directory error: " + dir);
+
+                List<String> command = new ArrayList<>();
+                command.add(java);
+                command.addAll(Arrays.asList(jvmArgs));
+                command.add("-Dagent.listenPort=" + port);
+                if (!AgentConfig.getListenToken().isEmpty())
+                    command.add("-Dagent.listenToken=" + AgentConfig.getListenToken());
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(LocalFleet.class.getName());
+                command.add("node");
+
+                ProcessBuilder builder = new ProcessBuilder(command).directory(dir).inheritIO();
+                fleet.processes.add(builder.start());
+                fleet.nodes.add(new InetSocketAddress("127.0.0.1", port));
+            }
+            fleet._awaitNodes();
+        }
+        catch (IOException e)
+        {
+            fleet.close();
+            throw e;
+        }
+        return fleet;
+    }
+
+    public List<InetSocketAddress> getNodes()
+    {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    private void _awaitNodes() throws IOException
+    {
+        long deadline = System.currentTimeMillis() + StartTimeoutMillis;
+        for (InetSocketAddress node : nodes)
+        {
+            while (!FleetCoordinator.send(node, 0, FleetProtocol.Ping, null, 0, 1000, AgentConfig.getListenToken()).isSuccess())
+            {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IOException("node not started: " + node);
+
+                try
+                {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for node: " + node);
+                }
+            }
+        }
+        LOGGER.info("local fleet started: " + nodes);
+    }
+
+    @Override
+    public void close()
+    {
+        for (Process process : processes)
+        {
+            process.destroy();
+        }
+        for (Process process : processes)
+        {
+            try
+            {
+                process.waitFor();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        processes.clear();
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length == 1 && "node".equals(args[0]))
+        {
+            // 节点模式: 初始化后一直运行, 由启动者结束进程
+            Agent.initialize();
+            Agent.startListener();
+            Thread.currentThread().join();
+            return;
+        }
+
+        if (args.length < 3)
+        {
+            System.err.println("usage: LocalFleet <count> <basePort> <bundle> | LocalFleet node");
+            System.exit(1);
+        }
+
+        try (LocalFleet fleet = start(Integer.parseInt(args[0]), Integer.parseInt(args[1])))
+        {
+            FleetResult result = new FleetCoordinator(fleet.getNodes()).rollout(new File(args[2]));
+            System.out.println(result);
+        }
+    }
+}
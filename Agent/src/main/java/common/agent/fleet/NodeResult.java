@@ -0,0 +1,100 @@
+package common.agent.fleet;
+
+import java.net.InetSocketAddress;
+
+/**
+ * NodeResult
+ * <p>
+ * 单个节点一次推送(热更/回滚)的结果
+ */
+public class NodeResult
+{
+    private final InetSocketAddress address;
+    private final int               wave;               // 第几批, 从0开始, 有金丝雀时0为金丝雀
+    private boolean                 success;
+    private long                    patchId;            // 节点上的热更id, 回滚时使用
+    private long                    applyNanos;         // 节点上读取和替换的耗时
+    private long                    pauseNanos;         // 节点上redefineClasses的停顿
+    private long                    roundTripNanos;     // 协调器看到的往返耗时
+    private String                  node = "";          // 节点进程名(pid@host)
+    private String                  error = "";
+
+    NodeResult(InetSocketAddress address, int wave)
+    {
+        this.address = address;
+        this.wave = wave;
+    }
+
+    void fill(FleetProtocol.Response response, long roundTripNanos)
+    {
+        this.success = response.success;
+        this.patchId = response.patchId;
+        this.applyNanos = response.applyNanos;
+        this.pauseNanos = response.pauseNanos;
+        this.node = response.node;
+        this.error = response.error;
+        this.roundTripNanos = roundTripNanos;
+    }
+
+    void setFailed(String error, long roundTripNanos)
+    {
+        this.success = false;
+        this.error = error;
+        this.roundTripNanos = roundTripNanos;
+    }
+
+    public InetSocketAddress getAddress()
+    {
+        return address;
+    }
+
+    public int getWave()
+    {
+        return wave;
+    }
+
+    public boolean isSuccess()
+    {
+        return success;
+    }
+
+    /**
+     * @return 节点上的热更id, 没有替换任何class时为0
+     */
+    public long getPatchId()
+    {
+        return patchId;
+    }
+
+    public double getApplyMillis()
+    {
+        return applyNanos / 1000000.0;
+    }
+
+    public double getPauseMillis()
+    {
+        return pauseNanos / 1000000.0;
+    }
+
+    public double getRoundTripMillis()
+    {
+        return roundTripNanos / 1000000.0;
+    }
+
+    public String getNode()
+    {
+        return node;
+    }
+
+    public String getError()
+    {
+        return error;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("NodeResult{address=%s, node=%s, wave=%d, success=%s, patchId=%d, apply=%.3fms, pause=%.3fms, roundTrip=%.3fms%s}",
+                address, node, wave, success, patchId, getApplyMillis(), getPauseMillis(), getRoundTripMillis(), error.isEmpty() ? "" : ", error=" + error);
+    }
+}
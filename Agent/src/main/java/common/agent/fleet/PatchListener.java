@@ -0,0 +1,190 @@
+package common.agent.fleet;
+
+import common.agent.agent.Agent;
+import common.agent.agent.PatchBundle;
+import common.agent.agent.RedefineResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * PatchListener
+ * <p>
+ * 节点上的热更监听, 接收协调器(FleetCoordinator)推送的热更包并替换, 默认只监听回环地址
+ * 配置共享密钥时只接受签名正确的请求; 没有配置密钥时拒绝监听非回环地址
+ * 连接逐个处理, 替换交给Agent的热更线程执行, 与其它热更串行
+ */
+public class PatchListener
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(PatchListener.class);
+
+    private static final int ReadTimeoutMillis = 30000;
+
+    private final String            host;
+    private final int               port;
+    private final String            token;
+    private final String            node = ManagementFactory.getRuntimeMXBean().getName();
+    private volatile ServerSocket   serverSocket;
+    private Thread                  thread;
+
+    /**
+     * @param host  监听地址, 例如127.0.0.1
+     * @param port  端口, 0表示随机端口
+     * @param token 请求签名的共享密钥, 为空时只允许监听回环地址
+     */
+    public PatchListener(String host, int port, String token)
+    {
+        this.host = host;
+        this.port = port;
+        this.token = token;
+    }
+
+    public synchronized void start() throws IOException
+    {
+        if (serverSocket != null)
+            return;
+
+        InetAddress address = InetAddress.getByName(host);
+        if (token == null || token.isEmpty())
+        {
+            if (!address.isLoopbackAddress())
+                throw new IOException("patch listener on non-loopback address " + host + " requires agent.listenToken");
+            LOGGER.warn("patch listener without agent.listenToken, any local process can apply patches.");
+        }
+
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(address, port));
+        serverSocket = socket;
+
+        thread = new Thread(this::_acceptLoop, "agent-patch-listener");
+        thread.setDaemon(true);
+        thread.start();
+        LOGGER.info("patch listener started: " + socket.getLocalSocketAddress());
+    }
+
+    public synchronized void stop()
+    {
+        ServerSocket socket = serverSocket;
+        serverSocket = null;
+        if (socket == null)
+            return;
+
+        try
+        {
+            socket.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("patch listener close error.", e);
+        }
+        thread = null;
+        LOGGER.info("patch listener stopped.");
+    }
+
+    public boolean isRunning()
+    {
+        return serverSocket != null;
+    }
+
+    /**
+     * @return 实际监听的端口, 没有启动时为-1
+     */
+    public int getLocalPort()
+    {
+        ServerSocket socket = serverSocket;
+        return socket == null ? -1 : socket.getLocalPort();
+    }
+
+    private void _acceptLoop()
+    {
+        while (true)
+        {
+            ServerSocket server = serverSocket;
+            if (server == null)
+                return;
+
+            try (Socket socket = server.accept())
+            {
+                socket.setSoTimeout(ReadTimeoutMillis);
+                _handle(socket);
+            }
+            catch (SocketException e)
+            {
+                // stop关闭了ServerSocket
+                if (serverSocket != null)
+                    LOGGER.error("patch listener error.", e);
+            }
+            catch (Throwable e)
+            {
+                LOGGER.error("patch listener error.", e);
+            }
+        }
+    }
+
+    private void _handle(Socket socket) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        FleetProtocol.Response response = new FleetProtocol.Response();
+        response.node = node;
+        long start = System.nanoTime();
+        try
+        {
+            // 签名错误、时间戳过期、格式错误同样响应, 协调器能看到拒绝的原因而不是连接被关闭
+            FleetProtocol.Request request = FleetProtocol.readRequest(in, token);
+            byte command = request.command;
+            if (command == FleetProtocol.Apply)
+            {
+                PatchBundle bundle = PatchBundle.read(request.body);
+                LOGGER.info("patch listener apply bundle " + bundle.getPatchId() + " from " + socket.getRemoteSocketAddress());
+                _fill(response, Agent.await(Agent.reloadBundleAsync(bundle)).getRedefineResult());
+            }
+            else if (command == FleetProtocol.Rollback)
+            {
+                long patchId = FleetProtocol.readLongBody(request.body);
+                LOGGER.info("patch listener rollback patch " + patchId + " from " + socket.getRemoteSocketAddress());
+                _fill(response, Agent.await(Agent.rollbackAsync(patchId)).getRedefineResult());
+            }
+            else if (command == FleetProtocol.Ping)
+            {
+                response.success = true;
+            }
+            else
+            {
+                response.error = "unknown command: " + command;
+            }
+        }
+        catch (Throwable e)
+        {
+            // 任何错误都要响应, 协调器据此中止推送
+            LOGGER.error("patch listener handle error, from " + socket.getRemoteSocketAddress(), e);
+            response.success = false;
+            response.error = String.valueOf(e);
+        }
+
+        response.applyNanos = System.nanoTime() - start;
+        response.write(out);
+    }
+
+    private static void _fill(FleetProtocol.Response response, RedefineResult result)
+    {
+        response.success = result.isSuccess();
+        response.patchId = result.getPatchId();
+        response.pauseNanos = result.getPauseNanos();
+        if (!result.isSuccess())
+            response.error = String.valueOf(result.getError());
+    }
+}
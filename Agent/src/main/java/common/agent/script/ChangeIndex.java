@@ -0,0 +1,424 @@
+package common.agent.script;
+
+import com.google.common.hash.Hashing;
+import common.agent.classfile.ClassFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * ChangeIndex
+ * <p>
+ * 脚本变化索引, 记录每个源文件的大小、修改时间、内容hash以及它编译出的每个class的hash, 持久化到磁盘
+ * 大小和修改时间都没变时直接认为没有变化, 否则再比较内容hash
+ * 每个class还记录从常量池提取的依赖(引用的类)和编译期常量的hash, 用于找出需要一起重新编译的脚本
+ * 编译期常量被内联, 常量池中没有引用; 每个源文件另外记录编译时从语法树中找到的常量引用(见ConstantReferenceCollector)
+ */
+class ChangeIndex
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeIndex.class);
+
+    private static final String SOURCE = "S";
+    private static final String CLASS  = "C";
+    private static final String CONSTANT_REFS = "R";
+    private static final String VERSION = "V";
+    private static final String FORMAT_VERSION = "2";     // 格式版本, 不同时重新建立索引
+    private static final String SPLIT  = "\t";
+    private static final String DEPEND_SPLIT = ",";
+
+    private static final String[] SYSTEM_PACKAGES = {"java/", "javax/", "jdk/", "sun/", "com/sun/"};   // 不记录的依赖
+
+    /**
+     * 源文件记录
+     */
+    static class SourceStamp
+    {
+        final long   m_size;            // 文件大小
+        final long   m_lastModified;    // 修改时间
+        final String m_hash;            // 内容hash
+
+        SourceStamp(long size, long lastModified, String hash)
+        {
+            m_size = size;
+            m_lastModified = lastModified;
+            m_hash = hash;
+        }
+    }
+
+    /**
+     * class记录
+     */
+    static class ClassStamp
+    {
+        final String      m_source;     // 编译出该class的源文件类全名
+        final long        m_size;       // class大小
+        final String      m_hash;       // class内容hash
+        final String      m_constants;  // 编译期常量(static final + ConstantValue)的hash, 没有常量时为空字符串
+        final Set<String> m_depends;    // 常量池引用的类全名(不包括jdk的类)
+
+        ClassStamp(String source, long size, String hash, String constants, Set<String> depends)
+        {
+            m_source = source;
+            m_size = size;
+            m_hash = hash;
+            m_constants = constants;
+            m_depends = depends;
+        }
+    }
+
+    private final File                     m_indexFile;                         // 索引文件
+    private final Map<String, SourceStamp> m_sources = new HashMap<>();         // 源文件类全名 -> 记录
+    private final Map<String, ClassStamp>  m_classes = new LinkedHashMap<>();   // class类全名 -> 记录
+    private final Map<String, Set<String>> m_constantRefs = new HashMap<>();    // 源文件类全名 -> 引用了编译期常量的类全名
+
+    ChangeIndex(File indexFile)
+    {
+        m_indexFile = indexFile;
+    }
+
+    static String hash(byte[] bytes)
+    {
+        return Hashing.sha256().hashBytes(bytes).toString();
+    }
+
+    /**
+     * 读取索引文件, 文件损坏时清空索引(所有脚本视为变化)
+     */
+    synchronized void load()
+    {
+        _clear();
+        if (!m_indexFile.isFile())
+            return;
+
+        try (BufferedReader reader = Files.newBufferedReader(m_indexFile.toPath(), StandardCharsets.UTF_8))
+        {
+            String line = reader.readLine();
+            if (line != null && !line.equals(VERSION + SPLIT + FORMAT_VERSION))
+            {
+                // 旧格式没有常量引用, 重新建立索引
+                LOGGER.info("脚本变化索引格式已更新, 重新建立索引: " + m_indexFile.getAbsolutePath());
+                return;
+            }
+
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.split(SPLIT, -1);
+                if (SOURCE.equals(parts[0]) && parts.length == 5)
+                {
+                    m_sources.put(parts[1], new SourceStamp(Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]));
+                }
+                else if (CLASS.equals(parts[0]) && parts.length >= 6)
+                {
+                    Set<String> depends = new HashSet<>();
+                    if (parts.length > 6 && !parts[6].isEmpty())
+                        Collections.addAll(depends, parts[6].split(DEPEND_SPLIT));
+                    m_classes.put(parts[2], new ClassStamp(parts[1], Long.parseLong(parts[3]), parts[4], parts[5], depends));
+                }
+                else if (CONSTANT_REFS.equals(parts[0]) && parts.length == 3)
+                {
+                    Set<String> owners = new TreeSet<>();
+                    if (!parts[2].isEmpty())
+                        Collections.addAll(owners, parts[2].split(DEPEND_SPLIT));
+                    m_constantRefs.put(parts[1], owners);
+                }
+                else
+                {
+                    throw new IOException("bad index line: " + line);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            LOGGER.warn("读取脚本变化索引失败, 重新建立索引: " + m_indexFile.getAbsolutePath(), e);
+            _clear();
+        }
+    }
+
+    private void _clear()
+    {
+        m_sources.clear();
+        m_classes.clear();
+        m_constantRefs.clear();
+    }
+
+    /**
+     * 写索引文件, 先写临时文件再替换, 避免写一半时进程退出
+     */
+    synchronized void save()
+    {
+        File parent = m_indexFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists())
+            parent.mkdirs();
+
+        File temp = new File(m_indexFile.getPath() + ".tmp");
+        try
+        {
+            try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8))
+            {
+                writer.write(VERSION + SPLIT + FORMAT_VERSION);
+                writer.newLine();
+                for (Map.Entry<String, SourceStamp> entry : m_sources.entrySet())
+                {
+                    SourceStamp stamp = entry.getValue();
+                    writer.write(SOURCE + SPLIT + entry.getKey() + SPLIT + stamp.m_size + SPLIT + stamp.m_lastModified + SPLIT + stamp.m_hash);
+                    writer.newLine();
+                }
+                for (Map.Entry<String, ClassStamp> entry : m_classes.entrySet())
+                {
+                    ClassStamp stamp = entry.getValue();
+                    writer.write(CLASS + SPLIT + stamp.m_source + SPLIT + entry.getKey() + SPLIT + stamp.m_size + SPLIT + stamp.m_hash
+                            + SPLIT + stamp.m_constants + SPLIT + String.join(DEPEND_SPLIT, stamp.m_depends));
+                    writer.newLine();
+                }
+                for (Map.Entry<String, Set<String>> entry : m_constantRefs.entrySet())
+                {
+                    writer.write(CONSTANT_REFS + SPLIT + entry.getKey() + SPLIT + String.join(DEPEND_SPLIT, entry.getValue()));
+                    writer.newLine();
+                }
+            }
+            Files.move(temp.toPath(), m_indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e)
+        {
+            LOGGER.error("写脚本变化索引失败: " + m_indexFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * 判断源文件是否发生变化
+     *
+     * @param name 源文件类全名
+     * @param file 源文件
+     * @return 大小和修改时间没变, 或者内容hash没变时返回null; 否则返回新的记录
+     */
+    synchronized SourceStamp checkSource(String name, File file) throws IOException
+    {
+        SourceStamp old = m_sources.get(name);
+        long size = file.length();
+        long lastModified = file.lastModified();
+        if (old != null && old.m_size == size && old.m_lastModified == lastModified)
+            return null;
+
+        String hash = hash(Files.readAllBytes(file.toPath()));
+        if (old != null && old.m_hash.equals(hash))
+        {
+            // 只是修改时间变了(touch/rsync), 更新记录, 下次走快速判断
+            m_sources.put(name, new SourceStamp(size, lastModified, hash));
+            return null;
+        }
+        return new SourceStamp(size, lastModified, hash);
+    }
+
+    /**
+     * 判断class是否和上一次记录的不同
+     *
+     * @param className class类全名
+     * @param bytes     字节码
+     */
+    synchronized boolean isClassChanged(String className, byte[] bytes)
+    {
+        ClassStamp old = m_classes.get(className);
+        return old == null || old.m_size != bytes.length || !old.m_hash.equals(hash(bytes));
+    }
+
+    /**
+     * 源文件上一次编译出的class
+     *
+     * @param name 源文件类全名
+     * @return class类全名 -> 记录
+     */
+    synchronized Map<String, ClassStamp> getClasses(String name)
+    {
+        Map<String, ClassStamp> result = new LinkedHashMap<>();
+        for (Map.Entry<String, ClassStamp> entry : m_classes.entrySet())
+        {
+            if (entry.getValue().m_source.equals(name))
+                result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * @return 所有记录的class类全名
+     */
+    synchronized Map<String, ClassStamp> getAllClasses()
+    {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(m_classes));
+    }
+
+    synchronized boolean containsSource(String name)
+    {
+        return m_sources.containsKey(name);
+    }
+
+    /**
+     * 更新源文件和它编译出的class记录
+     *
+     * @param name         源文件类全名
+     * @param stamp        源文件记录
+     * @param classBytes   该源文件编译出的class, 类全名 -> 字节码
+     * @param constantRefs 该源文件引用了编译期常量的类, null表示没有经过javac(编译缓存命中), 保留原来的记录
+     */
+    synchronized void update(String name, SourceStamp stamp, Map<String, byte[]> classBytes, Set<String> constantRefs)
+    {
+        m_sources.put(name, stamp);
+        if (constantRefs != null)
+        {
+            Set<String> owners = new TreeSet<>(constantRefs);
+            owners.remove(name);
+            m_constantRefs.put(name, owners);
+        }
+        m_classes.values().removeIf(old -> old.m_source.equals(name));
+        for (Map.Entry<String, byte[]> entry : classBytes.entrySet())
+        {
+            byte[] bytes = entry.getValue();
+            Set<String> depends = new TreeSet<>();
+            String constants = "";
+            try
+            {
+                ClassFile classFile = ClassFile.parse(bytes);
+                for (String depend : classFile.getReferencedClasses())
+                {
+                    if (!_IsSystemClass(depend))
+                        depends.add(depend.replace('/', '.'));
+                }
+                constants = constantsHash(classFile);
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("解析class依赖失败: " + entry.getKey(), e);
+            }
+            m_classes.put(entry.getKey(), new ClassStamp(name, bytes.length, hash(bytes), constants, depends));
+        }
+    }
+
+    /**
+     * 依赖指定脚本的其它脚本: 它们编译出的class在常量池中引用了指定脚本编译出的class
+     * 修改方法签名、删除方法等变化需要重新编译这些脚本, 否则替换后才在运行时报错
+     *
+     * @param changed 源文件类全名
+     * @return 依赖它们的源文件类全名, 不包括changed本身
+     */
+    synchronized Set<String> getDependents(Collection<String> changed)
+    {
+        Set<String> names = new HashSet<>(changed);
+        Set<String> classes = new HashSet<>();
+        for (Map.Entry<String, ClassStamp> entry : m_classes.entrySet())
+        {
+            if (names.contains(entry.getValue().m_source))
+                classes.add(entry.getKey());
+        }
+        // 新增的脚本还没有记录, 按源文件类全名匹配
+        classes.addAll(names);
+
+        Set<String> dependents = new TreeSet<>();
+        for (ClassStamp stamp : m_classes.values())
+        {
+            if (names.contains(stamp.m_source) || dependents.contains(stamp.m_source))
+                continue;
+
+            for (String depend : stamp.m_depends)
+            {
+                if (classes.contains(depend))
+                {
+                    dependents.add(stamp.m_source);
+                    break;
+                }
+            }
+        }
+        return dependents;
+    }
+
+    /**
+     * 使用了指定class中编译期常量的脚本, 按编译时从语法树中记录的常量引用查找(包括通过子类、静态导入引用的常量)
+     *
+     * @param classes 编译期常量发生变化的类全名
+     * @return 使用它们的源文件类全名
+     */
+    synchronized Set<String> getConstantUsers(Collection<String> classes)
+    {
+        Set<String> users = new TreeSet<>();
+        for (Map.Entry<String, Set<String>> entry : m_constantRefs.entrySet())
+        {
+            for (String owner : entry.getValue())
+            {
+                if (classes.contains(owner))
+                {
+                    users.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return users;
+    }
+
+    /**
+     * 编译期常量是否和上一次记录的不同
+     * 常量会被javac内联到使用它的class中, 使用者的常量池里没有引用, 使用者通过编译时记录的常量引用查找
+     *
+     * @param className class类全名
+     * @param bytes     新的字节码
+     */
+    synchronized boolean isConstantsChanged(String className, byte[] bytes) throws IOException
+    {
+        ClassStamp old = m_classes.get(className);
+        return old != null && !old.m_constants.equals(constantsHash(ClassFile.parse(bytes)));
+    }
+
+    /**
+     * 编译期常量的hash: static final且有ConstantValue属性的字段, 名字、描述符和值
+     */
+    static String constantsHash(ClassFile classFile) throws IOException
+    {
+        StringBuilder builder = new StringBuilder();
+        for (ClassFile.Member field : classFile.getFields())
+        {
+            for (ClassFile.Attribute attribute : field.getAttributes())
+            {
+                if (!attribute.getName().equals("ConstantValue"))
+                    continue;
+
+                byte[] info = attribute.getInfo();
+                ClassFile.Constant constant = classFile.getConstant(((info[0] & 0xFF) << 8) | (info[1] & 0xFF));
+                Object value = constant.getTag() == ClassFile.CONSTANT_String ? classFile.getUtf8(constant.getRef1()) : constant.getValue();
+                builder.append(field.getName()).append(':').append(field.getDescriptor()).append('=').append(value).append('\n');
+            }
+        }
+        return builder.length() == 0 ? "" : hash(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean _IsSystemClass(String name)
+    {
+        for (String prefix : SYSTEM_PACKAGES)
+        {
+            if (name.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * 删除源文件记录(源文件已经不存在)
+     */
+    synchronized void remove(String name)
+    {
+        m_sources.remove(name);
+        m_constantRefs.remove(name);
+        m_classes.values().removeIf(old -> old.m_source.equals(name));
+    }
+}
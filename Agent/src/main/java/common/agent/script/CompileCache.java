@@ -0,0 +1,207 @@
+package common.agent.script;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CompileCache
+ * <p>
+ * 持久化的编译缓存, 以编译单元为粒度, key为 单元内所有源文件的hash + 类路径指纹 + JDK版本 + 编译选项
+ * 任意一项变化(修改了源文件、替换了jar包、升级了JDK、切换了编译配置)key都会变化, 旧的缓存不会再命中
+ * 每个缓存项一个目录: classes文件记录 类全名/源文件/hash, 以及每个class的字节码; 读取时校验hash, 损坏的缓存项当作未命中
+ */
+class CompileCache
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompileCache.class);
+
+    private static final String VERSION     = "1";
+    private static final String INDEX_FILE  = "classes";
+    private static final String ClassSuffix = ".class";
+    private static final String SPLIT       = "\t";
+
+    private final File m_root;          // 缓存目录
+    private final int  m_maxEntries;    // 最多保留的缓存项, 超过时淘汰最久没有使用的
+
+    CompileCache(File root, int maxEntries)
+    {
+        m_root = root;
+        m_maxEntries = Math.max(1, maxEntries);
+        m_root.mkdirs();
+    }
+
+    /**
+     * 计算编译单元的key
+     *
+     * @param sources 类全名 -> 源码字节
+     * @param salt    类路径指纹 + 编译选项
+     * @return key
+     */
+    static String key(Map<String, byte[]> sources, String salt)
+    {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(VERSION, StandardCharsets.UTF_8).putByte((byte) 0);
+        hasher.putString(System.getProperty("java.version", ""), StandardCharsets.UTF_8).putByte((byte) 0);
+        hasher.putString(System.getProperty("java.vm.version", ""), StandardCharsets.UTF_8).putByte((byte) 0);
+        hasher.putString(salt, StandardCharsets.UTF_8).putByte((byte) 0);
+        for (Map.Entry<String, byte[]> entry : new TreeMap<>(sources).entrySet())
+        {
+            hasher.putString(entry.getKey(), StandardCharsets.UTF_8).putByte((byte) 0);
+            hasher.putString(ChangeIndex.hash(entry.getValue()), StandardCharsets.UTF_8).putByte((byte) 0);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * 读取缓存
+     *
+     * @param key   编译单元的key
+     * @param names 编译单元的源文件
+     * @return 编译结果(包含字节码), 未命中返回null
+     */
+    CompileResult load(String key, List<String> names)
+    {
+        File dir = new File(m_root, key);
+        File indexFile = new File(dir, INDEX_FILE);
+        if (!indexFile.isFile())
+            return null;
+
+        CompileResult result = new CompileResult(names);
+        Map<String, byte[]> classBytes = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split(SPLIT);
+                if (fields.length != 3)
+                    throw new IOException("bad cache line: " + line);
+
+                byte[] bytes = Files.readAllBytes(new File(dir, fields[0] + ClassSuffix).toPath());
+                if (!fields[2].equals(ChangeIndex.hash(bytes)))
+                    throw new IOException("class hash mismatch: " + fields[0]);
+
+                classBytes.put(fields[0], bytes);
+                result.addEmitted(fields[0], fields[1]);
+            }
+        }
+        catch (IOException e)
+        {
+            LOGGER.warn("编译缓存损坏, 重新编译: " + dir.getAbsolutePath() + ", " + e.getMessage());
+            _Delete(dir);
+            return null;
+        }
+
+        if (classBytes.isEmpty())
+            return null;
+
+        // 更新修改时间, 淘汰时按最近使用排序
+        dir.setLastModified(System.currentTimeMillis());
+        result.setClassBytes(classBytes);
+        result.setSuccess(true);
+        return result;
+    }
+
+    /**
+     * 写入缓存, 先写到临时目录再整体改名, 进程中途退出不会留下不完整的缓存项
+     *
+     * @param key        编译单元的key
+     * @param emitted    编译出的class类全名 -> 源文件类全名
+     * @param classBytes 类全名 -> 字节码
+     */
+    void store(String key, Map<String, String> emitted, Map<String, byte[]> classBytes)
+    {
+        File dir = new File(m_root, key);
+        if (dir.isDirectory() || emitted.isEmpty())
+            return;
+
+        File tmp = new File(m_root, key + ".tmp" + System.nanoTime());
+        try
+        {
+            tmp.mkdirs();
+            try (BufferedWriter writer = Files.newBufferedWriter(new File(tmp, INDEX_FILE).toPath(), StandardCharsets.UTF_8))
+            {
+                for (Map.Entry<String, String> entry : emitted.entrySet())
+                {
+                    byte[] bytes = classBytes.get(entry.getKey());
+                    if (bytes == null)
+                        throw new IOException("class bytes not found: " + entry.getKey());
+
+                    Files.write(new File(tmp, entry.getKey() + ClassSuffix).toPath(), bytes);
+                    writer.write(entry.getKey() + SPLIT + entry.getValue() + SPLIT + ChangeIndex.hash(bytes));
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            // 其他线程已经写入相同的key, 或者磁盘写失败, 都不影响编译结果
+            if (!dir.isDirectory())
+                LOGGER.warn("写编译缓存失败: " + dir.getAbsolutePath(), e);
+        }
+        finally
+        {
+            if (tmp.exists())
+                _Delete(tmp);
+        }
+    }
+
+    /**
+     * 淘汰最久没有使用的缓存项, 以及中途退出残留的临时目录
+     */
+    void prune()
+    {
+        File[] files = m_root.listFiles();
+        if (files == null)
+            return;
+
+        List<File> entries = new ArrayList<>();
+        for (File file : files)
+        {
+            if (file.getName().contains(".tmp"))
+                _Delete(file);
+            else if (file.isDirectory())
+                entries.add(file);
+        }
+
+        if (entries.size() <= m_maxEntries)
+            return;
+
+        Collections.sort(entries, Comparator.comparingLong(File::lastModified).reversed());
+        for (File file : entries.subList(m_maxEntries, entries.size()))
+        {
+            _Delete(file);
+        }
+        LOGGER.info(String.format("编译缓存淘汰 %d 项, 保留 %d 项", entries.size() - m_maxEntries, m_maxEntries));
+    }
+
+    private static void _Delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (File child : files)
+            {
+                _Delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,45 @@
+package common.agent.script;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * CompileProfile
+ * <p>
+ * 编译配置, 决定调试信息和注解处理等额外的javac选项
+ */
+public enum CompileProfile
+{
+    /**
+     * javac默认行为, 生成源文件和行号信息, 执行注解处理
+     */
+    DEFAULT(),
+
+    /**
+     * 生成全部调试信息(包括局部变量表), 便于线上调试
+     */
+    DEBUG("-g"),
+
+    /**
+     * 不生成调试信息, 不执行注解处理, 不为隐式引用的源文件生成class, 编译最快
+     * 热更后的方法异常堆栈中没有行号
+     */
+    FAST("-g:none", "-proc:none", "-implicit:none"),
+    ;
+
+    private final List<String> m_options;
+
+    CompileProfile(String... options)
+    {
+        m_options = Collections.unmodifiableList(Arrays.asList(options));
+    }
+
+    /**
+     * @return 额外的javac编译选项
+     */
+    public List<String> getOptions()
+    {
+        return m_options;
+    }
+}
@@ -0,0 +1,196 @@
+package common.agent.script;
+
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.ForwardingJavaFileObject;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * CompileProfiler
+ * <p>
+ * 编译分析, 一次编译任务使用一个实例
+ * 通过javac的TaskListener记录每个阶段和每个源文件的耗时; 包装文件管理器, 记录从类路径中实际读取的class
+ */
+class CompileProfiler implements TaskListener
+{
+    private final CompileReport     m_report;
+    private final List<String>      m_classPath;                            // 类路径条目(绝对路径)
+    private final Map<String, Long> m_started = new HashMap<>();            // 阶段|源文件 -> 开始时间
+
+    CompileProfiler(List<File> classPathFiles)
+    {
+        m_classPath = new ArrayList<>(classPathFiles.size());
+        for (File file : classPathFiles)
+        {
+            m_classPath.add(file.getAbsolutePath());
+        }
+        m_report = new CompileReport(m_classPath);
+    }
+
+    CompileReport getReport()
+    {
+        return m_report;
+    }
+
+    @Override
+    public void started(TaskEvent e)
+    {
+        m_started.put(_Key(e), System.nanoTime());
+    }
+
+    @Override
+    public void finished(TaskEvent e)
+    {
+        Long start = m_started.remove(_Key(e));
+        if (start == null)
+            return;
+
+        m_report.addPhase(e.getKind().name(), sourceName(e.getSourceFile()), System.nanoTime() - start);
+    }
+
+    private static String _Key(TaskEvent e)
+    {
+        String source = sourceName(e.getSourceFile());
+        String type = e.getTypeElement() == null ? "" : e.getTypeElement().getQualifiedName().toString();
+        return e.getKind().name() + "|" + source + "|" + type;
+    }
+
+    /**
+     * 源文件类全名, 脚本源文件的uri为string:///a/b/C.java
+     */
+    static String sourceName(JavaFileObject file)
+    {
+        if (file == null)
+            return null;
+
+        String name = file.toUri().getPath();
+        if (name == null)
+            name = file.getName();
+        if (name.startsWith("/"))
+            name = name.substring(1);
+        if (name.endsWith(JavaFileObject.Kind.SOURCE.extension))
+            name = name.substring(0, name.length() - JavaFileObject.Kind.SOURCE.extension.length());
+        return name.replace('/', '.');
+    }
+
+    /**
+     * 包装文件管理器, 记录javac从类路径读取的class
+     * javac传回的文件对象需要还原成原始对象再交给底层文件管理器
+     */
+    JavaFileManager wrap(JavaFileManager fileManager)
+    {
+        return new ForwardingJavaFileManager<JavaFileManager>(fileManager)
+        {
+            @Override
+            public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException
+            {
+                Iterable<JavaFileObject> files = super.list(location, packageName, kinds, recurse);
+                if (location != StandardLocation.CLASS_PATH)
+                    return files;
+
+                List<JavaFileObject> list = new ArrayList<>();
+                for (JavaFileObject file : files)
+                {
+                    list.add(file.getKind() == JavaFileObject.Kind.CLASS ? new ReadRecordingFileObject(file) : file);
+                }
+                return list;
+            }
+
+            @Override
+            public String inferBinaryName(Location location, JavaFileObject file)
+            {
+                return super.inferBinaryName(location, _Unwrap(file));
+            }
+
+            @Override
+            public boolean isSameFile(FileObject a, FileObject b)
+            {
+                return super.isSameFile(_Unwrap(a), _Unwrap(b));
+            }
+        };
+    }
+
+    private static <T extends FileObject> T _Unwrap(T file)
+    {
+        if (file instanceof ReadRecordingFileObject)
+        {
+            @SuppressWarnings("unchecked")
+            T original = (T) ((ReadRecordingFileObject) file).getOriginal();
+            return original;
+        }
+        return file;
+    }
+
+    /**
+     * 读取class时记录它所在的类路径条目
+     */
+    private class ReadRecordingFileObject extends ForwardingJavaFileObject<JavaFileObject>
+    {
+        private boolean m_recorded;
+
+        ReadRecordingFileObject(JavaFileObject file)
+        {
+            super(file);
+        }
+
+        JavaFileObject getOriginal()
+        {
+            return fileObject;
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException
+        {
+            if (!m_recorded)
+            {
+                m_recorded = true;
+                m_report.addClassPathRead(_ClassPathEntry(fileObject.toUri()));
+            }
+            return super.openInputStream();
+        }
+    }
+
+    /**
+     * class所在的类路径条目: jar:file:/x/a.jar!/b/C.class -> /x/a.jar, file:/x/classes/b/C.class -> /x/classes
+     */
+    private String _ClassPathEntry(URI uri)
+    {
+        String path = uri.toString();
+        if ("jar".equals(uri.getScheme()))
+        {
+            int index = path.indexOf("!/");
+            path = index > 0 ? path.substring(0, index) : path;
+            path = path.substring("jar:".length());
+        }
+
+        try
+        {
+            path = new File(URI.create(path)).getAbsolutePath();
+        }
+        catch (IllegalArgumentException e)
+        {
+            return path;
+        }
+
+        for (String entry : m_classPath)
+        {
+            if (path.equals(entry) || path.startsWith(entry + File.separator))
+                return entry;
+        }
+        return path;
+    }
+}
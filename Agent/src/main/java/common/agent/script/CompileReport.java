@@ -0,0 +1,234 @@
+package common.agent.script;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CompileReport
+ * <p>
+ * 编译性能报告, 开启编译分析(ScriptManager.SetCompileProfiling)时随CompileResult返回
+ * 包括javac每个阶段(解析/符号录入/分析/生成/注解处理)的耗时、每个源文件的耗时排名、每个类路径条目实际读取的class数量
+ */
+public class CompileReport
+{
+    private static final int TopSources = 20;   // toString输出的最慢源文件数量
+
+    /**
+     * 单个源文件的耗时
+     */
+    public static class SourceTiming
+    {
+        private final String              m_name;
+        private final Map<String, Long>   m_phaseNanos;
+
+        SourceTiming(String name, Map<String, Long> phaseNanos)
+        {
+            m_name = name;
+            m_phaseNanos = phaseNanos;
+        }
+
+        public String getName()
+        {
+            return m_name;
+        }
+
+        public long getTotalNanos()
+        {
+            long total = 0;
+            for (Long nanos : m_phaseNanos.values())
+            {
+                total += nanos;
+            }
+            return total;
+        }
+
+        public double getTotalMillis()
+        {
+            return getTotalNanos() / 1000000.0;
+        }
+
+        /**
+         * @return 阶段 -> 耗时(毫秒)
+         */
+        public Map<String, Double> getPhaseMillis()
+        {
+            return _ToMillis(m_phaseNanos);
+        }
+    }
+
+    private final Map<String, Long>              m_phaseNanos  = new LinkedHashMap<>();   // 阶段 -> 耗时
+    private final Map<String, Map<String, Long>> m_sourceNanos = new HashMap<>();         // 源文件 -> 阶段 -> 耗时
+    private final Map<String, Integer>           m_classPathReads = new TreeMap<>();      // 类路径条目 -> 读取的class数量
+    private final List<String>                   m_classPath = new ArrayList<>();         // 编译时的类路径
+    private long                                 m_totalNanos;                            // 编译总耗时
+
+    CompileReport(List<String> classPath)
+    {
+        m_classPath.addAll(classPath);
+    }
+
+    synchronized void addPhase(String phase, String source, long nanos)
+    {
+        Long old = m_phaseNanos.get(phase);
+        m_phaseNanos.put(phase, old == null ? nanos : old + nanos);
+        if (source == null)
+            return;
+
+        Map<String, Long> phases = m_sourceNanos.get(source);
+        if (phases == null)
+        {
+            phases = new LinkedHashMap<>();
+            m_sourceNanos.put(source, phases);
+        }
+        old = phases.get(phase);
+        phases.put(phase, old == null ? nanos : old + nanos);
+    }
+
+    synchronized void addClassPathRead(String entry)
+    {
+        Integer old = m_classPathReads.get(entry);
+        m_classPathReads.put(entry, old == null ? 1 : old + 1);
+    }
+
+    synchronized void addTotalNanos(long nanos)
+    {
+        m_totalNanos += nanos;
+    }
+
+    /**
+     * 合并另一个编译单元的报告(并行编译)
+     */
+    synchronized void merge(CompileReport other)
+    {
+        synchronized (other)
+        {
+            for (Map.Entry<String, Long> entry : other.m_phaseNanos.entrySet())
+            {
+                addPhase(entry.getKey(), null, entry.getValue());
+            }
+            for (Map.Entry<String, Map<String, Long>> source : other.m_sourceNanos.entrySet())
+            {
+                for (Map.Entry<String, Long> entry : source.getValue().entrySet())
+                {
+                    Map<String, Long> phases = m_sourceNanos.get(source.getKey());
+                    if (phases == null)
+                    {
+                        phases = new LinkedHashMap<>();
+                        m_sourceNanos.put(source.getKey(), phases);
+                    }
+                    Long old = phases.get(entry.getKey());
+                    phases.put(entry.getKey(), old == null ? entry.getValue() : old + entry.getValue());
+                }
+            }
+            for (Map.Entry<String, Integer> entry : other.m_classPathReads.entrySet())
+            {
+                Integer old = m_classPathReads.get(entry.getKey());
+                m_classPathReads.put(entry.getKey(), old == null ? entry.getValue() : old + entry.getValue());
+            }
+            for (String entry : other.m_classPath)
+            {
+                if (!m_classPath.contains(entry))
+                    m_classPath.add(entry);
+            }
+            // 并行编译时总耗时取最长的单元
+            m_totalNanos = Math.max(m_totalNanos, other.m_totalNanos);
+        }
+    }
+
+    public synchronized double getTotalMillis()
+    {
+        return m_totalNanos / 1000000.0;
+    }
+
+    /**
+     * @return javac阶段 -> 耗时(毫秒), 阶段之间可能嵌套(注解处理包含多轮解析和录入)
+     */
+    public synchronized Map<String, Double> getPhaseMillis()
+    {
+        return _ToMillis(m_phaseNanos);
+    }
+
+    /**
+     * @return 源文件耗时, 从慢到快
+     */
+    public synchronized List<SourceTiming> getSlowSources()
+    {
+        List<SourceTiming> list = new ArrayList<>(m_sourceNanos.size());
+        for (Map.Entry<String, Map<String, Long>> entry : m_sourceNanos.entrySet())
+        {
+            list.add(new SourceTiming(entry.getKey(), new LinkedHashMap<>(entry.getValue())));
+        }
+        Collections.sort(list, (a, b) -> Double.compare(b.getTotalMillis(), a.getTotalMillis()));
+        return list;
+    }
+
+    /**
+     * @return 类路径条目 -> javac实际读取的class数量
+     */
+    public synchronized Map<String, Integer> getClassPathReads()
+    {
+        return new TreeMap<>(m_classPathReads);
+    }
+
+    /**
+     * @return 本次编译没有读取任何class的类路径条目, 可以考虑从编译类路径中去掉
+     */
+    public synchronized List<String> getUnusedClassPath()
+    {
+        List<String> list = new ArrayList<>();
+        for (String entry : m_classPath)
+        {
+            if (!m_classPathReads.containsKey(entry))
+                list.add(entry);
+        }
+        return list;
+    }
+
+    private static Map<String, Double> _ToMillis(Map<String, Long> nanos)
+    {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : nanos.entrySet())
+        {
+            millis.put(entry.getKey(), entry.getValue() / 1000000.0);
+        }
+        return millis;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("编译耗时: %.3fms\n", getTotalMillis()));
+        builder.append("阶段耗时:\n");
+        for (Map.Entry<String, Double> entry : getPhaseMillis().entrySet())
+        {
+            builder.append(String.format("    %-28s %10.3fms\n", entry.getKey(), entry.getValue()));
+        }
+
+        List<SourceTiming> sources = getSlowSources();
+        builder.append("最慢的源文件(").append(Math.min(TopSources, sources.size())).append("/").append(sources.size()).append("):\n");
+        for (SourceTiming timing : sources.subList(0, Math.min(TopSources, sources.size())))
+        {
+            builder.append(String.format("    %10.3fms  %s  %s\n", timing.getTotalMillis(), timing.getName(), timing.getPhaseMillis()));
+        }
+
+        builder.append("类路径读取的class数量:\n");
+        for (Map.Entry<String, Integer> entry : getClassPathReads().entrySet())
+        {
+            builder.append(String.format("    %6d  %s\n", entry.getValue(), entry.getKey()));
+        }
+
+        List<String> unused = getUnusedClassPath();
+        builder.append("没有读取的类路径(").append(unused.size()).append("):\n");
+        for (String entry : unused)
+        {
+            builder.append("    ").append(entry).append("\n");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,256 @@
+package common.agent.script;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * CompileResult
+ * <p>
+ * 一次批量编译的结果, 同一批源文件共用一个CompilationTask, 任意一个失败则整批失败
+ */
+public class CompileResult
+{
+    /**
+     * 与具体源文件无关的诊断信息(如编译选项错误)使用的key
+     */
+    public static final String GLOBAL = "";
+
+    private final List<String>              m_classNames;   // 本批次编译的类全名
+    private final Map<String, List<String>> m_diagnostics;  // 类全名 -> 诊断信息
+    private final Map<String, String>       m_emitted;      // 编译出的class类全名 -> 源文件类全名
+    private final List<String>              m_unchanged;    // 使用变化索引时, 没有变化而跳过编译的源文件
+    private final Map<String, ChangeIndex.SourceStamp> m_sourceStamps;  // 本批次源文件的变化索引记录
+    private final Map<String, Set<String>>  m_constantRefs; // 源文件类全名 -> 引用了编译期常量的类, 只有javac编译的源文件有记录
+    private       Map<String, byte[]>       m_classBytes;   // 内存编译的字节码, 类全名 -> 字节码
+    private       boolean                   m_success;      // 是否整批编译成功
+    private       long                      m_compileNanos; // 编译耗时(包括读取源文件和查询编译缓存)
+    private       long                      m_sourceBytes;  // 读取的源文件字节数
+    private       CompileReport             m_report;       // 编译性能报告, 没有开启编译分析时为null
+
+    public CompileResult(List<String> classNames)
+    {
+        m_classNames = new ArrayList<>(classNames);
+        m_diagnostics = new LinkedHashMap<>();
+        m_emitted = new LinkedHashMap<>();
+        m_unchanged = new ArrayList<>();
+        m_sourceStamps = new LinkedHashMap<>();
+        m_constantRefs = new LinkedHashMap<>();
+    }
+
+    void addConstantReferences(String source, Set<String> owners)
+    {
+        m_constantRefs.computeIfAbsent(source, k -> new TreeSet<>()).addAll(owners);
+    }
+
+    /**
+     * @param source 源文件类全名
+     * @return 源文件引用了编译期常量的类, 不是由javac编译(例如编译缓存命中)时为null
+     */
+    Set<String> getConstantReferences(String source)
+    {
+        return m_constantRefs.get(source);
+    }
+
+    void addEmitted(String className, String source)
+    {
+        m_emitted.put(className, source);
+    }
+
+    void addUnchanged(String name)
+    {
+        m_unchanged.add(name);
+    }
+
+    void putSourceStamp(String name, ChangeIndex.SourceStamp stamp)
+    {
+        m_sourceStamps.put(name, stamp);
+    }
+
+    Map<String, ChangeIndex.SourceStamp> getSourceStamps()
+    {
+        return m_sourceStamps;
+    }
+
+    /**
+     * @return 编译出的class类全名(包括'$'内部类) -> 源文件类全名
+     */
+    public Map<String, String> getEmittedClasses()
+    {
+        return Collections.unmodifiableMap(m_emitted);
+    }
+
+    /**
+     * @return 内容没有变化而跳过编译的源文件
+     */
+    public List<String> getUnchanged()
+    {
+        return Collections.unmodifiableList(m_unchanged);
+    }
+
+    void addDiagnostic(String className, String message)
+    {
+        List<String> list = m_diagnostics.get(className);
+        if (list == null)
+        {
+            list = new ArrayList<>();
+            m_diagnostics.put(className, list);
+        }
+        list.add(message);
+    }
+
+    /**
+     * 合并另一个编译单元的结果, 任意一个单元失败则整批失败
+     */
+    void merge(CompileResult other)
+    {
+        for (String name : other.m_classNames)
+        {
+            if (!m_classNames.contains(name))
+                m_classNames.add(name);
+        }
+        for (Map.Entry<String, List<String>> entry : other.m_diagnostics.entrySet())
+        {
+            for (String message : entry.getValue())
+            {
+                addDiagnostic(entry.getKey(), message);
+            }
+        }
+        m_emitted.putAll(other.m_emitted);
+        m_sourceStamps.putAll(other.m_sourceStamps);
+        for (Map.Entry<String, Set<String>> entry : other.m_constantRefs.entrySet())
+        {
+            addConstantReferences(entry.getKey(), entry.getValue());
+        }
+        if (other.m_classBytes != null)
+        {
+            if (m_classBytes == null)
+                m_classBytes = new LinkedHashMap<>();
+            m_classBytes.putAll(other.m_classBytes);
+        }
+        if (other.m_report != null)
+        {
+            if (m_report == null)
+                m_report = other.m_report;
+            else
+                m_report.merge(other.m_report);
+        }
+        m_success = m_success && other.m_success;
+    }
+
+    void setSuccess(boolean success)
+    {
+        m_success = success;
+    }
+
+    void setCompileNanos(long compileNanos)
+    {
+        m_compileNanos = compileNanos;
+    }
+
+    void setSourceBytes(long sourceBytes)
+    {
+        m_sourceBytes = sourceBytes;
+    }
+
+    /**
+     * @return 编译耗时(纳秒), 包括读取源文件和查询编译缓存
+     */
+    public long getCompileNanos()
+    {
+        return m_compileNanos;
+    }
+
+    /**
+     * @return 读取的源文件字节数
+     */
+    public long getSourceBytes()
+    {
+        return m_sourceBytes;
+    }
+
+    void setReport(CompileReport report)
+    {
+        m_report = report;
+    }
+
+    /**
+     * @return 编译性能报告, 没有开启编译分析或者没有实际编译(全部命中缓存)时为null
+     */
+    public CompileReport getReport()
+    {
+        return m_report;
+    }
+
+    void setClassBytes(Map<String, byte[]> classBytes)
+    {
+        m_classBytes = classBytes;
+    }
+
+    /**
+     * 内存编译模式下的编译产物, 包括'$'内部类
+     *
+     * @return 类全名 -> 字节码, 磁盘编译模式下为空
+     */
+    public Map<String, byte[]> getClassBytes()
+    {
+        return m_classBytes == null ? Collections.<String, byte[]>emptyMap() : Collections.unmodifiableMap(m_classBytes);
+    }
+
+    public boolean isSuccess()
+    {
+        return m_success;
+    }
+
+    public List<String> getClassNames()
+    {
+        return Collections.unmodifiableList(m_classNames);
+    }
+
+    /**
+     * @return 类全名 -> 诊断信息, 只包含有诊断信息的源文件
+     */
+    public Map<String, List<String>> getDiagnostics()
+    {
+        return Collections.unmodifiableMap(m_diagnostics);
+    }
+
+    /**
+     * 获取单个源文件的诊断信息
+     *
+     * @param className 类全名
+     * @return 没有诊断信息时返回空列表
+     */
+    public List<String> getDiagnostics(String className)
+    {
+        List<String> list = m_diagnostics.get(className);
+        return list == null ? Collections.<String>emptyList() : Collections.unmodifiableList(list);
+    }
+
+    /**
+     * 格式化所有诊断信息, 用于日志输出
+     */
+    public String getDiagnosticString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, List<String>> entry : m_diagnostics.entrySet())
+        {
+            builder.append("[").append(entry.getKey().isEmpty() ? "global" : entry.getKey()).append("]\n");
+            for (String message : entry.getValue())
+            {
+                builder.append(message);
+            }
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "CompileResult{success=" + m_success + ", classes=" + m_classNames.size() + ", diagnostics=" + m_diagnostics.keySet() + "}";
+    }
+}
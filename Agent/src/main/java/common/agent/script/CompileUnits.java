@@ -0,0 +1,149 @@
+package common.agent.script;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * CompileUnits
+ * <p>
+ * 把一批脚本拆分成互相独立的编译单元, 每个单元可以单独编译
+ * 同一个包的脚本在同一个单元; 源码中引用了其他包的脚本(类全名、import、通配符import+类名)时两个包合并成一个单元
+ * 判断是保守的, 宁可多合并也不会把互相依赖的脚本拆开
+ */
+class CompileUnits
+{
+    private static final Pattern IMPORT_ALL = Pattern.compile("import\\s+([\\w.]+)\\s*\\.\\s*\\*\\s*;");
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z_$][\\w$]*");
+
+    private CompileUnits()
+    {
+    }
+
+    /**
+     * 拆分编译单元
+     *
+     * @param sources 类全名 -> 源码字节
+     * @return 编译单元列表, 每个单元为 类全名 -> 源码字节
+     */
+    static List<Map<String, byte[]>> split(Map<String, byte[]> sources)
+    {
+        List<String> names = new ArrayList<>(sources.keySet());
+        int[] parent = new int[names.size()];
+        for (int i = 0; i < parent.length; i++)
+        {
+            parent[i] = i;
+        }
+
+        // 同一个包合并
+        Map<String, Integer> packageFirst = new HashMap<>();
+        Map<String, List<Integer>> simpleNames = new HashMap<>();
+        for (int i = 0; i < names.size(); i++)
+        {
+            String name = names.get(i);
+            Integer first = packageFirst.get(_packageName(name));
+            if (first == null)
+                packageFirst.put(_packageName(name), i);
+            else
+                _union(parent, first, i);
+
+            List<Integer> list = simpleNames.get(_simpleName(name));
+            if (list == null)
+            {
+                list = new ArrayList<>();
+                simpleNames.put(_simpleName(name), list);
+            }
+            list.add(i);
+        }
+
+        // 跨包引用合并
+        for (int i = 0; i < names.size(); i++)
+        {
+            String code = new String(sources.get(names.get(i)), StandardCharsets.UTF_8);
+            String pkg = _packageName(names.get(i));
+
+            Set<String> importAll = new HashSet<>();
+            Matcher matcher = IMPORT_ALL.matcher(code);
+            while (matcher.find())
+            {
+                importAll.add(matcher.group(1));
+            }
+
+            Set<String> identifiers = new HashSet<>();
+            matcher = IDENTIFIER.matcher(code);
+            while (matcher.find())
+            {
+                identifiers.add(matcher.group());
+            }
+
+            for (String identifier : identifiers)
+            {
+                List<Integer> candidates = simpleNames.get(identifier);
+                if (candidates == null)
+                    continue;
+
+                for (Integer j : candidates)
+                {
+                    String other = names.get(j);
+                    String otherPkg = _packageName(other);
+                    if (otherPkg.equals(pkg))
+                        continue;
+
+                    // 类全名引用(包括单类import和静态import)或者通配符import
+                    if (code.contains(other) || importAll.contains(otherPkg) || importAll.contains(other))
+                        _union(parent, i, j);
+                }
+            }
+        }
+
+        Map<Integer, Map<String, byte[]>> units = new LinkedHashMap<>();
+        for (int i = 0; i < names.size(); i++)
+        {
+            int root = _find(parent, i);
+            Map<String, byte[]> unit = units.get(root);
+            if (unit == null)
+            {
+                unit = new LinkedHashMap<>();
+                units.put(root, unit);
+            }
+            unit.put(names.get(i), sources.get(names.get(i)));
+        }
+        return new ArrayList<>(units.values());
+    }
+
+    private static int _find(int[] parent, int i)
+    {
+        while (parent[i] != i)
+        {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void _union(int[] parent, int a, int b)
+    {
+        int rootA = _find(parent, a);
+        int rootB = _find(parent, b);
+        if (rootA != rootB)
+            parent[rootB] = rootA;
+    }
+
+    private static String _packageName(String name)
+    {
+        int index = name.lastIndexOf('.');
+        return index > -1 ? name.substring(0, index) : "";
+    }
+
+    private static String _simpleName(String name)
+    {
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+}
@@ -0,0 +1,92 @@
+package common.agent.script;
+
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.Elements;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * ConstantReferenceCollector
+ * <p>
+ * 记录每个源文件引用了哪些类的编译期常量, 一次编译任务使用一个实例
+ * javac把编译期常量(static final + 常量表达式)的值内联到使用者中, 使用者的常量池里没有常量所在类的引用, 只能从语法树中找到
+ * 每个类型分析(ANALYZE)结束后扫描它的语法树, 标识符和成员访问解析到的常量字段记录为对声明该字段的类的引用,
+ * 通过继承或者静态导入访问的常量也记录为声明它的类
+ */
+class ConstantReferenceCollector implements TaskListener
+{
+    private final Trees         m_trees;
+    private final Elements      m_elements;
+    private final CompileResult m_result;
+
+    ConstantReferenceCollector(JavacTask task, CompileResult result)
+    {
+        m_trees = Trees.instance(task);
+        m_elements = task.getElements();
+        m_result = result;
+    }
+
+    @Override
+    public void started(TaskEvent e)
+    {
+    }
+
+    @Override
+    public void finished(TaskEvent e)
+    {
+        if (e.getKind() != TaskEvent.Kind.ANALYZE || e.getTypeElement() == null || e.getSourceFile() == null)
+            return;
+
+        TreePath path = m_trees.getPath(e.getTypeElement());
+        if (path == null)
+            return;
+
+        Set<String> owners = new TreeSet<>();
+        new TreePathScanner<Void, Void>()
+        {
+            @Override
+            public Void visitIdentifier(IdentifierTree node, Void unused)
+            {
+                _Record(getCurrentPath(), owners);
+                return super.visitIdentifier(node, unused);
+            }
+
+            @Override
+            public Void visitMemberSelect(MemberSelectTree node, Void unused)
+            {
+                _Record(getCurrentPath(), owners);
+                return super.visitMemberSelect(node, unused);
+            }
+        }.scan(path, null);
+
+        m_result.addConstantReferences(CompileProfiler.sourceName(e.getSourceFile()), owners);
+    }
+
+    private void _Record(TreePath path, Set<String> owners)
+    {
+        Element element = m_trees.getElement(path);
+        if (element == null || element.getKind() != ElementKind.FIELD)
+            return;
+
+        Set<Modifier> modifiers = element.getModifiers();
+        if (!modifiers.contains(Modifier.STATIC) || !modifiers.contains(Modifier.FINAL) || ((VariableElement) element).getConstantValue() == null)
+            return;
+
+        Element owner = element.getEnclosingElement();
+        if (owner instanceof TypeElement)
+            owners.add(m_elements.getBinaryName((TypeElement) owner).toString());
+    }
+}
@@ -4,14 +4,24 @@ package common.agent.script;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.sun.source.util.JavacTask;
+
 import javax.tools.*;
 import java.io.File;
 import java.io.IOException;
+import java.lang.instrument.Instrumentation;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by YongQianCheng on 2017/9/22.
@@ -22,21 +32,35 @@ public class JavaScriptCompiler
 {
     private final static Logger LOGGER = LoggerFactory.getLogger(JavaScriptCompiler.class);
 
+    private final static long ClassPathCheckIntervalNanos = TimeUnit.SECONDS.toNanos(2);   // 借出文件管理器时检查类路径指纹的最小间隔
+
     /**
      *  用于编译java源码的内部结构
      */
     private class JavaSourceFromString extends SimpleJavaFileObject
     {
         private final String m_code;
+        private final String m_className;
 
         /**
          * Construct a JavaSourceFromString of the given name and with the
          * given code.
          */
         protected JavaSourceFromString(String name, String code)
+        {
+            this(name, name.replace('/', '.'), code);
+        }
+
+        protected JavaSourceFromString(String name, String className, String code)
         {
             super(URI.create("string:///" + name + Kind.SOURCE.extension), Kind.SOURCE);
             this.m_code = code;
+            this.m_className = className;
+        }
+
+        public String getClassName()
+        {
+            return m_className;
         }
 
         @Override
@@ -46,49 +70,338 @@ public class JavaScriptCompiler
         }
     }
 
+    private JavaCompiler m_javaCompiler;    // 系统java编译器, 只获取一次
+    private final Deque<StandardJavaFileManager> m_idleFileManagers = new ArrayDeque<>();  // 空闲的常驻文件管理器, 复用jar包索引, 并行编译时每个任务使用一个
+    private List<File> m_classPathFiles;    // 编译路径
+    private int m_generation;               // 编译路径版本, 编译路径变化后旧版本的文件管理器不再复用
+    private String m_classPathFingerprint;  // 类路径指纹, 变化时重新创建文件管理器
+    private long m_classPathCheckNanos;     // 上次检查类路径指纹的时间
+    private CompileProfile m_profile = CompileProfile.DEFAULT;  // 编译配置
     private String m_compileClassPath;      // 编译Java脚本需要的路径
     private String m_compileOutputPath;     // 编译后输出的路径
-    private List<String> m_compileOption;   // 编译选项
+    private ScriptClassIndex m_classIndex;  // 输出路径的class索引, 脚本类加载器使用
+    private volatile List<String> m_compileOption;  // 编译选项
+    private boolean m_memoryOutput;         // 编译结果保存在内存中, 不经过磁盘
+    private boolean m_auditOutput;          // 内存编译时是否同时把class写到输出路径(仅用于审计)
+    private volatile boolean m_profiling;   // 编译分析, 记录javac各阶段和每个源文件的耗时
+    private volatile boolean m_constantReferences;  // 记录每个源文件引用的编译期常量, 变化索引使用
+    private volatile RuntimeClassIndex m_runtimeIndex;  // 运行时已加载类的索引, 为空时只使用类路径
 
     /**
-     *  构建编译路径
+     *  设置编译输出方式
+     * @param memoryOutput  字节码保存在内存中, 通过CompileResult.getClassBytes()获取
+     * @param auditOutput   内存编译时是否同时写一份class文件到输出路径, 仅用于审计
      */
-    public void InitClassPath(String outputPath)
+    public void SetMemoryOutput(boolean memoryOutput, boolean auditOutput)
     {
-        // 先清空
-        m_compileClassPath = null;
+        m_memoryOutput = memoryOutput;
+        m_auditOutput = auditOutput;
+    }
 
-        // 准备编译路径
-        // 当前类本身使用的classLoader,从jar包运行，默认为URLClassLoader
-        URLClassLoader classLoader = (URLClassLoader)getClass().getClassLoader();
+    public boolean IsMemoryOutput()
+    {
+        return m_memoryOutput;
+    }
 
-        // 从当前类的编译环境中解析出编译需要的路径
-        StringBuilder builder = new StringBuilder();
-        for (URL url : classLoader.getURLs())
+    /**
+     *  从运行中JVM已加载的类解析编译符号, 应用类加载器不是URLClassLoader(fat jar、容器)时也能引用应用的类
+     *  已加载类的快照在RefreshClassPath时重新获取, 没有加载过的类仍然从类路径查找
+     * @param instrumentation   为空时关闭
+     */
+    public synchronized void SetRuntimeClassPath(Instrumentation instrumentation)
+    {
+        if (instrumentation == null)
         {
-            String p = url.getFile();
-            builder.append(p).append(File.pathSeparator);
+            m_runtimeIndex = null;
+            return;
         }
-        m_compileClassPath = builder.toString();
 
+        RuntimeClassIndex index = new RuntimeClassIndex(instrumentation);
+        index.rebuild();
+        m_runtimeIndex = index;
+    }
+
+    public boolean IsRuntimeClassPath()
+    {
+        return m_runtimeIndex != null;
+    }
+
+    /**
+     * 输出路径被外部修改后重新扫描class索引
+     */
+    void RebuildClassIndex()
+    {
+        if (m_classIndex != null)
+            m_classIndex.rebuild();
+    }
+
+    /**
+     * @return 编译后输出路径
+     */
+    public String GetOutputPath()
+    {
+        return m_compileOutputPath;
+    }
+
+    /**
+     *  构建编译路径
+     *  编译器和文件管理器只创建一次并保持打开, jar包索引在多次编译之间复用, 类路径变化时才重新创建
+     */
+    public void InitClassPath(String outputPath) throws IOException
+    {
+        InitClassPath(outputPath, true);
+    }
+
+    /**
+     *  构建编译路径
+     * @param outputPath    编译后输出路径
+     * @param cleanOutput   是否清空输出路径, 使用变化索引时保留上一次的编译结果
+     */
+    public void InitClassPath(String outputPath, boolean cleanOutput) throws IOException
+    {
         // 编译后输出路径
         m_compileOutputPath = outputPath;
-        _PrepareScriptPath(m_compileOutputPath);
+        if (cleanOutput)
+            _PrepareScriptPath(m_compileOutputPath);
+        else
+            new File(m_compileOutputPath).mkdirs();
+
+        // 只扫描一次输出目录, 之后随编译增量更新
+        m_classIndex = new ScriptClassIndex(m_compileOutputPath);
+        m_classIndex.rebuild();
+
+        if (m_javaCompiler == null)
+        {
+            m_javaCompiler = ToolProvider.getSystemJavaCompiler();
+            if (m_javaCompiler == null)
+                throw new IOException("system java compiler not found, tools.jar is required.");
+        }
+
+        // 准备编译路径, 并创建常驻的文件管理器
+        RefreshClassPath();
 
         // 准备编译选项
-        m_compileOption = new ArrayList<>();
-        m_compileOption.add("-encoding");
-        m_compileOption.add("UTF-8");
-        m_compileOption.add("-classpath");
-        m_compileOption.add(this.m_compileClassPath);
-        m_compileOption.add("-d");
-        m_compileOption.add(this.m_compileOutputPath); // javac编译结果输出到classFilePath目录中
+        _BuildCompileOption();
+     }
+
+    /**
+     *  重新解析编译路径, 类路径(包括jar包的大小和修改时间)未变化时保留原有的文件管理器
+     * @return 是否重新创建了文件管理器
+     */
+    public synchronized boolean RefreshClassPath() throws IOException
+    {
+        if (m_runtimeIndex != null && m_classPathFiles != null)
+            m_runtimeIndex.rebuild();
+
+        List<File> classPathFiles = _ResolveClassPath();
+        String fingerprint = _ClassPathFingerprint(classPathFiles);
+        m_classPathCheckNanos = System.nanoTime();
+        if (m_classPathFiles != null && fingerprint.equals(m_classPathFingerprint))
+            return false;
+
+        if (m_classPathFiles != null)
+        {
+            LOGGER.info("脚本编译路径发生变化, 重新创建文件管理器.");
+        }
+        _CloseIdleFileManagers();
+        m_generation++;
+
+        StringBuilder builder = new StringBuilder();
+        for (File file : classPathFiles)
+        {
+            builder.append(file.getPath()).append(File.pathSeparator);
+        }
+        m_compileClassPath = builder.toString();
+
+        // 预先创建一个常驻文件管理器
+        m_classPathCheckNanos = System.nanoTime();
+        m_classPathFiles = classPathFiles;
+        m_classPathFingerprint = fingerprint;
+        m_idleFileManagers.push(_CreateFileManager());
+        return true;
+    }
+
+    /**
+     *  创建文件管理器, 类路径直接设置到文件管理器上, 不再通过-classpath选项每次重新解析
+     */
+    private StandardJavaFileManager _CreateFileManager() throws IOException
+    {
+        StandardJavaFileManager fileManager = m_javaCompiler.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+        fileManager.setLocation(StandardLocation.CLASS_PATH, m_classPathFiles);
+        return fileManager;
+    }
+
+    /**
+     *  检查类路径是否变化(jar包被替换、大小或者修改时间变化), 距离上次检查不到ClassPathCheckIntervalNanos时不检查
+     *  变化时重新创建文件管理器, 已借出的旧版本文件管理器归还时关闭
+     */
+    private synchronized void _CheckClassPath() throws IOException
+    {
+        if (m_classPathFiles == null)
+        {
+            RefreshClassPath();
+            return;
+        }
+
+        if (System.nanoTime() - m_classPathCheckNanos < ClassPathCheckIntervalNanos)
+            return;
+
+        m_classPathCheckNanos = System.nanoTime();
+        if (!_ClassPathFingerprint(_ResolveClassPath()).equals(m_classPathFingerprint))
+            RefreshClassPath();
+    }
+
+    /**
+     *  借出一个文件管理器, 没有空闲的则新建
+     */
+    private synchronized StandardJavaFileManager _BorrowFileManager() throws IOException
+    {
+        _CheckClassPath();
+
+        StandardJavaFileManager fileManager = m_idleFileManagers.poll();
+        return fileManager != null ? fileManager : _CreateFileManager();
+    }
+
+    /**
+     *  归还文件管理器, 编译路径已经变化则关闭
+     */
+    private synchronized void _ReturnFileManager(StandardJavaFileManager fileManager, int generation)
+    {
+        if (generation == m_generation && m_classPathFiles != null)
+        {
+            m_idleFileManagers.push(fileManager);
+            return;
+        }
+
+        try
+        {
+            fileManager.close();
+        }
+        catch (IOException e)
+        {
+            LOGGER.error(e.getMessage(), e);
+        }
+    }
+
+    private void _CloseIdleFileManagers()
+    {
+        StandardJavaFileManager fileManager;
+        while ((fileManager = m_idleFileManagers.poll()) != null)
+        {
+            try
+            {
+                fileManager.close();
+            }
+            catch (IOException e)
+            {
+                LOGGER.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     *  设置编译配置, 可以在运行时切换
+     * @param profile 编译配置
+     */
+    public synchronized void SetCompileProfile(CompileProfile profile)
+    {
+        m_profile = profile == null ? CompileProfile.DEFAULT : profile;
+        if (m_compileOption != null)
+            _BuildCompileOption();
+    }
+
+    public CompileProfile GetCompileProfile()
+    {
+        return m_profile;
+    }
+
+    /**
+     *  编译分析, 开启后每次编译的CompileResult.getReport()包含javac各阶段耗时、源文件耗时排名和类路径读取情况
+     *  分析会包装类路径上的每个class文件对象, 有一定开销, 只在排查编译慢时开启
+     * @param profiling 是否开启
+     */
+    public void SetProfiling(boolean profiling)
+    {
+        m_profiling = profiling;
+    }
+
+    public boolean IsProfiling()
+    {
+        return m_profiling;
+    }
+
+    /**
+     *  记录每个源文件引用了哪些类的编译期常量(CompileResult.getConstantReferences), 变化索引用来查找常量的使用者
+     * @param constantReferences 是否开启
+     */
+    void SetConstantReferences(boolean constantReferences)
+    {
+        m_constantReferences = constantReferences;
+    }
+
+    /**
+     *  关闭常驻的文件管理器
+     */
+    public synchronized void Close()
+    {
+        _CloseIdleFileManagers();
+        m_generation++;
+        m_classPathFiles = null;
+        m_classPathFingerprint = null;
+    }
+
+    private void _BuildCompileOption()
+    {
+        List<String> option = new ArrayList<>();
+        option.add("-encoding");
+        option.add("UTF-8");
+        option.addAll(m_profile.getOptions());
+        option.add("-d");
+        option.add(this.m_compileOutputPath); // javac编译结果输出到classFilePath目录中
+        m_compileOption = option;
 
         LOGGER.info("-----------------------脚本编译器选项------------------------------");
-        LOGGER.info(m_compileOption.toString());
+        LOGGER.info(m_compileOption.toString() + " classpath: " + m_compileClassPath);
         LOGGER.info("-----------------------------------------------------------------");
+    }
 
-     }
+    /**
+     *  从当前类的编译环境中解析出编译需要的路径
+     *  类加载器不是URLClassLoader(如jdk9+的应用加载器)时使用java.class.path, 应用自己的类通过运行时索引解析
+     */
+    private List<File> _ResolveClassPath()
+    {
+        List<File> files = new ArrayList<>();
+        ClassLoader classLoader = getClass().getClassLoader();
+        if (classLoader instanceof URLClassLoader)
+        {
+            for (URL url : ((URLClassLoader) classLoader).getURLs())
+            {
+                files.add(new File(url.getFile()));
+            }
+            return files;
+        }
+
+        for (String path : System.getProperty("java.class.path", "").split(File.pathSeparator))
+        {
+            if (!path.isEmpty())
+                files.add(new File(path));
+        }
+        return files;
+    }
+
+    /**
+     *  类路径指纹: 路径 + 大小 + 修改时间, 替换jar包后会重新创建文件管理器
+     */
+    private String _ClassPathFingerprint(List<File> files)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (File file : files)
+        {
+            builder.append(file.getPath()).append('|').append(file.length()).append('|').append(file.lastModified()).append(File.pathSeparator);
+        }
+        return builder.toString();
+    }
 
     /**
      *  通过字节码，编译出IScript
@@ -107,6 +420,52 @@ public class JavaScriptCompiler
         }
     }
 
+    /**
+     *  批量编译, 所有源文件放在同一个CompilationTask中编译, 互相依赖的源文件可以一起编译
+     *  任意一个源文件编译失败则整批失败, 输出路径保持不变
+     * @param sources   类全名 -> 源码字节(UTF-8)
+     * @return 编译结果, 包含每个源文件的诊断信息
+     */
+    public CompileResult BuildScripts(Map<String, byte[]> sources) throws IOException
+    {
+        return _BuildScripts(sources, true);
+    }
+
+    /**
+     *  批量编译, 编译输出只暂存在CompileResult中, 不写输出路径
+     *  多个编译任务组成一批时(并行编译、编译缓存), 整批成功后再调用PublishOutputs
+     * @param sources   类全名 -> 源码字节(UTF-8)
+     * @return 编译结果
+     */
+    CompileResult BuildScriptsStaged(Map<String, byte[]> sources) throws IOException
+    {
+        return _BuildScripts(sources, false);
+    }
+
+    private CompileResult _BuildScripts(Map<String, byte[]> sources, boolean publish) throws IOException
+    {
+        List<JavaSourceFromString> jFiles = new ArrayList<>(sources.size());
+        for (Map.Entry<String, byte[]> entry : sources.entrySet())
+        {
+            String name = entry.getKey();
+            jFiles.add(new JavaSourceFromString(name.replace('.', '/'), name, new String(entry.getValue(), "UTF-8")));
+        }
+
+        CompileResult result = new CompileResult(new ArrayList<>(sources.keySet()));
+        if (jFiles.isEmpty())
+        {
+            result.setSuccess(true);
+            return result;
+        }
+
+        _Compile(jFiles, result, publish);
+        if (!result.isSuccess())
+        {
+            LOGGER.error("批量编译脚本失败:\n" + result.getDiagnosticString());
+        }
+        return result;
+    }
+
     /**
      *   编译Java源代码
      * @param name
@@ -115,27 +474,17 @@ public class JavaScriptCompiler
      */
     private Class<?> _JavaCodeToObject(String name, String code) throws IOException
     {
-        // 准备编译器
-        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-        DiagnosticCollector<JavaFileObject> diagnosticCollector = new DiagnosticCollector<>();
-        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnosticCollector, null, null);
-
         // 准备源文件
-        List<JavaFileObject> jFiles = new ArrayList<>();
-        jFiles.add(new JavaSourceFromString(name.replace('.', '/'), code));
+        List<JavaSourceFromString> jFiles = new ArrayList<>();
+        jFiles.add(new JavaSourceFromString(name.replace('.', '/'), name, code));
 
         // 开始编译
         Class<?> result = null;
-        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnosticCollector, m_compileOption, null, jFiles);
-        if (!task.call())
+        CompileResult compileResult = new CompileResult(Collections.singletonList(name));
+        _Compile(jFiles, compileResult, true);
+        if (!compileResult.isSuccess())
         {
-            String error = "";
-            for (Diagnostic<?> diagnostic : diagnosticCollector.getDiagnostics())
-            {
-                error = error + _CompileErrorString(diagnostic);
-            }
-
-            LOGGER.error(error);
+            LOGGER.error(compileResult.getDiagnosticString());
         }
         else
         {
@@ -143,17 +492,171 @@ public class JavaScriptCompiler
             // 每次new一个classloader
 //            result = new CJavaScriptLoader().LoadScriptClass(m_compileOutputPath + "/" + name.replace('.', '/') + ".class",  name);
             try {
-                result = new JavaScriptLoader().loadClass(name);
+                result = new JavaScriptLoader(m_classIndex, compileResult.getClassBytes()).loadClass(name);
             }catch (Exception e){
                 LOGGER.error(e.getMessage().toString(),e);
             }
 
         }
 
-        fileManager.close();
         return result;
     }
 
+    /**
+     *   在一个CompilationTask中编译一批源文件
+     *   两种模式的输出都先暂存在内存中, 编译失败时直接丢弃, 输出路径中上一次的class不会被覆盖
+     * @param jFiles    源文件
+     * @param result    编译结果, 诊断信息按源文件归类
+     * @param publish   编译成功后是否立即写到输出路径
+     */
+    private void _Compile(List<JavaSourceFromString> jFiles, CompileResult result, boolean publish) throws IOException
+    {
+        // 使用常驻的编译器和文件管理器, 可以多个线程同时编译
+        int generation;
+        StandardJavaFileManager standardFileManager;
+        CompileProfiler profiler = null;
+        synchronized (this)
+        {
+            standardFileManager = _BorrowFileManager();
+            generation = m_generation;
+            if (m_profiling)
+                profiler = new CompileProfiler(m_classPathFiles);
+        }
+        JavaCompiler compiler = m_javaCompiler;
+        List<String> compileOption = m_compileOption;
+        DiagnosticCollector<JavaFileObject> diagnosticCollector = new DiagnosticCollector<>();
+
+        // 字节码先保存在内存中, 磁盘模式在整批成功后才写到输出路径
+        // 记录每个class由哪个源文件编译出来
+        final CompileResult compileResult = result;
+        JavaFileManager outputFileManager = standardFileManager;
+        RuntimeClassIndex runtimeIndex = m_runtimeIndex;
+        if (runtimeIndex != null)
+            outputFileManager = new RuntimeJavaFileManager(outputFileManager, runtimeIndex);
+        MemoryJavaFileManager memoryFileManager = new MemoryJavaFileManager(outputFileManager);
+        outputFileManager = memoryFileManager;
+        if (profiler != null)
+            outputFileManager = profiler.wrap(outputFileManager);
+
+        JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(outputFileManager)
+        {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException
+            {
+                JavaFileObject file = super.getJavaFileForOutput(location, className, kind, sibling);
+                if (kind == JavaFileObject.Kind.CLASS)
+                {
+                    String source = sibling instanceof JavaSourceFromString ? ((JavaSourceFromString) sibling).getClassName() : CompileResult.GLOBAL;
+                    compileResult.addEmitted(className, source);
+                }
+                return file;
+            }
+        };
+
+        try
+        {
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnosticCollector, compileOption, null, jFiles);
+            if (profiler != null && task instanceof JavacTask)
+                ((JavacTask) task).addTaskListener(profiler);
+            if (m_constantReferences && task instanceof JavacTask)
+                ((JavacTask) task).addTaskListener(new ConstantReferenceCollector((JavacTask) task, result));
+
+            long start = System.nanoTime();
+            boolean success = task.call();
+            if (profiler != null)
+            {
+                profiler.getReport().addTotalNanos(System.nanoTime() - start);
+                result.setReport(profiler.getReport());
+            }
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnosticCollector.getDiagnostics())
+            {
+                if (diagnostic.getKind() == Diagnostic.Kind.NOTE)
+                    continue;
+
+                JavaFileObject source = diagnostic.getSource();
+                String className = source instanceof JavaSourceFromString ? ((JavaSourceFromString) source).getClassName() : CompileResult.GLOBAL;
+                result.addDiagnostic(className, _CompileErrorString(diagnostic));
+            }
+
+            // 失败时暂存的输出直接丢弃
+            result.setSuccess(success);
+            if (success)
+            {
+                result.setClassBytes(memoryFileManager.getClassBytes());
+                if (publish)
+                    PublishOutputs(result);
+            }
+        }
+        finally
+        {
+            // 文件管理器常驻, 只刷新不关闭
+            fileManager.flush();
+            _ReturnFileManager(standardFileManager, generation);
+        }
+    }
+
+    /**
+     *  编译缓存key中与源码无关的部分: 类路径指纹 + 运行时解析的jar包指纹 + 编译选项
+     *  开启运行时类路径时javac还会从插件、分区加载器的jar包中解析符号, 这些jar包变化后缓存不能命中
+     */
+    synchronized String GetCacheSalt() throws IOException
+    {
+        _CheckClassPath();
+        RuntimeClassIndex runtimeIndex = m_runtimeIndex;
+        String runtimeFingerprint = runtimeIndex != null ? runtimeIndex.fingerprint() : "";
+        return m_classPathFingerprint + "|" + runtimeFingerprint + "|" + m_profile.getOptions();
+    }
+
+    /**
+     *  发布暂存的编译输出(暂存编译或者编译缓存中的字节码)
+     *  内存模式直接使用字节码(开启审计时写一份class文件); 磁盘模式写到输出路径并更新class索引, 之后从输出路径读取
+     * @param result 整批成功的编译结果
+     */
+    void PublishOutputs(CompileResult result) throws IOException
+    {
+        Map<String, byte[]> classBytes = result.getClassBytes();
+        if (m_memoryOutput)
+        {
+            if (m_auditOutput)
+                _WriteAuditClassFiles(classBytes);
+            return;
+        }
+
+        for (Map.Entry<String, byte[]> entry : classBytes.entrySet())
+        {
+            File file = new File(m_compileOutputPath, entry.getKey().replace('.', File.separatorChar) + ".class");
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists())
+                parent.mkdirs();
+            Files.write(file.toPath(), entry.getValue());
+            m_classIndex.put(entry.getKey());
+        }
+        result.setClassBytes(null);
+    }
+
+    /**
+     *   内存编译结果写一份到输出路径, 仅用于审计, 写失败不影响热更
+     * @param classBytes 类全名 -> 字节码
+     */
+    private void _WriteAuditClassFiles(Map<String, byte[]> classBytes)
+    {
+        for (Map.Entry<String, byte[]> entry : classBytes.entrySet())
+        {
+            File file = new File(m_compileOutputPath, entry.getKey().replace('.', File.separatorChar) + ".class");
+            try
+            {
+                File parent = file.getParentFile();
+                if (parent != null && !parent.exists())
+                    parent.mkdirs();
+                Files.write(file.toPath(), entry.getValue());
+            }
+            catch (IOException e)
+            {
+                LOGGER.warn("写审计class文件失败: " + file.getAbsolutePath(), e);
+            }
+        }
+    }
+
     /**
      *   格式化编译错误信息
      * @param diagnostic
@@ -4,17 +4,50 @@ package common.agent.script;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * Created by YongQianCheng on 2017/9/22.
  * <p>
  * JavaScriptLoader
+ * 脚本类加载器, 根据脚本输出目录的索引判断是否是脚本
+ * 不在索引中的类(JDK、第三方库等)直接交给父加载器, 不访问文件系统
  */
 public class JavaScriptLoader extends ClassLoader
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(JavaScriptLoader.class);
 
+    private final ScriptClassIndex    m_index;          // 脚本输出目录索引
+    private final Map<String, byte[]> m_memoryClasses;  // 内存编译的字节码, 优先于索引
+
+    /**
+     * @param rootPath 脚本输出目录, 创建时扫描一次建立索引
+     */
+    public JavaScriptLoader(String rootPath)
+    {
+        this(_BuildIndex(rootPath), null);
+    }
+
+    /**
+     * @param index         脚本输出目录索引
+     * @param memoryClasses 内存编译的字节码, 类全名 -> 字节码
+     */
+    JavaScriptLoader(ScriptClassIndex index, Map<String, byte[]> memoryClasses)
+    {
+        super(JavaScriptLoader.class.getClassLoader());
+        m_index = index;
+        m_memoryClasses = memoryClasses == null ? Collections.<String, byte[]>emptyMap() : memoryClasses;
+    }
+
+    private static ScriptClassIndex _BuildIndex(String rootPath)
+    {
+        ScriptClassIndex index = new ScriptClassIndex(rootPath);
+        index.rebuild();
+        return index;
+    }
+
     /**
      * 加载脚本
      *
@@ -23,39 +56,27 @@ public class JavaScriptLoader extends ClassLoader
      * @throws ClassNotFoundException
      */
     @Override
-    public Class<?> loadClass(String classname) throws ClassNotFoundException
+    protected Class<?> loadClass(String classname, boolean resolve) throws ClassNotFoundException
     {
-        try
+        // 不是脚本直接由父加载器加载
+        if (!m_memoryClasses.containsKey(classname) && !m_index.contains(classname))
         {
-            String classFilePath = "./scriptBin/" + classname.replace('.', '/') + ".class";
-
-            // 查看class目录中是否存在,即是是脚本,是脚本则由自己加载
-            File file = new File(classFilePath);
-            if (!file.isFile())
-            {
-                return super.loadClass(classname);
-            }
-
-            if (!file.canRead())
-            {
-                LOGGER.error("class文件路径指向不是一个合法的文件或者该文件当前不可读: " + classFilePath);
-                return null;
-            }
+            return super.loadClass(classname, resolve);
+        }
 
+        synchronized (getClassLoadingLock(classname))
+        {
             // 由于脚本相互显示引用,可能已经被加载了.(内部类)
             Class<?> _class = this.findLoadedClass(classname);
-            if (_class != null)
+            if (_class == null)
             {
-                return _class;
+                byte[] bytes = loadClassData(classname);
+                _class = this.defineClass(classname, bytes, 0, bytes.length);
             }
 
-            byte[] bytes = loadClassData(classname);
-            return this.defineClass(classname, bytes, 0, bytes.length);
-        }
-        catch (IOException e)
-        {
-            LOGGER.error(e.getMessage(), e);
-            throw new ClassNotFoundException(classname);
+            if (resolve)
+                resolveClass(_class);
+            return _class;
         }
     }
 
@@ -64,44 +85,28 @@ public class JavaScriptLoader extends ClassLoader
      *
      * @param name
      * @return
-     * @throws FileNotFoundException
-     * @throws IOException
      * @throws ClassNotFoundException
      */
-    private byte[] loadClassData(String name) throws FileNotFoundException, IOException, ClassNotFoundException
+    private byte[] loadClassData(String name) throws ClassNotFoundException
     {
-        int readCount = 0;
-        String classFileName = "./scriptBin" + "/" + name.replace('.', '/') + ".class";
-        FileInputStream in = null;
-        ByteArrayOutputStream buffer = null;
+        byte[] bytes = m_memoryClasses.get(name);
+        if (bytes != null)
+            return bytes;
+
         try
         {
-            in = new FileInputStream(classFileName);
-            buffer = new ByteArrayOutputStream();
-            while ((readCount = in.read()) != -1)
-            {
-                buffer.write(readCount);
-            }
-            return buffer.toByteArray();
+            bytes = m_index.read(name);
         }
-        finally
+        catch (IOException e)
         {
-            try
-            {
-                if (in != null)
-                {
-                    in.close();
-                }
-                if (buffer != null)
-                {
-                    buffer.close();
-                }
-            }
-            catch (IOException e)
-            {
-                LOGGER.error(e.getMessage(), e);
-                throw new ClassNotFoundException(name);
-            }
+            LOGGER.error(e.getMessage(), e);
+            throw new ClassNotFoundException(name, e);
+        }
+
+        if (bytes == null)
+        {
+            throw new ClassNotFoundException(name);
         }
+        return bytes;
     }
 }
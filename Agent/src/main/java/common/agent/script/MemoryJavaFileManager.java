@@ -0,0 +1,77 @@
+package common.agent.script;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * MemoryJavaFileManager
+ * <p>
+ * 编译输出保存在内存中的文件管理器, 包括'$'内部类, 不写磁盘
+ */
+class MemoryJavaFileManager extends ForwardingJavaFileManager<JavaFileManager>
+{
+    /**
+     * 保存在内存中的class文件
+     */
+    private static class MemoryClassFile extends SimpleJavaFileObject
+    {
+        private final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream();
+
+        MemoryClassFile(String className)
+        {
+            super(URI.create("mem:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream()
+        {
+            m_bytes.reset();
+            return m_bytes;
+        }
+
+        byte[] getBytes()
+        {
+            return m_bytes.toByteArray();
+        }
+    }
+
+    private final Map<String, MemoryClassFile> m_classFiles = new LinkedHashMap<>();    // 类全名 -> class文件
+
+    MemoryJavaFileManager(JavaFileManager fileManager)
+    {
+        super(fileManager);
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException
+    {
+        if (kind != JavaFileObject.Kind.CLASS)
+            return super.getJavaFileForOutput(location, className, kind, sibling);
+
+        MemoryClassFile file = new MemoryClassFile(className);
+        m_classFiles.put(className, file);
+        return file;
+    }
+
+    /**
+     * @return 类全名(内部类为Outer$Inner) -> 字节码
+     */
+    Map<String, byte[]> getClassBytes()
+    {
+        Map<String, byte[]> result = new LinkedHashMap<>(m_classFiles.size());
+        for (Map.Entry<String, MemoryClassFile> entry : m_classFiles.entrySet())
+        {
+            result.put(entry.getKey(), entry.getValue().getBytes());
+        }
+        return result;
+    }
+}
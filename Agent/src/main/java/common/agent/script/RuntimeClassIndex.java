@@ -0,0 +1,349 @@
+package common.agent.script;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RuntimeClassIndex
+ * <p>
+ * 运行中JVM已加载类的索引, 包名 -> 类, 编译脚本时从类的定义加载器解析引用的符号, 不再依赖展开成URL的类路径
+ * 索引是Instrumentation.getAllLoadedClasses()的快照, 只记录类名和加载器; class字节在javac真正读取时才通过加载器获取并缓存
+ * 查找的包不在快照中时(例如之后才加载的插件)重新获取快照, 两次获取之间至少间隔RefreshIntervalNanos;
+ * 启动类加载器的包(java.lang等)和只有脚本类的包直接返回空; 获取快照之后JVM没有加载新的类时快照是完整的, 不存在的包也直接返回空
+ * 重新获取快照时只丢弃类有变化的包的资源位置
+ * 同名类被多个加载器加载时按固定顺序选择: 系统(应用)加载器, 其父加载器, Agent的加载器, 其它加载器按类名和名字排序
+ */
+class RuntimeClassIndex
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(RuntimeClassIndex.class);
+
+    private static final String ClassSuffix = ".class";
+    private static final long   RefreshIntervalNanos = TimeUnit.SECONDS.toNanos(2);   // 包查找未命中时重新获取快照的最小间隔
+
+    // 同名类的选择顺序: 加载器优先级, 加载器类名, 加载器名字
+    private static final Comparator<Class<?>> LOADER_ORDER = Comparator
+            .comparingInt((Class<?> clazz) -> _loaderRank(clazz.getClassLoader()))
+            .thenComparing(clazz -> clazz.getClassLoader().getClass().getName())
+            .thenComparing(clazz -> String.valueOf(clazz.getClassLoader()));
+
+    /**
+     * 已加载的类
+     */
+    static class Entry
+    {
+        final String      m_className;      // 类全名
+        final ClassLoader m_loader;         // 定义加载器
+        final URI         m_uri;            // 加载器中的资源位置, 例如jar:file:/x/a.jar!/b/C.class
+
+        Entry(String className, ClassLoader loader, URI uri)
+        {
+            m_className = className;
+            m_loader = loader;
+            m_uri = uri;
+        }
+
+        String getResourceName()
+        {
+            return m_className.replace('.', '/') + ClassSuffix;
+        }
+    }
+
+    private final Instrumentation                 m_instrumentation;
+    private volatile Map<String, List<Class<?>>>  m_packages = Collections.emptyMap();   // 包名 -> 已加载的类(快照)
+    private final Map<String, List<Entry>>        m_entries = new ConcurrentHashMap<>();  // 包名 -> 能找到字节的类, 第一次列出包时生成
+    private final Map<String, byte[]>             m_bytes = new ConcurrentHashMap<>();    // 类全名 -> class字节
+    private volatile long                         m_snapshotNanos;                        // 上次获取快照的时间
+    private volatile long                         m_snapshotLoaded = -1;                  // 获取快照时JVM累计加载的类数量
+    private volatile Set<String>                  m_excludedPackages = Collections.emptySet();   // 只有启动类加载器或者脚本加载器的类的包, 不从运行时解析
+    private volatile Set<String>                  m_codeSources = Collections.emptySet();    // 快照中的类来自的jar包/目录
+    private final ClassLoadingMXBean              m_classLoading = ManagementFactory.getClassLoadingMXBean();
+
+    RuntimeClassIndex(Instrumentation instrumentation)
+    {
+        m_instrumentation = instrumentation;
+    }
+
+    /**
+     * 重新获取已加载类的快照, 清空资源位置和字节缓存(jar包可能已经替换)
+     */
+    synchronized void rebuild()
+    {
+        _snapshot();
+        m_entries.clear();
+        m_bytes.clear();
+    }
+
+    /**
+     * 包查找未命中时重新获取快照, 不清空字节缓存
+     *
+     * @return 包是否在(重新获取的)快照中
+     */
+    private boolean _refreshOnMiss(String packageName)
+    {
+        if (m_excludedPackages.contains(packageName))
+            return false;
+
+        // 获取快照之后JVM没有加载新的类, 快照是完整的, 包确实不存在
+        if (m_classLoading.getTotalLoadedClassCount() == m_snapshotLoaded)
+            return false;
+
+        synchronized (this)
+        {
+            if (m_packages.containsKey(packageName))
+                return true;        // 其它线程刚刚重新获取过
+            if (System.nanoTime() - m_snapshotNanos < RefreshIntervalNanos)
+                return false;
+
+            _snapshot();
+            return m_packages.containsKey(packageName);
+        }
+    }
+
+    private void _snapshot()
+    {
+        long start = System.nanoTime();
+        long loaded = m_classLoading.getTotalLoadedClassCount();
+        Map<String, List<Class<?>>> packages = new HashMap<>();
+        Set<String> excludedPackages = new HashSet<>();
+        Set<String> codeSources = new TreeSet<>();
+        int count = 0;
+        for (Class<?> clazz : m_instrumentation.getAllLoadedClasses())
+        {
+            String name = clazz.getName();
+            int index = name.lastIndexOf('.');
+            String packageName = index < 0 ? "" : name.substring(0, index);
+            ClassLoader loader = clazz.getClassLoader();
+            if ((loader == null || loader instanceof JavaScriptLoader) && !clazz.isArray() && !clazz.isPrimitive())
+                excludedPackages.add(packageName);
+            if (!_isVisible(clazz))
+                continue;
+
+            packages.computeIfAbsent(packageName, k -> new ArrayList<>()).add(clazz);
+            String codeSource = _codeSource(clazz);
+            if (codeSource != null)
+                codeSources.add(codeSource);
+            count++;
+        }
+        excludedPackages.removeAll(packages.keySet());
+
+        // 类没有变化的包保留已经解析的资源位置, 先替换快照再丢弃, 并发查找不会按旧快照重新解析
+        Map<String, List<Class<?>>> old = m_packages;
+        m_packages = packages;
+        for (String packageName : m_entries.keySet())
+        {
+            List<Class<?>> before = old.get(packageName);
+            List<Class<?>> after = packages.get(packageName);
+            if (before == null || after == null || before.size() != after.size() || !new HashSet<>(before).equals(new HashSet<>(after)))
+                m_entries.remove(packageName);
+        }
+
+        m_excludedPackages = excludedPackages;
+        m_codeSources = codeSources;
+        m_snapshotLoaded = loaded;
+        m_snapshotNanos = System.nanoTime();
+        LOGGER.info(String.format("运行时类索引: %d个包, %d个类, 耗时%.3fms", packages.size(), count, (System.nanoTime() - start) / 1000000.0));
+    }
+
+    /**
+     * @return 类所在的jar包/目录, 运行时生成的类没有
+     */
+    private static String _codeSource(Class<?> clazz)
+    {
+        try
+        {
+            CodeSource codeSource = clazz.getProtectionDomain().getCodeSource();
+            if (codeSource == null || codeSource.getLocation() == null)
+                return null;
+            return codeSource.getLocation().toString();
+        }
+        catch (SecurityException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * 运行时解析的jar包/目录的指纹: 位置 + 大小 + 修改时间, 编译缓存的key包含这一部分
+     * 插件jar包在重启前后变化时, 之前针对旧版本编译的缓存不再命中
+     */
+    String fingerprint()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (String location : m_codeSources)
+        {
+            builder.append(location);
+            File file = _toFile(location);
+            if (file != null)
+                builder.append('|').append(file.length()).append('|').append(file.lastModified());
+            builder.append(File.pathSeparator);
+        }
+        return builder.toString();
+    }
+
+    private static File _toFile(String location)
+    {
+        try
+        {
+            URI uri = new URI(location);
+            return "file".equals(uri.getScheme()) ? new File(uri) : null;
+        }
+        catch (URISyntaxException | IllegalArgumentException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * 启动类加载器的类由javac的平台类路径解析; 数组、lambda等运行时生成的类和脚本类不参与
+     */
+    private static boolean _isVisible(Class<?> clazz)
+    {
+        if (clazz.isArray() || clazz.isPrimitive() || clazz.isSynthetic())
+            return false;
+
+        ClassLoader loader = clazz.getClassLoader();
+        if (loader == null || loader instanceof JavaScriptLoader)
+            return false;
+
+        return clazz.getName().indexOf('/') < 0;
+    }
+
+    /**
+     * @param packageName 包名
+     * @param recurse     是否包括子包
+     * @return 包中能从加载器读取到class资源的类
+     */
+    List<Entry> list(String packageName, boolean recurse)
+    {
+        if (!m_packages.containsKey(packageName) && !_refreshOnMiss(packageName) && !recurse)
+            return Collections.emptyList();
+
+        if (!recurse)
+            return m_entries.computeIfAbsent(packageName, this::_resolve);
+
+        List<Entry> result = new ArrayList<>();
+        String prefix = packageName.isEmpty() ? "" : packageName + ".";
+        for (String name : m_packages.keySet())
+        {
+            if (name.equals(packageName) || name.startsWith(prefix))
+                result.addAll(m_entries.computeIfAbsent(name, this::_resolve));
+        }
+        return result;
+    }
+
+    /**
+     * 一个包只解析一次资源位置, 同名类被多个加载器加载时按加载器的优先级选择, 和getAllLoadedClasses()的顺序无关
+     */
+    private List<Entry> _resolve(String packageName)
+    {
+        List<Class<?>> classes = m_packages.get(packageName);
+        if (classes == null)
+            return Collections.emptyList();
+
+        List<Class<?>> sorted = new ArrayList<>(classes);
+        sorted.sort(LOADER_ORDER);
+
+        Map<String, Entry> entries = new TreeMap<>();
+        for (Class<?> clazz : sorted)
+        {
+            String name = clazz.getName();
+            if (entries.containsKey(name))
+                continue;
+
+            URL url = clazz.getClassLoader().getResource(name.replace('.', '/') + ClassSuffix);
+            if (url == null)
+                continue;       // 代理等运行时生成的类没有class资源
+
+            entries.put(name, new Entry(name, clazz.getClassLoader(), _toUri(url, name)));
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * 加载器的优先级, 数值小的优先
+     */
+    private static int _loaderRank(ClassLoader loader)
+    {
+        ClassLoader system = ClassLoader.getSystemClassLoader();
+        if (loader == system)
+            return 0;
+
+        for (ClassLoader parent = system.getParent(); parent != null; parent = parent.getParent())
+        {
+            if (loader == parent)
+                return 1;
+        }
+        return loader == RuntimeClassIndex.class.getClassLoader() ? 2 : 3;
+    }
+
+    private static URI _toUri(URL url, String className)
+    {
+        try
+        {
+            return url.toURI();
+        }
+        catch (URISyntaxException e)
+        {
+            return URI.create("runtime:///" + className.replace('.', '/') + ClassSuffix);
+        }
+    }
+
+    /**
+     * 读取class字节, 第一次读取后缓存
+     */
+    byte[] getBytes(Entry entry) throws IOException
+    {
+        byte[] bytes = m_bytes.get(entry.m_className);
+        if (bytes != null)
+            return bytes;
+
+        try (InputStream in = entry.m_loader.getResourceAsStream(entry.getResourceName()))
+        {
+            if (in == null)
+                throw new IOException("class resource not found: " + entry.m_className + " in " + entry.m_loader);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+            {
+                out.write(buffer, 0, n);
+            }
+            bytes = out.toByteArray();
+        }
+        m_bytes.put(entry.m_className, bytes);
+        return bytes;
+    }
+
+    /**
+     * @return 快照中的包数量
+     */
+    int size()
+    {
+        return m_packages.size();
+    }
+}
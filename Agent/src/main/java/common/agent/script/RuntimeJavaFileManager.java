@@ -0,0 +1,102 @@
+package common.agent.script;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * RuntimeJavaFileManager
+ * <p>
+ * 类路径上的class优先从运行中JVM已加载的类解析(RuntimeClassIndex), 支持非URLClassLoader的应用加载器(如fat jar、容器)
+ * 快照中没有的类(还没有加载过)仍然由底层文件管理器从类路径中查找
+ */
+class RuntimeJavaFileManager extends ForwardingJavaFileManager<JavaFileManager>
+{
+    /**
+     * 已加载类对应的class文件, 打开时才读取字节
+     */
+    private static class RuntimeClassFile extends SimpleJavaFileObject
+    {
+        private final RuntimeClassIndex       m_index;
+        private final RuntimeClassIndex.Entry m_entry;
+
+        RuntimeClassFile(RuntimeClassIndex index, RuntimeClassIndex.Entry entry)
+        {
+            super(entry.m_uri, Kind.CLASS);
+            m_index = index;
+            m_entry = entry;
+        }
+
+        String getClassName()
+        {
+            return m_entry.m_className;
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException
+        {
+            return new ByteArrayInputStream(m_index.getBytes(m_entry));
+        }
+    }
+
+    private final RuntimeClassIndex m_index;
+
+    RuntimeJavaFileManager(JavaFileManager fileManager, RuntimeClassIndex index)
+    {
+        super(fileManager);
+        m_index = index;
+    }
+
+    @Override
+    public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException
+    {
+        Iterable<JavaFileObject> files = super.list(location, packageName, kinds, recurse);
+        if (location != StandardLocation.CLASS_PATH || !kinds.contains(JavaFileObject.Kind.CLASS))
+            return files;
+
+        List<RuntimeClassIndex.Entry> entries = m_index.list(packageName, recurse);
+        if (entries.isEmpty())
+            return files;
+
+        // 已加载的类在前, javac使用先列出的class文件
+        List<JavaFileObject> result = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (RuntimeClassIndex.Entry entry : entries)
+        {
+            result.add(new RuntimeClassFile(m_index, entry));
+            names.add(entry.m_className);
+        }
+        for (JavaFileObject file : files)
+        {
+            if (file.getKind() != JavaFileObject.Kind.CLASS || !names.contains(super.inferBinaryName(location, file)))
+                result.add(file);
+        }
+        return result;
+    }
+
+    @Override
+    public String inferBinaryName(Location location, JavaFileObject file)
+    {
+        if (file instanceof RuntimeClassFile)
+            return ((RuntimeClassFile) file).getClassName();
+        return super.inferBinaryName(location, file);
+    }
+
+    @Override
+    public boolean isSameFile(FileObject a, FileObject b)
+    {
+        if (a instanceof RuntimeClassFile || b instanceof RuntimeClassFile)
+            return a.equals(b);
+        return super.isSameFile(a, b);
+    }
+}
@@ -0,0 +1,81 @@
+package common.agent.script;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ScriptClassIndex
+ * <p>
+ * 脚本输出目录的class索引, 类全名 -> class文件
+ * 索引只在初始化时扫描一次目录, 之后由编译器在每次编译后增量更新, 加载时不再对每个类做文件stat
+ */
+class ScriptClassIndex
+{
+    private static final String ClassSuffix = ".class";
+
+    private final File                   m_root;                                    // 脚本输出目录
+    private final Map<String, File>      m_classes = new ConcurrentHashMap<>();     // 类全名 -> class文件
+
+    ScriptClassIndex(String root)
+    {
+        m_root = new File(root);
+    }
+
+    /**
+     * 重新扫描输出目录
+     */
+    void rebuild()
+    {
+        m_classes.clear();
+        _scan(m_root, "");
+    }
+
+    private void _scan(File dir, String pkg)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (file.isDirectory())
+                _scan(file, pkg + name + ".");
+            else if (name.endsWith(ClassSuffix))
+                m_classes.put(pkg + name.substring(0, name.length() - ClassSuffix.length()), file);
+        }
+    }
+
+    /**
+     * 记录编译输出的class
+     *
+     * @param className 类全名
+     */
+    void put(String className)
+    {
+        m_classes.put(className, new File(m_root, className.replace('.', File.separatorChar) + ClassSuffix));
+    }
+
+    boolean contains(String className)
+    {
+        return m_classes.containsKey(className);
+    }
+
+    /**
+     * 一次性读取class字节码
+     *
+     * @param className 类全名
+     * @return 字节码, 不在索引中返回null
+     */
+    byte[] read(String className) throws IOException
+    {
+        File file = m_classes.get(className);
+        if (file == null)
+            return null;
+
+        return Files.readAllBytes(file.toPath());
+    }
+}
@@ -8,7 +8,18 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Created by YongQianCheng on 2017/9/22.
@@ -45,15 +56,174 @@ public class ScriptManager
 
     private String m_javaFilePath;                                   // Java脚本源文件路径
     private JavaScriptCompiler m_compiler;                           // Java脚本编译器
+    private boolean m_memoryOutput;                                  // 编译结果保存在内存中
+    private boolean m_auditOutput;                                   // 内存编译时是否同时写class文件用于审计
+    private CompileProfile m_profile = CompileProfile.DEFAULT;       // 编译配置
+    private boolean m_profiling;                                     // 编译分析
+    private boolean m_useChangeIndex;                                // 是否使用变化索引
+    private ChangeIndex m_changeIndex;                               // 变化索引, 只编译和替换发生变化的脚本
+    private int m_parallelism = 1;                                   // 并行编译的线程数上限
+    private ForkJoinPool m_compilePool;                              // 并行编译线程池
+    private int m_compileCacheSize;                                  // 编译缓存最多保留的编译单元数, 0表示不使用
+    private CompileCache m_compileCache;                             // 持久化编译缓存, 重启后没有变化的编译单元不需要再编译
+    private Instrumentation m_runtimeClassPath;                      // 从运行时已加载的类解析编译符号, 为空时只使用类路径
+
+    /**
+     * 设置编译输出方式, 需要在Initialize之前调用
+     *
+     * @param memoryOutput 字节码保存在内存中, 不写磁盘
+     * @param auditOutput 内存编译时同时写一份class文件到输出路径, 仅用于审计
+     */
+    public void SetMemoryOutput(boolean memoryOutput, boolean auditOutput)
+    {
+        m_memoryOutput = memoryOutput;
+        m_auditOutput = auditOutput;
+        if (m_compiler != null)
+            m_compiler.SetMemoryOutput(memoryOutput, auditOutput);
+    }
+
+    public boolean IsMemoryOutput()
+    {
+        return m_memoryOutput;
+    }
+
+    /**
+     * 是否使用变化索引, 需要在Initialize之前调用
+     * 开启后记录每个源文件和编译出的class的hash, 只编译和替换发生变化的部分
+     *
+     * @param useChangeIndex 是否使用
+     */
+    public void SetChangeIndex(boolean useChangeIndex)
+    {
+        m_useChangeIndex = useChangeIndex;
+    }
+
+    public boolean IsChangeIndex()
+    {
+        return m_changeIndex != null;
+    }
+
+    /**
+     * 是否使用持久化编译缓存, 需要在Initialize之前调用
+     * 缓存以编译单元为粒度, key包含源码hash、类路径指纹、JDK版本和编译选项, 任意一项变化都不会命中旧的缓存
+     *
+     * @param maxEntries 最多保留的编译单元数, 0表示不使用
+     */
+    public void SetCompileCache(int maxEntries)
+    {
+        m_compileCacheSize = Math.max(0, maxEntries);
+    }
+
+    public boolean IsCompileCache()
+    {
+        return m_compileCache != null;
+    }
+
+    /**
+     * 编译分析, 开启后编译结果包含CompileReport(javac各阶段耗时、最慢的源文件、类路径实际读取情况), 可以在运行时切换
+     *
+     * @param profiling 是否开启
+     */
+    public void SetCompileProfiling(boolean profiling)
+    {
+        m_profiling = profiling;
+        if (m_compiler != null)
+            m_compiler.SetProfiling(profiling);
+    }
+
+    public boolean IsCompileProfiling()
+    {
+        return m_profiling;
+    }
+
+    /**
+     * 从运行中JVM已加载的类解析编译符号, 而不是只依赖展开成URL的类路径, 需要在Initialize之前调用
+     * class字节在javac读取时才从类的定义加载器获取, 快照在RefreshClassPath时更新
+     *
+     * @param instrumentation 为空时关闭
+     */
+    public void SetRuntimeClassPath(Instrumentation instrumentation)
+    {
+        m_runtimeClassPath = instrumentation;
+        if (m_compiler != null)
+            m_compiler.SetRuntimeClassPath(instrumentation);
+    }
+
+    public boolean IsRuntimeClassPath()
+    {
+        return m_runtimeClassPath != null;
+    }
+
+    /**
+     * 设置编译配置(调试信息/注解处理), 可以在运行时切换
+     *
+     * @param profile 编译配置
+     */
+    public void SetCompileProfile(CompileProfile profile)
+    {
+        m_profile = profile == null ? CompileProfile.DEFAULT : profile;
+        if (m_compiler != null)
+            m_compiler.SetCompileProfile(m_profile);
+    }
+
+    /**
+     * 设置并行编译的线程数上限, 1表示不并行
+     * 一批脚本会拆分成互相独立的编译单元(按包和源码引用关系), 在线程池中并行编译后合并成一个结果
+     *
+     * @param parallelism 线程数上限, 避免编译占用游戏逻辑线程的cpu
+     */
+    public synchronized void SetCompileParallelism(int parallelism)
+    {
+        parallelism = Math.max(1, parallelism);
+        if (parallelism == m_parallelism)
+            return;
+
+        m_parallelism = parallelism;
+        if (m_compilePool != null)
+        {
+            m_compilePool.shutdown();
+            m_compilePool = null;
+        }
+    }
+
+    /**
+     * 类路径发生变化(如替换了jar包)后调用, 重新创建编译器的文件管理器
+     *
+     * @return 是否重新创建
+     * @throws Exception
+     */
+    public boolean RefreshClassPath() throws Exception
+    {
+        return m_compiler != null && m_compiler.RefreshClassPath();
+    }
+
+    /**
+     * 释放常驻编译器持有的jar包
+     */
+    public void Close()
+    {
+        if (m_compiler != null)
+            m_compiler.Close();
+
+        synchronized (this)
+        {
+            if (m_compilePool != null)
+            {
+                m_compilePool.shutdown();
+                m_compilePool = null;
+            }
+        }
+    }
 
     /**
      * 初始化java脚本路径
      *
      * @param javaFilePath java文件路径
      * @param javaClassPath 编译后的class文件路径
+     * @return 所有脚本的编译结果
      * @throws Exception
      */
-    public void Initialize(String javaFilePath, String javaClassPath) throws Exception
+    public CompileResult Initialize(String javaFilePath, String javaClassPath) throws Exception
     {
         m_javaFilePath = javaFilePath;
         // Java脚本编译器初始化
@@ -62,38 +232,533 @@ public class ScriptManager
             m_compiler = new JavaScriptCompiler();
         }
 
-        m_compiler.InitClassPath(javaClassPath);
+        m_compiler.SetMemoryOutput(m_memoryOutput, m_auditOutput);
+        m_compiler.SetCompileProfile(m_profile);
+        m_compiler.SetProfiling(m_profiling);
+        m_compiler.SetRuntimeClassPath(m_runtimeClassPath);
 
+        // 变化索引放在脚本目录的上一级(agent/agentIndex), 磁盘模式下保留上一次的编译结果
+        m_changeIndex = null;
+        if (m_useChangeIndex)
+        {
+            File indexFile = new File(new File(javaFilePath).getAbsoluteFile().getParentFile(), "agentIndex");
+            m_changeIndex = new ChangeIndex(indexFile);
+            m_changeIndex.load();
+        }
+        // 变化索引需要编译期常量的使用者, 编译时记录常量引用
+        m_compiler.SetConstantReferences(m_changeIndex != null);
+        m_compiler.InitClassPath(javaClassPath, m_changeIndex == null || m_memoryOutput);
+
+        // 编译缓存放在agent/agentCache
+        m_compileCache = null;
+        if (m_compileCacheSize > 0)
+        {
+            m_compileCache = new CompileCache(new File(new File(javaFilePath).getAbsoluteFile().getParentFile(), "agentCache"), m_compileCacheSize);
+        }
 
         // 先加载一次所有脚本
-        LoadScript();
+        CompileResult result = LoadScript();
+        if (m_compileCache != null)
+            m_compileCache.prune();
+        return result;
     }
 
     /**
      * 加载所有脚本
      *
+     * @return 编译结果
      * @throws Exception
      */
-    public void LoadScript() throws Exception
+    public CompileResult LoadScript() throws Exception
     {
         ArrayList<String> allJavaFile = _GetAllJavaFiles(m_javaFilePath);
         if (allJavaFile == null || allJavaFile.isEmpty())
         {
             LOGGER.warn("指定的脚本路径[" + m_javaFilePath + "]下没有 '*.java' 文件!");
-            return;
+            CompileResult empty = new CompileResult(new ArrayList<String>());
+            empty.setSuccess(true);
+            return empty;
         }
 
-        for (int a = 0; a < allJavaFile.size(); ++a)
+        // 磁盘模式下, 没有变化且上一次编译结果还在的脚本不需要重新编译
+        CompileResult result;
+        if (m_changeIndex != null && !m_memoryOutput)
+        {
+            result = _LoadChangedScripts(allJavaFile, true);
+            _PruneOutput(allJavaFile, result);
+        }
+        else
         {
-            LoadScript(allJavaFile.get(a));
+            result = LoadScripts(allJavaFile);
+        }
+
+        if (!result.isSuccess())
+        {
+            throw new Exception("编译脚本失败: " + result.getDiagnostics().keySet());
         }
 
         LOGGER.info("load script finish.");
+        return result;
+    }
+
+    /**
+     * 批量加载脚本, 所有脚本在同一个编译任务中编译, 任意一个失败则整批失败
+     *
+     * @param names 类全名列表
+     * @return 编译结果, 包含每个文件的诊断信息
+     * @throws Exception 读取源文件失败
+     */
+    public CompileResult LoadScripts(List<String> names) throws Exception
+    {
+        long start = System.nanoTime();
+        long sourceBytes = 0;
+        Map<String, byte[]> sources = new LinkedHashMap<>();
+        Map<String, ChangeIndex.SourceStamp> stamps = new LinkedHashMap<>();
+        for (String name : names)
+        {
+            File file = _GetJavaSourceFile(name);
+            long lastModified = file.lastModified();
+            byte[] bytes = _ReadJavaSourceFile(name);
+            if (bytes == null || bytes.length == 0)
+            {
+                throw new Exception("读取java文件异常：" + name);
+            }
+            sources.put(name, bytes);
+            sourceBytes += bytes.length;
+            if (m_changeIndex != null)
+                stamps.put(name, new ChangeIndex.SourceStamp(bytes.length, lastModified, ChangeIndex.hash(bytes)));
+        }
+
+        CompileResult result = _BuildScripts(sources);
+        for (Map.Entry<String, ChangeIndex.SourceStamp> entry : stamps.entrySet())
+        {
+            result.putSourceStamp(entry.getKey(), entry.getValue());
+        }
+        result.setSourceBytes(sourceBytes);
+        result.setCompileNanos(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * 编译一批脚本, 整批成功后才把编译输出写到输出路径(磁盘模式)
+     * 任意一个单元失败则整批失败, 输出路径中上一次的class保持不变, 与JVM中仍然生效的版本一致
+     *
+     * @param sources 类全名 -> 源码字节
+     * @return 合并后的编译结果
+     */
+    private CompileResult _BuildScripts(Map<String, byte[]> sources) throws Exception
+    {
+        CompileResult result = _BuildStaged(sources);
+        if (result.isSuccess())
+            m_compiler.PublishOutputs(result);
+        return result;
+    }
+
+    /**
+     * 编译一批脚本, 先按编译单元查询编译缓存, 只有未命中的单元交给javac编译, 编译成功后写入缓存
+     * 编译输出暂存在编译结果中, 不写输出路径
+     *
+     * @param sources 类全名 -> 源码字节
+     * @return 合并后的编译结果
+     */
+    private CompileResult _BuildStaged(Map<String, byte[]> sources) throws Exception
+    {
+        CompileCache cache = m_compileCache;
+        if (cache == null || sources.isEmpty())
+            return _CompileScripts(sources);
+
+        String salt = m_compiler.GetCacheSalt();
+        CompileResult merged = new CompileResult(new ArrayList<String>());
+        merged.setSuccess(true);
+        List<CompileResult> hits = new ArrayList<>();
+        Map<String, Map<String, byte[]>> misses = new LinkedHashMap<>();
+        Map<String, byte[]> missSources = new LinkedHashMap<>();
+        for (Map<String, byte[]> unit : CompileUnits.split(sources))
+        {
+            String key = CompileCache.key(unit, salt);
+            CompileResult cached = cache.load(key, new ArrayList<>(unit.keySet()));
+            if (cached != null)
+            {
+                hits.add(cached);
+                merged.merge(cached);
+            }
+            else
+            {
+                misses.put(key, unit);
+                missSources.putAll(unit);
+            }
+        }
+
+        if (!missSources.isEmpty())
+        {
+            CompileResult compiled = _CompileScripts(missSources);
+            merged.merge(compiled);
+            if (compiled.isSuccess())
+            {
+                Map<String, byte[]> classBytes = compiled.getClassBytes();
+                for (Map.Entry<String, Map<String, byte[]>> entry : misses.entrySet())
+                {
+                    Map<String, String> emitted = new LinkedHashMap<>();
+                    for (Map.Entry<String, String> classEntry : compiled.getEmittedClasses().entrySet())
+                    {
+                        if (entry.getValue().containsKey(classEntry.getValue()))
+                            emitted.put(classEntry.getKey(), classEntry.getValue());
+                    }
+                    cache.store(entry.getKey(), emitted, classBytes);
+                }
+            }
+        }
+
+        LOGGER.info(String.format("编译缓存: %d 个编译单元命中, %d 个编译单元需要编译", hits.size(), misses.size()));
+        return merged;
+    }
+
+    /**
+     * 使用javac编译一批脚本, 开启并行编译时拆分成独立的编译单元并行编译, 任意一个单元失败则整批失败
+     * 编译输出暂存在编译结果中, 由调用者在整批成功后发布
+     *
+     * @param sources 类全名 -> 源码字节
+     * @return 合并后的编译结果
+     */
+    private CompileResult _CompileScripts(Map<String, byte[]> sources) throws Exception
+    {
+        if (m_parallelism <= 1 || sources.size() <= 1)
+            return m_compiler.BuildScriptsStaged(sources);
+
+        List<Map<String, byte[]>> units = CompileUnits.split(sources);
+        if (units.size() <= 1)
+            return m_compiler.BuildScriptsStaged(sources);
+
+        ForkJoinPool pool = _GetCompilePool();
+        List<ForkJoinTask<CompileResult>> tasks = new ArrayList<>(units.size());
+        for (final Map<String, byte[]> unit : units)
+        {
+            tasks.add(pool.submit(() -> m_compiler.BuildScriptsStaged(unit)));
+        }
+
+        CompileResult merged = new CompileResult(new ArrayList<String>());
+        merged.setSuccess(true);
+        for (ForkJoinTask<CompileResult> task : tasks)
+        {
+            merged.merge(task.get());
+        }
+
+        LOGGER.info(String.format("并行编译 %d 个脚本, 拆分为 %d 个编译单元, 线程数上限 %d", sources.size(), units.size(), m_parallelism));
+        return merged;
+    }
+
+    private synchronized ForkJoinPool _GetCompilePool()
+    {
+        if (m_compilePool == null)
+            m_compilePool = new ForkJoinPool(m_parallelism);
+        return m_compilePool;
+    }
+
+    /**
+     * 批量加载发生变化的脚本, 没有变化的脚本跳过编译, 记录在CompileResult.getUnchanged()中
+     * 未开启变化索引时等同于LoadScripts
+     * 编译出的class替换成功后需要调用CommitIndex更新索引
+     *
+     * @param names 类全名列表
+     * @return 编译结果
+     * @throws Exception 读取源文件失败
+     */
+    public CompileResult LoadChangedScripts(List<String> names) throws Exception
+    {
+        return _LoadChangedScripts(names, false);
+    }
+
+    /**
+     * 批量加载发生变化的脚本
+     *
+     * @param names         类全名列表
+     * @param verifyOutput  是否要求没有变化的脚本上一次的class文件仍然在输出路径中(重启时磁盘模式需要从磁盘替换)
+     * @return 编译结果
+     * @throws Exception 读取源文件失败
+     */
+    private CompileResult _LoadChangedScripts(List<String> names, boolean verifyOutput) throws Exception
+    {
+        if (m_changeIndex == null)
+            return LoadScripts(names);
+
+        List<String> changed = new ArrayList<>();
+        List<String> unchanged = new ArrayList<>();
+        for (String name : names)
+        {
+            File file = _GetJavaSourceFile(name);
+            if (!file.isFile())
+            {
+                changed.add(name);
+                continue;
+            }
+
+            ChangeIndex.SourceStamp stamp = m_changeIndex.checkSource(name, file);
+            if (stamp == null && (!verifyOutput || _IsOutputPresent(name)))
+                unchanged.add(name);
+            else
+                changed.add(name);
+        }
+
+        // 常量池中引用了变化脚本的脚本一起重新编译
+        List<String> affected = new ArrayList<>(changed);
+        Set<String> dependents = _ExistingSources(m_changeIndex.getDependents(changed), affected);
+        affected.addAll(dependents);
+
+        CompileResult result = LoadScripts(affected);
+
+        // 编译期常量被内联到使用者中, 常量池里没有引用; 常量变化时按编译时从语法树记录的常量引用查找使用者, 直到没有新的脚本
+        while (result.isSuccess())
+        {
+            Set<String> constantClasses = _ConstantsChangedClasses(result);
+            if (constantClasses.isEmpty())
+                break;
+
+            Set<String> users = _ExistingSources(m_changeIndex.getConstantUsers(constantClasses), affected);
+            if (users.isEmpty())
+                break;
+
+            LOGGER.info("编译期常量发生变化: " + constantClasses + ", 重新编译使用它们的脚本: " + users);
+            dependents.addAll(users);
+            affected.addAll(users);
+            result = LoadScripts(affected);
+        }
+
+        unchanged.removeAll(affected);
+        for (String name : unchanged)
+        {
+            result.addUnchanged(name);
+        }
+        LOGGER.info(String.format("变化索引: %d 个脚本发生变化, %d 个依赖它们的脚本重新编译, %d 个脚本没有变化", changed.size(), dependents.size(), unchanged.size()));
+        return result;
+    }
+
+    /**
+     * @return names中源文件存在且不在exclude中的脚本
+     */
+    private Set<String> _ExistingSources(Collection<String> names, Collection<String> exclude)
+    {
+        Set<String> result = new TreeSet<>();
+        for (String name : names)
+        {
+            if (!exclude.contains(name) && _GetJavaSourceFile(name).isFile())
+                result.add(name);
+        }
+        return result;
+    }
+
+    /**
+     * @return 编译期常量和上一次记录不同的class的类全名
+     */
+    private Set<String> _ConstantsChangedClasses(CompileResult result) throws IOException
+    {
+        Set<String> names = new TreeSet<>();
+        for (Map.Entry<String, byte[]> entry : _GetClassBytes(result).entrySet())
+        {
+            if (m_changeIndex.isConstantsChanged(entry.getKey(), entry.getValue()))
+                names.add(entry.getKey());
+        }
+        return names;
+    }
+
+    /**
+     * 本次编译出的class中, 和上一次替换的字节码不同的class
+     * 磁盘模式从输出路径读取字节码, 内存模式直接使用编译结果
+     *
+     * @param result 编译结果
+     * @return 类全名 -> 字节码, 未开启变化索引时返回全部编译结果
+     * @throws IOException 读取class文件失败
+     */
+    public Map<String, byte[]> GetChangedClasses(CompileResult result) throws IOException
+    {
+        Map<String, byte[]> classBytes = _GetClassBytes(result);
+        if (m_changeIndex == null)
+            return classBytes;
+
+        Map<String, byte[]> changed = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : classBytes.entrySet())
+        {
+            if (m_changeIndex.isClassChanged(entry.getKey(), entry.getValue()))
+                changed.put(entry.getKey(), entry.getValue());
+        }
+        return changed;
+    }
+
+    /**
+     * class替换成功后更新变化索引并持久化
+     *
+     * @param result 编译结果
+     * @throws IOException 读取class文件失败
+     */
+    public void CommitIndex(CompileResult result) throws IOException
+    {
+        if (m_changeIndex == null || !result.isSuccess())
+            return;
+
+        Map<String, byte[]> classBytes = _GetClassBytes(result);
+        for (Map.Entry<String, ChangeIndex.SourceStamp> entry : result.getSourceStamps().entrySet())
+        {
+            String name = entry.getKey();
+            Map<String, byte[]> emitted = new LinkedHashMap<>();
+            for (Map.Entry<String, String> classEntry : result.getEmittedClasses().entrySet())
+            {
+                byte[] bytes = classBytes.get(classEntry.getKey());
+                if (classEntry.getValue().equals(name) && bytes != null)
+                    emitted.put(classEntry.getKey(), bytes);
+            }
+            m_changeIndex.update(name, entry.getValue(), emitted, result.getConstantReferences(name));
+        }
+        m_changeIndex.save();
+    }
+
+    /**
+     * 编译出的字节码, 磁盘模式从输出路径读取
+     */
+    private Map<String, byte[]> _GetClassBytes(CompileResult result) throws IOException
+    {
+        if (m_memoryOutput)
+            return result.getClassBytes();
+
+        Map<String, byte[]> classBytes = new LinkedHashMap<>();
+        for (String className : result.getEmittedClasses().keySet())
+        {
+            File file = _GetClassFile(className);
+            if (file.isFile())
+                classBytes.put(className, Files.readAllBytes(file.toPath()));
+        }
+        return classBytes;
+    }
+
+    /**
+     * 脚本上一次编译出的class文件是否都还在输出路径中, 且内容与索引一致
+     */
+    private boolean _IsOutputPresent(String name) throws IOException
+    {
+        Map<String, ChangeIndex.ClassStamp> classes = m_changeIndex.getClasses(name);
+        if (classes.isEmpty())
+            return false;
+
+        for (Map.Entry<String, ChangeIndex.ClassStamp> entry : classes.entrySet())
+        {
+            File file = _GetClassFile(entry.getKey());
+            if (!file.isFile() || file.length() != entry.getValue().m_size)
+                return false;
+
+            if (!entry.getValue().m_hash.equals(ChangeIndex.hash(Files.readAllBytes(file.toPath()))))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 删除已经不存在的脚本的索引记录, 以及输出路径中不属于任何脚本的class文件
+     *
+     * @param names  当前所有脚本
+     * @param result 本次编译结果
+     */
+    private void _PruneOutput(List<String> names, CompileResult result)
+    {
+        Set<String> sources = new HashSet<>(names);
+        Set<String> keep = new HashSet<>(result.getEmittedClasses().keySet());
+        for (Map.Entry<String, ChangeIndex.ClassStamp> entry : m_changeIndex.getAllClasses().entrySet())
+        {
+            String source = entry.getValue().m_source;
+            if (!sources.contains(source))
+                m_changeIndex.remove(source);
+            else
+                keep.add(entry.getKey());
+        }
+
+        File root = new File(m_compiler.GetOutputPath());
+        _PruneOutput(root, "", keep);
+        m_compiler.RebuildClassIndex();
+    }
+
+    /**
+     * 整个目录编译成功并写到输出路径后, 删除输出路径中该目录下不是本次编译出的class(脚本已经删除、内部类已经去掉)
+     * 编译失败时不调用, 输出路径保持上一次成功的结果, 重启后仍然能加载
+     *
+     * @param directory 相对输出路径的目录(logic/team)
+     * @param result    该目录的编译结果
+     */
+    public void PruneOutputDirectory(String directory, CompileResult result)
+    {
+        directory = directory.replace('\\', '/');
+        while (directory.endsWith("/"))
+            directory = directory.substring(0, directory.length() - 1);
+
+        String pkg = directory.isEmpty() ? "" : directory.replace('/', '.') + ".";
+        _PruneOutput(new File(m_compiler.GetOutputPath(), directory), pkg, new HashSet<>(result.getEmittedClasses().keySet()));
+        m_compiler.RebuildClassIndex();
+    }
+
+    private void _PruneOutput(File dir, String pkg, Set<String> keep)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (file.isDirectory())
+            {
+                _PruneOutput(file, pkg + name + ".", keep);
+            }
+            else if (name.endsWith(".class") && !keep.contains(pkg + name.substring(0, name.length() - ".class".length())))
+            {
+                file.delete();
+            }
+        }
+    }
+
+    private File _GetClassFile(String className)
+    {
+        return new File(m_compiler.GetOutputPath(), className.replace('.', File.separatorChar) + ".class");
+    }
+
+    private File _GetJavaSourceFile(String name)
+    {
+        return new File(m_javaFilePath + "/" + _ParseJavaFilePathByClassname(name));
+    }
+
+    /**
+     * 批量加载脚本目录下的所有脚本
+     *
+     * @param directory 相对java脚本源文件路径的目录(logic/team)
+     * @return 编译结果, 目录下没有脚本时返回null
+     * @throws Exception 读取源文件失败
+     */
+    public CompileResult LoadScriptDirectory(String directory) throws Exception
+    {
+        directory = directory.replace('\\', '/');
+        while (directory.endsWith("/"))
+            directory = directory.substring(0, directory.length() - 1);
+
+        ArrayList<String> names = new ArrayList<>();
+        File file = new File(m_javaFilePath + "/" + directory);
+        if (directory.isEmpty())
+        {
+            ArrayList<String> all = _GetAllJavaFiles(m_javaFilePath);
+            if (all != null)
+                names.addAll(all);
+        }
+        else if (file.isDirectory())
+        {
+            _ProcessFile(file, directory.replace('/', '.'), names);
+        }
+
+        if (names.isEmpty())
+        {
+            LOGGER.warn("指定的脚本路径[" + file.getAbsolutePath() + "]下没有 '*.java' 文件!");
+            return null;
+        }
 
+        return LoadScripts(names);
     }
 
     /**
-     * 通过类名加载一个脚本，如果脚本已经存在且未发生改变，不会重新加载。否则会被覆盖，如果不存在，则会新加一个.
+     * 通过类名加载一个脚本，总是重新编译，如果存在则会被覆盖，如果不存在，则会新加一个.
+     * 需要跳过没有变化的脚本时使用LoadChangedScripts
      *
      * @param name
      * @return
@@ -0,0 +1,151 @@
+package common.agent.agent;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * PatchBundle解析正常的包, 拒绝损坏或者伪造的包(只抛出IOException)
+ */
+public class PatchBundleTest
+{
+    private static final byte[] TeamBytes = "team class".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsGoodBundle() throws IOException
+    {
+        PatchBundle bundle = PatchBundle.read(_bundle());
+        assertEquals("test-patch", bundle.getPatchId());
+        assertEquals(1, bundle.getClasses().size());
+        assertArrayEquals(TeamBytes, bundle.getClasses().get("logic.team.CTeam"));
+    }
+
+    @Test
+    public void rejectsTruncatedBundle() throws IOException
+    {
+        byte[] bytes = _bundle();
+        for (int length : new int[] { 0, 4, 21, bytes.length / 2, bytes.length - 1 })
+        {
+            _assertRejected(Arrays.copyOf(bytes, length));
+        }
+    }
+
+    @Test
+    public void rejectsHugeDeclaredSize() throws IOException
+    {
+        for (int size : new int[] { 0x80000000, 0x7FFFFFF0, PatchBundle.MaxUncompressedSize + 1 })
+        {
+            byte[] bytes = _bundle();
+            _buffer(bytes).putInt(_classEntry(bytes) + 24, size);
+            _assertRejected(bytes);
+        }
+    }
+
+    @Test
+    public void rejectsBadOffsets() throws IOException
+    {
+        byte[] bytes = _bundle();
+        _buffer(bytes).putInt(_classEntry(bytes) + 42, bytes.length - 10);
+        _assertRejected(bytes);
+
+        bytes = _bundle();
+        _buffer(bytes).putInt(_classEntry(bytes) + 20, 0x7FFFFFF0);
+        _assertRejected(bytes);
+
+        bytes = _bundle();
+        _buffer(bytes).putInt(_end(bytes) + 16, bytes.length + 100);
+        _assertRejected(bytes);
+    }
+
+    @Test
+    public void rejectsDigestMismatch() throws IOException
+    {
+        byte[] bytes = _bundle();
+        ByteBuffer buffer = _buffer(bytes);
+        int entry = _classEntry(bytes);
+        int local = buffer.getInt(entry + 42);
+        int data = local + 30 + (buffer.getShort(local + 26) & 0xFFFF) + (buffer.getShort(local + 28) & 0xFFFF);
+        // 改成存储方式, 内容换成等长的其它字节
+        byte[] other = "TEAM CLASS".getBytes(StandardCharsets.UTF_8);
+        buffer.putShort(entry + 10, (short) 0);
+        buffer.putInt(entry + 20, other.length);
+        System.arraycopy(other, 0, bytes, data, other.length);
+        _assertRejected(bytes);
+    }
+
+    private byte[] _bundle() throws IOException
+    {
+        File classes = folder.newFolder();
+        File dir = new File(classes, "logic/team");
+        if (!dir.mkdirs())
+            throw new IOException("mkdirs failed: " + dir);
+        Files.write(new File(dir, "CTeam.class").toPath(), TeamBytes);
+
+        File out = new File(folder.getRoot(), "bundle-" + System.nanoTime() + ".jar");
+        PatchBundle.create(classes, "test-patch", out);
+        return Files.readAllBytes(out.toPath());
+    }
+
+    private static void _assertRejected(byte[] bytes)
+    {
+        try
+        {
+            PatchBundle.read(bytes);
+            fail("bad bundle accepted");
+        }
+        catch (IOException e)
+        {
+            // 期望的结果
+        }
+    }
+
+    private static ByteBuffer _buffer(byte[] bytes)
+    {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int _end(byte[] bytes)
+    {
+        ByteBuffer buffer = _buffer(bytes);
+        for (int position = bytes.length - 22; position >= 0; position--)
+        {
+            if (buffer.getInt(position) == 0x06054b50)
+                return position;
+        }
+        throw new AssertionError("no end of central directory");
+    }
+
+    /**
+     * @return class文件在中央目录中的文件头位置
+     */
+    private static int _classEntry(byte[] bytes)
+    {
+        ByteBuffer buffer = _buffer(bytes);
+        int end = _end(bytes);
+        int position = buffer.getInt(end + 16);
+        for (int i = 0, count = buffer.getShort(end + 10) & 0xFFFF; i < count; i++)
+        {
+            int nameLength = buffer.getShort(position + 28) & 0xFFFF;
+            String name = new String(bytes, position + 46, nameLength, StandardCharsets.UTF_8);
+            if (name.endsWith(".class"))
+                return position;
+            position += 46 + nameLength + (buffer.getShort(position + 30) & 0xFFFF) + (buffer.getShort(position + 32) & 0xFFFF);
+        }
+        throw new AssertionError("no class entry");
+    }
+}
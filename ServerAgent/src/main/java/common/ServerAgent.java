@@ -11,6 +11,9 @@ import java.lang.instrument.Instrumentation;
  */
 public class ServerAgent
 {
+    private static final String CommandClass = "common.agent.agent.AgentCommand";     // 应用中Agent模块的命令入口
+    private static final String AgentClass = "common.agent.agent.Agent";              // 应用中Agent模块的入口, 用于找到模块所在的加载器
+
     private static Instrumentation instrumentation;
     private static Object lock = new Object();
 
@@ -28,5 +31,40 @@ public class ServerAgent
                 instrumentation = ins;
             }
         }
+
+        // 外部进程下发的命令交给应用中的Agent模块执行
+        if (args != null && !args.isEmpty())
+        {
+            try
+            {
+                Class<?> command = _findCommandClass(ins);
+                command.getMethod("execute", String.class).invoke(null, args);
+            }
+            catch (Throwable e)
+            {
+                System.err.println("ServerAgent execute command error: " + args);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Agent模块不一定由系统加载器加载(例如fat jar、容器、插件加载器), 先从已加载的类中找到模块所在的加载器
+     * 优先使用已加载的AgentCommand, 其次使用Agent所在的加载器, 都没有加载时使用系统加载器
+     */
+    private static Class<?> _findCommandClass(Instrumentation ins) throws ClassNotFoundException
+    {
+        Class<?> agent = null;
+        for (Class<?> clazz : ins.getAllLoadedClasses())
+        {
+            String name = clazz.getName();
+            if (CommandClass.equals(name))
+                return clazz;
+            if (agent == null && AgentClass.equals(name))
+                agent = clazz;
+        }
+
+        ClassLoader loader = agent != null ? agent.getClassLoader() : ClassLoader.getSystemClassLoader();
+        return Class.forName(CommandClass, true, loader);
     }
 }